@@ -0,0 +1,538 @@
+package com.tunas.app;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.OperationCanceledException;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Decode engine that drives MediaCodec in asynchronous callback mode.
+ *
+ * Input and output buffers are serviced on a dedicated HandlerThread as soon as the codec
+ * hands them out, instead of polling dequeueInputBuffer/dequeueOutputBuffer with timeouts.
+ * The calling thread blocks until the requested range is decoded and gets back a
+ * DecodeStats summary with the decode throughput (realtime factor).
+ *
+ * Started codecs are flushed and kept in one process-wide pool, keyed by MIME type and track
+ * format, and reused by later decodes instead of being created and configured each time.
+ * A codec's callbacks stay bound to the thread of the decoder that created it, so only that
+ * decoder reuses it, and the pool keeps MAX_IDLE_CODECS_PER_DECODER per decoder: every lane of
+ * a parallel decode finds its own codec on the next run. Codecs from canceled or failed decodes
+ * are released rather than pooled, as their buffers may still be in flight. Idle codecs are
+ * released after IDLE_TIMEOUT_MS and when the system asks the app to trim memory.
+ */
+public class AsyncAudioDecoder {
+
+    /**
+     * Receives decoded 16-bit PCM as it leaves the codec. The buffer is only valid for the
+     * duration of the call; position/limit delimit the valid bytes.
+     */
+    public interface PcmSink {
+        void onPcm(ByteBuffer pcm, long presentationTimeUs) throws IOException;
+    }
+
+    /**
+     * Throughput summary for one decode run.
+     */
+    public static class DecodeStats {
+        public final long pcmBytes;
+        public final long decodedUs;
+        public final long wallTimeMs;
+
+        DecodeStats(long pcmBytes, long decodedUs, long wallTimeMs) {
+            this.pcmBytes = pcmBytes;
+            this.decodedUs = decodedUs;
+            this.wallTimeMs = wallTimeMs;
+        }
+
+        /**
+         * Seconds of audio decoded per second of wall time (higher is better).
+         */
+        public double getRealtimeFactor() {
+            return wallTimeMs > 0 ? (decodedUs / 1000.0) / wallTimeMs : 0.0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d bytes, %.1fms audio in %dms (%.1fx realtime)",
+                    pcmBytes, decodedUs / 1000.0, wallTimeMs, getRealtimeFactor());
+        }
+    }
+
+    private static final int MAX_IDLE_CODECS_PER_DECODER = 1; // codecs are scarce
+    private static final long IDLE_TIMEOUT_MS = 30000;
+
+    private static AsyncAudioDecoder sharedDecoder;
+    private static final List<AsyncAudioDecoder> laneDecoders = new ArrayList<>(); // guarded by the class
+    private static final List<AsyncAudioDecoder> backgroundLaneDecoders = new ArrayList<>(); // guarded by the class
+    private static final List<PooledCodec> idleCodecs = new ArrayList<>(); // guarded by itself, oldest first
+    private static long reusedCodecCount; // guarded by idleCodecs
+    private static long createdCodecCount; // guarded by idleCodecs
+
+    private final HandlerThread callbackThread;
+    private final Handler callbackHandler;
+    private volatile boolean released;
+    private final Runnable evictIdleCodecs = new Runnable() {
+        @Override
+        public void run() {
+            releaseIdleCodecs(null, IDLE_TIMEOUT_MS);
+        }
+    };
+
+    /**
+     * Returns the process-wide decoder used by the clip decoders in AudioLoopUtils.
+     */
+    public static synchronized AsyncAudioDecoder getShared() {
+        if (sharedDecoder == null) {
+            sharedDecoder = new AsyncAudioDecoder("TunasDecoder");
+        }
+        return sharedDecoder;
+    }
+
+    /**
+     * Returns the process-wide decoder for one lane of a parallel decode. Each lane has its own
+     * callback thread, so chunks on different lanes are extracted and drained concurrently.
+     * Lane 0 is the shared decoder.
+     */
+    public static synchronized AsyncAudioDecoder getLane(int lane) {
+        if (lane == 0) {
+            return getShared();
+        }
+        while (laneDecoders.size() < lane) {
+            laneDecoders.add(new AsyncAudioDecoder("TunasDecoder-" + (laneDecoders.size() + 1)));
+        }
+        return laneDecoders.get(lane - 1);
+    }
+
+    /**
+     * Returns the process-wide decoder for one lane of a background decode, such as filling
+     * the PCM cache. Background lanes run at background priority and are separate from the
+     * foreground lanes, so they never hold up a decode the user is waiting for.
+     */
+    public static synchronized AsyncAudioDecoder getBackgroundLane(int lane) {
+        while (backgroundLaneDecoders.size() <= lane) {
+            backgroundLaneDecoders.add(new AsyncAudioDecoder("TunasBackgroundDecoder-" + backgroundLaneDecoders.size(),
+                    Process.THREAD_PRIORITY_BACKGROUND));
+        }
+        return backgroundLaneDecoders.get(lane);
+    }
+
+    public AsyncAudioDecoder(String threadName) {
+        this(threadName, Process.THREAD_PRIORITY_DEFAULT);
+    }
+
+    /**
+     * @param priority Process.THREAD_PRIORITY_* of the callback thread, which does the decoding
+     */
+    public AsyncAudioDecoder(String threadName, int priority) {
+        callbackThread = new HandlerThread(threadName, priority);
+        callbackThread.start();
+        callbackHandler = new Handler(callbackThread.getLooper());
+    }
+
+    /**
+     * Releases every idle pooled codec. Call from onTrimMemory.
+     */
+    public static void trimMemory() {
+        releaseIdleCodecs(null, 0);
+    }
+
+    /**
+     * Number of decodes that reused a pooled codec since the process started.
+     */
+    public static long getReusedCodecCount() {
+        synchronized (idleCodecs) {
+            return reusedCodecCount;
+        }
+    }
+
+    /**
+     * Number of decodes that had to create a codec since the process started.
+     */
+    public static long getCreatedCodecCount() {
+        synchronized (idleCodecs) {
+            return createdCodecCount;
+        }
+    }
+
+    /**
+     * Decodes from the extractor's current position until endTimeUs (exclusive) or end of
+     * stream, delivering PCM to the sink on the callback thread.
+     *
+     * @param extractor Extractor with the audio track selected and already positioned
+     * @param format Track format used to configure the codec
+     * @param endTimeUs Input samples at or after this time are not fed to the codec
+     * @param sink Receiver for decoded PCM
+     * @return Decode throughput statistics
+     * @throws IOException If the codec fails or the sink throws
+     */
+    public DecodeStats decode(MediaExtractor extractor, MediaFormat format, long endTimeUs, PcmSink sink) throws IOException {
+        return decode(extractor, format, endTimeUs, sink, null);
+    }
+
+    /**
+     * Same as {@link #decode(MediaExtractor, MediaFormat, long, PcmSink)}, but stops early with
+     * an OperationCanceledException once the signal is canceled.
+     */
+    public DecodeStats decode(MediaExtractor extractor, MediaFormat format, long endTimeUs, PcmSink sink,
+                              CancellationSignal cancellationSignal) throws IOException {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        int channelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+
+        long startRealtimeMs = SystemClock.elapsedRealtime();
+        DecodeSession session = new DecodeSession(extractor, endTimeUs, sink, cancellationSignal, sampleRate, channelCount);
+        PooledCodec pooled = acquireCodec(format);
+        boolean reusable = false;
+        try {
+            if (pooled.callback.outputFormat != null) {
+                // A reused codec won't report its output format again
+                session.onOutputFormatChanged(pooled.codec, pooled.callback.outputFormat);
+            }
+            pooled.callback.session = session;
+            pooled.codec.start();
+            session.await();
+            reusable = true;
+        } finally {
+            // Canceled and failed sessions may leave buffers in flight, so their codecs are released
+            pooled.callback.session = null;
+            recycleCodec(pooled, reusable);
+        }
+
+        DecodeStats stats = new DecodeStats(session.pcmBytes, session.getDecodedUs(),
+                SystemClock.elapsedRealtime() - startRealtimeMs);
+        Log.d("Tunas", "AsyncAudioDecoder: " + mime + " decode finished (" +
+                (pooled.reuseCount > 0 ? "reused codec, use " + (pooled.reuseCount + 1) : "new codec") + "): " + stats);
+        return stats;
+    }
+
+    /**
+     * Takes an idle codec configured for the same format from the pool, or creates one.
+     * The returned codec is configured (or flushed) but not started.
+     */
+    private PooledCodec acquireCodec(MediaFormat format) throws IOException {
+        String key = PooledCodec.keyFor(format);
+        synchronized (idleCodecs) {
+            for (int i = idleCodecs.size() - 1; i >= 0; i--) {
+                PooledCodec pooled = idleCodecs.get(i);
+                if (pooled.owner == this && pooled.key.equals(key)) {
+                    idleCodecs.remove(i);
+                    pooled.reuseCount++;
+                    reusedCodecCount++;
+                    return pooled;
+                }
+            }
+            createdCodecCount++;
+        }
+
+        long createStartMs = SystemClock.elapsedRealtime();
+        MediaCodec codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+        PooledCodec pooled = new PooledCodec(this, codec, key);
+        try {
+            // The callback has to be set before configure, so it delegates to the current session
+            codec.setCallback(pooled.callback, callbackHandler);
+            codec.configure(format, null, null, 0);
+        } catch (RuntimeException e) {
+            codec.release();
+            throw new IOException("Could not configure decoder: " + e.getMessage(), e);
+        }
+        Log.d("Tunas", "AsyncAudioDecoder: created " + codec.getName() + " in " +
+                (SystemClock.elapsedRealtime() - createStartMs) + "ms");
+        return pooled;
+    }
+
+    /**
+     * Flushes a codec after a decode and returns it to the pool, or releases it if the decode
+     * did not finish cleanly.
+     */
+    private void recycleCodec(final PooledCodec pooled, boolean reusable) {
+        if (reusable) {
+            try {
+                pooled.codec.flush();
+            } catch (IllegalStateException e) {
+                Log.w("Tunas", "AsyncAudioDecoder: codec flush failed, releasing it", e);
+                reusable = false;
+            }
+        }
+        if (!reusable) {
+            releaseQuietly(pooled.codec);
+            return;
+        }
+
+        // Callbacks the codec posted before the flush are still queued on the callback thread.
+        // Pooling it from behind them lets them reach the idle callback, which drops them,
+        // instead of the next session.
+        callbackHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (released) {
+                    releaseQuietly(pooled.codec);
+                    return;
+                }
+                pooled.idleSinceMs = SystemClock.elapsedRealtime();
+                synchronized (idleCodecs) {
+                    // Keep the returned codec and this decoder's newest others, up to the cap
+                    int ownedCount = 0;
+                    for (int i = idleCodecs.size() - 1; i >= 0; i--) {
+                        if (idleCodecs.get(i).owner == AsyncAudioDecoder.this
+                                && ++ownedCount >= MAX_IDLE_CODECS_PER_DECODER) {
+                            releaseQuietly(idleCodecs.remove(i).codec);
+                        }
+                    }
+                    idleCodecs.add(pooled);
+                }
+                callbackHandler.removeCallbacks(evictIdleCodecs);
+                callbackHandler.postDelayed(evictIdleCodecs, IDLE_TIMEOUT_MS);
+            }
+        });
+    }
+
+    /**
+     * Releases pooled codecs that have been idle for at least minIdleMs.
+     *
+     * @param owner Only release codecs of this decoder, null for all
+     */
+    private static void releaseIdleCodecs(AsyncAudioDecoder owner, long minIdleMs) {
+        long now = SystemClock.elapsedRealtime();
+        int released = 0;
+        synchronized (idleCodecs) {
+            Iterator<PooledCodec> iterator = idleCodecs.iterator();
+            while (iterator.hasNext()) {
+                PooledCodec pooled = iterator.next();
+                if ((owner == null || pooled.owner == owner) && now - pooled.idleSinceMs >= minIdleMs) {
+                    iterator.remove();
+                    releaseQuietly(pooled.codec);
+                    released++;
+                }
+            }
+        }
+        if (released > 0) {
+            Log.d("Tunas", "AsyncAudioDecoder: released " + released + " idle codec(s)");
+        }
+    }
+
+    private static void releaseQuietly(MediaCodec codec) {
+        try {
+            codec.stop();
+        } catch (IllegalStateException e) {
+            Log.w("Tunas", "AsyncAudioDecoder: codec stop failed after error", e);
+        }
+        codec.release();
+    }
+
+    /**
+     * Releases pooled codecs and shuts down the callback thread. Only for decoders created with
+     * the public constructor.
+     */
+    public void release() {
+        released = true;
+        callbackThread.quitSafely();
+        releaseIdleCodecs(this, 0);
+    }
+
+    /**
+     * A configured codec that can be reused for tracks with the same format.
+     */
+    private static class PooledCodec {
+        final AsyncAudioDecoder owner; // its callbacks run on the owner's thread
+        final MediaCodec codec;
+        final String key;
+        final DelegatingCallback callback = new DelegatingCallback();
+        long idleSinceMs;
+        int reuseCount;
+
+        PooledCodec(AsyncAudioDecoder owner, MediaCodec codec, String key) {
+            this.owner = owner;
+            this.codec = codec;
+            this.key = key;
+        }
+
+        /**
+         * Pool key: MIME type, sample rate, channel count and codec-specific data.
+         */
+        static String keyFor(MediaFormat format) {
+            return format.getString(MediaFormat.KEY_MIME) + "/" +
+                    format.getInteger(MediaFormat.KEY_SAMPLE_RATE) + "/" +
+                    format.getInteger(MediaFormat.KEY_CHANNEL_COUNT) + "/" +
+                    csdHash(format, "csd-0") + "/" + csdHash(format, "csd-1");
+        }
+
+        private static int csdHash(MediaFormat format, String key) {
+            if (!format.containsKey(key)) {
+                return 0;
+            }
+            ByteBuffer csd = format.getByteBuffer(key).duplicate();
+            csd.rewind();
+            return csd.hashCode();
+        }
+    }
+
+    /**
+     * Codec callback that forwards to the decode session currently using the codec, and drops
+     * callbacks while the codec sits idle in the pool.
+     */
+    private static class DelegatingCallback extends MediaCodec.Callback {
+        volatile DecodeSession session;
+        volatile MediaFormat outputFormat;
+
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            DecodeSession current = session;
+            if (current != null) {
+                current.onInputBufferAvailable(codec, index);
+            }
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+            DecodeSession current = session;
+            if (current != null) {
+                current.onOutputBufferAvailable(codec, index, info);
+            }
+        }
+
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            DecodeSession current = session;
+            if (current != null) {
+                current.onError(codec, e);
+            }
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            outputFormat = format;
+            DecodeSession current = session;
+            if (current != null) {
+                current.onOutputFormatChanged(codec, format);
+            }
+        }
+    }
+
+    /**
+     * Codec callback state for a single decode run. All callbacks run on the callback thread;
+     * the caller only reads the results after await() returns.
+     */
+    private static class DecodeSession {
+        private final MediaExtractor extractor;
+        private final long endTimeUs;
+        private final PcmSink sink;
+        private final CancellationSignal cancellationSignal;
+        private final CountDownLatch finished = new CountDownLatch(1);
+
+        private int outputSampleRate;
+        private int outputChannelCount;
+        private boolean inputDone;
+        private long pcmBytes;
+        private volatile Exception failure;
+
+        DecodeSession(MediaExtractor extractor, long endTimeUs, PcmSink sink,
+                      CancellationSignal cancellationSignal, int sampleRate, int channelCount) {
+            this.extractor = extractor;
+            this.endTimeUs = endTimeUs;
+            this.sink = sink;
+            this.cancellationSignal = cancellationSignal;
+            this.outputSampleRate = sampleRate;
+            this.outputChannelCount = channelCount;
+        }
+
+        void onInputBufferAvailable(MediaCodec codec, int index) {
+            if (inputDone || finished.getCount() == 0) {
+                return;
+            }
+            if (cancellationSignal != null && cancellationSignal.isCanceled()) {
+                failure = new OperationCanceledException("Decode canceled");
+                finished.countDown();
+                return;
+            }
+            try {
+                ByteBuffer inputBuffer = codec.getInputBuffer(index);
+                int sampleSize = extractor.readSampleData(inputBuffer, 0);
+                long sampleTime = extractor.getSampleTime();
+
+                if (sampleSize < 0 || sampleTime >= endTimeUs) {
+                    // End of stream or end of requested range
+                    codec.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    inputDone = true;
+                } else {
+                    codec.queueInputBuffer(index, 0, sampleSize, sampleTime, 0);
+                    extractor.advance();
+                }
+            } catch (Exception e) {
+                fail(e);
+            }
+        }
+
+        void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+            if (finished.getCount() == 0) {
+                return;
+            }
+            try {
+                if (info.size > 0) {
+                    ByteBuffer outputBuffer = codec.getOutputBuffer(index);
+                    outputBuffer.position(info.offset);
+                    outputBuffer.limit(info.offset + info.size);
+                    sink.onPcm(outputBuffer, info.presentationTimeUs);
+                    pcmBytes += info.size;
+                }
+                codec.releaseOutputBuffer(index, false);
+
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    finished.countDown();
+                }
+            } catch (Exception e) {
+                fail(e);
+            }
+        }
+
+        void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            fail(e);
+        }
+
+        void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            outputSampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+            outputChannelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        }
+
+        private void fail(Exception e) {
+            Log.e("Tunas", "AsyncAudioDecoder: decode failed", e);
+            failure = e;
+            finished.countDown();
+        }
+
+        void await() throws IOException {
+            try {
+                finished.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Decode interrupted", e);
+            }
+            Exception e = failure;
+            if (e instanceof OperationCanceledException) {
+                throw (OperationCanceledException) e;
+            } else if (e instanceof IOException) {
+                throw (IOException) e;
+            } else if (e != null) {
+                throw new IOException("Decode failed: " + e.getMessage(), e);
+            }
+        }
+
+        long getDecodedUs() {
+            long bytesPerSecond = (long) outputSampleRate * outputChannelCount * 2;
+            return bytesPerSecond > 0 ? pcmBytes * 1000000L / bytesPerSecond : 0;
+        }
+    }
+}
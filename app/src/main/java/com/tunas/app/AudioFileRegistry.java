@@ -0,0 +1,301 @@
+package com.tunas.app;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Process;
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Process-wide registry of audio file descriptors (codec MIME, sample rate, channels,
+ * duration and codec-specific data), plus the loudness LoudnessAnalyzer measured for them.
+ *
+ * Each file is probed with a single MediaExtractor open; the result is kept in memory and
+ * persisted in SharedPreferences so later launches don't have to open the container at all.
+ * Probing happens outside the registry lock and the map is written on a background thread, so
+ * a lookup of a known file never waits for another file's probe or for serialization.
+ * Entries are invalidated when the file's size or mtime changes, and dropped once the file is
+ * gone.
+ */
+public class AudioFileRegistry {
+
+    private static final String PREFS_NAME = "tunas_audio_metadata";
+    private static final String DESCRIPTORS_KEY = "descriptors";
+
+    /**
+     * Metadata for one audio file, as recorded when it was probed.
+     */
+    public static class AudioFileDescriptor {
+        public String mime;
+        public int sampleRate;
+        public int channelCount;
+        public long durationUs;
+        public byte[] csd0;
+        public byte[] csd1;
+
+        // Filled in by LoudnessAnalyzer
+        public boolean loudnessAnalyzed;
+        public float integratedLoudnessLufs;
+        public float peak;
+
+        // Source identity used for invalidation
+        long sourceLength;
+        long sourceMtime;
+
+        public long getDurationMs() {
+            return durationUs / 1000;
+        }
+
+        public int getBytesPerFrame() {
+            return channelCount * 2;
+        }
+
+        /**
+         * Playback gain that normalizes the file's loudness, 1 until it has been analyzed.
+         */
+        public float getNormalizationGain() {
+            return loudnessAnalyzed ? LoudnessAnalyzer.normalizationGain(integratedLoudnessLufs, peak) : 1f;
+        }
+
+        /**
+         * Rebuilds a MediaFormat for the track, including codec-specific data.
+         */
+        public MediaFormat toMediaFormat() {
+            MediaFormat format = MediaFormat.createAudioFormat(mime, sampleRate, channelCount);
+            format.setLong(MediaFormat.KEY_DURATION, durationUs);
+            if (csd0 != null) {
+                format.setByteBuffer("csd-0", ByteBuffer.wrap(csd0));
+            }
+            if (csd1 != null) {
+                format.setByteBuffer("csd-1", ByteBuffer.wrap(csd1));
+            }
+            return format;
+        }
+    }
+
+    private static AudioFileRegistry instance;
+
+    private final SharedPreferences preferences;
+    private final Gson gson = new Gson();
+    private final Map<String, AudioFileDescriptor> descriptors; // guarded by this
+    private boolean savePending; // guarded by this
+    private final ExecutorService saveExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "TunasAudioRegistry");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final Runnable saveDescriptors = new Runnable() {
+        @Override
+        public void run() {
+            Map<String, AudioFileDescriptor> snapshot;
+            synchronized (AudioFileRegistry.this) {
+                savePending = false;
+                snapshot = new HashMap<>(descriptors);
+            }
+            String json = gson.toJson(snapshot);
+            preferences.edit().putString(DESCRIPTORS_KEY, json).apply();
+        }
+    };
+
+    public static synchronized AudioFileRegistry getInstance(Context context) {
+        if (instance == null) {
+            instance = new AudioFileRegistry(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private AudioFileRegistry(Context context) {
+        this.preferences = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        this.descriptors = loadDescriptors();
+        saveExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                pruneMissingFiles();
+            }
+        });
+    }
+
+    private Map<String, AudioFileDescriptor> loadDescriptors() {
+        String json = preferences.getString(DESCRIPTORS_KEY, null);
+        if (json != null) {
+            Type type = new TypeToken<Map<String, AudioFileDescriptor>>(){}.getType();
+            Map<String, AudioFileDescriptor> loaded = gson.fromJson(json, type);
+            return loaded != null ? loaded : new HashMap<String, AudioFileDescriptor>();
+        }
+        return new HashMap<>();
+    }
+
+    /**
+     * Schedules writing the descriptors to SharedPreferences. Requests made before the write
+     * starts are folded into it.
+     */
+    private synchronized void scheduleSave() {
+        if (!savePending) {
+            savePending = true;
+            saveExecutor.execute(saveDescriptors);
+        }
+    }
+
+    /**
+     * Drops the descriptors of files that no longer exist.
+     */
+    private void pruneMissingFiles() {
+        List<String> paths;
+        synchronized (this) {
+            paths = new ArrayList<>(descriptors.keySet());
+        }
+        // Checked outside the lock so lookups don't wait for the file system
+        Iterator<String> iterator = paths.iterator();
+        while (iterator.hasNext()) {
+            if (new File(iterator.next()).exists()) {
+                iterator.remove();
+            }
+        }
+        int pruned = 0;
+        synchronized (this) {
+            for (String path : paths) {
+                if (descriptors.remove(path) != null) {
+                    pruned++;
+                }
+            }
+        }
+        if (pruned > 0) {
+            Log.d("Tunas", "AudioFileRegistry: dropped " + pruned + " descriptor(s) of deleted files");
+            scheduleSave();
+        }
+    }
+
+    /**
+     * Returns the descriptor for the file, probing the container only if it is unknown or
+     * has changed since it was last probed.
+     */
+    public AudioFileDescriptor get(File audioFile) throws IOException {
+        String path = audioFile.getAbsolutePath();
+        synchronized (this) {
+            AudioFileDescriptor descriptor = descriptors.get(path);
+            if (isCurrent(descriptor, audioFile)) {
+                return descriptor;
+            }
+        }
+
+        AudioFileDescriptor probed = probe(audioFile);
+        synchronized (this) {
+            // A concurrent lookup of the same file may have probed it first; keep its
+            // descriptor, which may already carry the loudness
+            AudioFileDescriptor descriptor = descriptors.get(path);
+            if (isCurrent(descriptor, audioFile)) {
+                return descriptor;
+            }
+            descriptors.put(path, probed);
+        }
+        scheduleSave();
+        return probed;
+    }
+
+    /**
+     * Records the file's measured loudness and peak with its descriptor. Ignored if the file
+     * changed since it was probed, as its descriptor will be replaced.
+     */
+    public synchronized void setLoudness(File audioFile, float integratedLoudnessLufs, float peak) {
+        AudioFileDescriptor descriptor = descriptors.get(audioFile.getAbsolutePath());
+        if (!isCurrent(descriptor, audioFile)) {
+            return;
+        }
+        descriptor.integratedLoudnessLufs = integratedLoudnessLufs;
+        descriptor.peak = peak;
+        descriptor.loudnessAnalyzed = true;
+        scheduleSave();
+    }
+
+    /**
+     * Normalization gain for the file, 1 if it hasn't been analyzed or can't be read.
+     */
+    public float getNormalizationGain(File audioFile) {
+        try {
+            return get(audioFile).getNormalizationGain();
+        } catch (IOException e) {
+            Log.e("Tunas", "AudioFileRegistry: failed to read " + audioFile.getName(), e);
+            return 1f;
+        }
+    }
+
+    /**
+     * Convenience for callers that only need the duration; returns 0 if the file can't be read.
+     */
+    public long getDurationMs(File audioFile) {
+        try {
+            return get(audioFile).getDurationMs();
+        } catch (IOException e) {
+            Log.e("Tunas", "AudioFileRegistry: failed to read duration of " + audioFile.getName(), e);
+            return 0;
+        }
+    }
+
+    private static boolean isCurrent(AudioFileDescriptor descriptor, File audioFile) {
+        return descriptor != null && descriptor.sourceLength == audioFile.length()
+                && descriptor.sourceMtime == audioFile.lastModified();
+    }
+
+    private static AudioFileDescriptor probe(File audioFile) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(audioFile.getAbsolutePath());
+            MediaFormat format = extractor.getTrackFormat(0);
+
+            AudioFileDescriptor descriptor = new AudioFileDescriptor();
+            descriptor.mime = format.getString(MediaFormat.KEY_MIME);
+            descriptor.sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+            descriptor.channelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+            descriptor.durationUs = format.containsKey(MediaFormat.KEY_DURATION) ?
+                    format.getLong(MediaFormat.KEY_DURATION) : 0;
+            descriptor.csd0 = copyBuffer(format, "csd-0");
+            descriptor.csd1 = copyBuffer(format, "csd-1");
+            descriptor.sourceLength = audioFile.length();
+            descriptor.sourceMtime = audioFile.lastModified();
+
+            Log.d("Tunas", "AudioFileRegistry: probed " + audioFile.getName() + " - " + descriptor.mime + ", " +
+                    descriptor.sampleRate + "Hz, " + descriptor.channelCount + " channels, " +
+                    descriptor.getDurationMs() + "ms");
+            return descriptor;
+        } finally {
+            extractor.release();
+        }
+    }
+
+    private static byte[] copyBuffer(MediaFormat format, String key) {
+        if (!format.containsKey(key)) {
+            return null;
+        }
+        ByteBuffer buffer = format.getByteBuffer(key).duplicate();
+        buffer.rewind();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
@@ -1,16 +1,12 @@
 package com.tunas.app;
 
 import android.content.Context;
-import android.media.MediaCodec;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
-import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.SystemClock;
 import android.util.Log;
 
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
-
 import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.MediaItem;
 import com.google.android.exoplayer2.source.ClippingMediaSource;
@@ -23,10 +19,7 @@ import com.google.android.exoplayer2.Format;
 import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.util.MimeTypes;
 import com.google.android.exoplayer2.upstream.DataSource;
-import com.google.android.exoplayer2.upstream.DataSpec;
-import com.google.android.exoplayer2.upstream.TransferListener;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -43,132 +36,9 @@ import java.nio.ByteBuffer;
  */
 public class AudioLoopUtils {
 
-    /**
-     * Custom DataSource that serves looped audio data from memory.
-     * Provides seamless looping by serving the same audio clip multiple times
-     * as a continuous data stream.
-     */
-    public static class LoopedAudioDataSource implements DataSource {
-        private final byte[] audioData;
-        private final long loopCount;
-        private long position;
-        private boolean opened;
-
-        public LoopedAudioDataSource(byte[] audioData, long loopCount) {
-            this.audioData = audioData;
-            this.loopCount = loopCount;
-            this.position = 0;
-            this.opened = false;
-            Log.d("Tunas", "LoopedAudioDataSource: Created with audioData.length=" + audioData.length +
-                  ", loopCount=" + loopCount + ", totalSize=" + (audioData.length * loopCount));
-        }
-
-        @Override
-        public long open(DataSpec dataSpec) throws IOException {
-            opened = true;
-            position = dataSpec.position;
-            long totalSize = audioData.length * loopCount;
-            Log.d("Tunas", "LoopedAudioDataSource.open: Opened with position=" + position +
-                  ", audioData.length=" + audioData.length + ", loopCount=" + loopCount +
-                  ", totalSize=" + totalSize + ", uri=" + (dataSpec.uri != null ? dataSpec.uri.toString() : "null") +
-                  ", flags=" + dataSpec.flags + ", length=" + dataSpec.length);
-
-            if (totalSize <= 0) {
-                Log.e("Tunas", "LoopedAudioDataSource.open: Invalid total size: " + totalSize);
-                throw new IOException("Invalid data size");
-            }
-
-            // Return the total size (original clip size * loop count)
-            return totalSize;
-        }
-
-        @Override
-        public int read(byte[] buffer, int offset, int readLength) throws IOException {
-            if (!opened) {
-                Log.e("Tunas", "LoopedAudioDataSource.read: DataSource not opened!");
-                throw new IOException("DataSource not opened");
-            }
-
-            if (readLength == 0) {
-                return 0;
-            }
-
-            // Debug: Log that read was called
-            if (position == 0) {
-                Log.d("Tunas", "LoopedAudioDataSource.read: FIRST READ CALL - readLength=" + readLength);
-            }
-
-            // Calculate which loop we're in and position within that loop
-            long virtualPosition = position;
-            long loopSize = audioData.length;
-            long loopIndex = virtualPosition / loopSize;
-
-            // If we've exceeded the loop count, end of stream
-            if (loopIndex >= loopCount) {
-                Log.d("Tunas", "LoopedAudioDataSource.read: End of stream reached (loopIndex=" +
-                      loopIndex + " >= loopCount=" + loopCount + ")");
-                return C.RESULT_END_OF_INPUT;
-            }
-
-            // Position within the current loop
-            long positionInLoop = virtualPosition % loopSize;
-
-            // Calculate how much we can read from this loop
-            long remainingInLoop = loopSize - positionInLoop;
-            int actualReadLength = (int) Math.min(readLength, remainingInLoop);
-
-            // Copy data from the audio buffer
-            System.arraycopy(audioData, (int) positionInLoop, buffer, offset, actualReadLength);
-
-            position += actualReadLength;
-
-            // Log read operations periodically
-            if (position % (1024 * 1024) < actualReadLength) { // Log roughly every 1MB
-                Log.d("Tunas", "LoopedAudioDataSource.read: Read " + actualReadLength +
-                      " bytes (position=" + position + ", loopIndex=" + loopIndex +
-                      ", positionInLoop=" + positionInLoop + ", remaining=" + (audioData.length - positionInLoop) + ")");
-            }
-
-            return actualReadLength;
-        }
-
-        @Override
-        public Uri getUri() {
-            return Uri.parse("looped_audio"); // Return the same URI as MediaItem
-        }
-
-        @Override
-        public void close() throws IOException {
-            Log.d("Tunas", "LoopedAudioDataSource.close: Closing data source at position=" + position);
-            opened = false;
-        }
-
-        @Override
-        public void addTransferListener(TransferListener transferListener) {
-            // Optional: implement if you need transfer tracking
-        }
-    }
-
-    /**
-     * Factory for creating LoopedAudioDataSource instances.
-     */
-    public static class LoopedAudioDataSourceFactory implements DataSource.Factory {
-        private final byte[] audioData;
-        private final long loopCount;
-
-        public LoopedAudioDataSourceFactory(byte[] audioData, long loopCount) {
-            this.audioData = audioData;
-            this.loopCount = loopCount;
-            Log.d("Tunas", "LoopedAudioDataSourceFactory: Created with audioData.length=" + audioData.length +
-                  ", loopCount=" + loopCount);
-        }
-
-        @Override
-        public DataSource createDataSource() {
-            return new LoopedAudioDataSource(audioData, loopCount);
-        }
-    }
-
+    // Decoder warm-up before the requested start
+    private static final long DECODE_PREROLL_US = 100000;
+    private static final long MAX_PTS_DRIFT_US = 2000; // output timestamp jitter tolerated before re-aligning
 
     /**
      * Decodes a portion of compressed audio to PCM data and wraps it in WAV format for seamless looping.
@@ -184,166 +54,53 @@ public class AudioLoopUtils {
         Log.d("Tunas", "decodeAudioClipToWav: Starting PCM decoding from " + audioFile.getName() +
               ", startMs=" + startMs + ", endMs=" + endMs);
 
-        MediaExtractor extractor = new MediaExtractor();
-        MediaCodec decoder = null;
-
-        try {
-            extractor.setDataSource(audioFile.getAbsolutePath());
-            extractor.selectTrack(0);
-
-            MediaFormat format = extractor.getTrackFormat(0);
-            String mime = format.getString(MediaFormat.KEY_MIME);
-            int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
-            int channelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
-
-            Log.d("Tunas", "decodeAudioClipToWav: Format - " + mime + ", " + sampleRate + "Hz, " + channelCount + " channels");
-
-            // Seek to start position with maximum precision for musical timing
-            long startTimeUs = startMs * 1000;
-            extractor.seekTo(startTimeUs, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
-
-            // Fine-tune to exact start position by advancing sample by sample if needed
-            long currentSampleTime = extractor.getSampleTime();
-            Log.d("Tunas", "decodeAudioClipToWav: Initial seek to " + startTimeUs + "us, got " + currentSampleTime + "us");
-
-            // If we're before the target time, advance until we reach or pass it
-            if (currentSampleTime < startTimeUs) {
-                while (extractor.advance()) {
-                    currentSampleTime = extractor.getSampleTime();
-                    if (currentSampleTime >= startTimeUs) {
-                        break;
-                    }
-                }
-                Log.d("Tunas", "decodeAudioClipToWav: Advanced to " + currentSampleTime + "us");
-            }
-
-            // Calculate timing precision
-            long startOffsetUs = currentSampleTime - startTimeUs;
-            Log.d("Tunas", "decodeAudioClipToWav: Start timing offset: " + startOffsetUs + "us (" + (startOffsetUs / 1000.0) + "ms)");
-
-            // Create decoder
-            decoder = MediaCodec.createDecoderByType(mime);
-            decoder.configure(format, null, null, 0);
-            decoder.start();
-
-            ByteArrayOutputStream pcmOutput = new ByteArrayOutputStream();
-            ByteBuffer[] inputBuffers = decoder.getInputBuffers();
-            ByteBuffer[] outputBuffers = decoder.getOutputBuffers();
-            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-
-            long endTimeUs = endMs * 1000;
-            boolean done = false;
-            boolean inputDone = false;
-            long totalPcmBytes = 0;
-
-            while (!done) {
-                // Feed input
-                if (!inputDone) {
-                    int inputBufferIndex = decoder.dequeueInputBuffer(10000);
-                    if (inputBufferIndex >= 0) {
-                        ByteBuffer inputBuffer = inputBuffers[inputBufferIndex];
-                        inputBuffer.clear();
-
-                        int sampleSize = extractor.readSampleData(inputBuffer, 0);
-                        long sampleTime = extractor.getSampleTime();
-
-                        if (sampleSize < 0) {
-                            // End of stream
-                            decoder.queueInputBuffer(inputBufferIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                            inputDone = true;
-                            Log.d("Tunas", "decodeAudioClipToWav: End of input stream");
-                        } else if (sampleTime >= endTimeUs) {
-                            // Reached end time
-                            decoder.queueInputBuffer(inputBufferIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                            inputDone = true;
-                            Log.d("Tunas", "decodeAudioClipToWav: Reached end time " + sampleTime + "us");
-                        } else {
-                            // Feed sample to decoder
-                            decoder.queueInputBuffer(inputBufferIndex, 0, sampleSize, sampleTime, 0);
-                            extractor.advance();
-                        }
-                    }
-                }
-
-                // Get output
-                int outputBufferIndex = decoder.dequeueOutputBuffer(info, 10000);
-                if (outputBufferIndex >= 0) {
-                    ByteBuffer outputBuffer = outputBuffers[outputBufferIndex];
-
-                    if (info.size > 0) {
-                        byte[] pcmChunk = new byte[info.size];
-                        outputBuffer.get(pcmChunk);
-                        pcmOutput.write(pcmChunk);
-                        totalPcmBytes += info.size;
-                    }
-
-                    outputBuffer.clear();
-                    decoder.releaseOutputBuffer(outputBufferIndex, false);
-
-                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                        done = true;
-                        Log.d("Tunas", "decodeAudioClipToWav: Decoding complete, total PCM bytes: " + totalPcmBytes);
-                    }
-                } else if (outputBufferIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                    outputBuffers = decoder.getOutputBuffers();
-                } else if (outputBufferIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                    // Output format may change, but we don't need to handle it for PCM
-                }
-            }
-
-            // Apply fades to PCM data for seamless looping
-            byte[] pcmData = pcmOutput.toByteArray();
-            pcmData = applyLoopFades(pcmData, sampleRate, channelCount);
-
-            // Calculate expected duration vs actual duration for timing analysis
-            long expectedDurationUs = (endMs - startMs) * 1000L;
-            long actualDurationUs = (long) ((pcmData.length / (channelCount * 2.0)) / sampleRate * 1000000);
-            long durationDiffUs = actualDurationUs - expectedDurationUs;
-
-            Log.d("Tunas", "decodeAudioClipToWav: Duration analysis:");
-            Log.d("Tunas", "decodeAudioClipToWav:   Requested: " + expectedDurationUs + "us (" + (expectedDurationUs / 1000.0) + "ms)");
-            Log.d("Tunas", "decodeAudioClipToWav:   Actual: " + actualDurationUs + "us (" + (actualDurationUs / 1000.0) + "ms)");
-            Log.d("Tunas", "decodeAudioClipToWav:   Difference: " + durationDiffUs + "us (" + (durationDiffUs / 1000.0) + "ms)");
-
-            // Create WAV header with total size for all loops
-            long totalPcmSize = (long) pcmData.length * loopCount;
-            byte[] wavData = createWavHeader(pcmData.length, totalPcmSize, sampleRate, channelCount, 16); // 16-bit PCM
-            byte[] finalWav = new byte[wavData.length + pcmData.length];
-            System.arraycopy(wavData, 0, finalWav, 0, wavData.length);
-            System.arraycopy(pcmData, 0, finalWav, wavData.length, pcmData.length);
-
-            // Debug: Log first 50 bytes of WAV header
-            StringBuilder headerHex = new StringBuilder("WAV header bytes: ");
-            for (int i = 0; i < Math.min(50, finalWav.length); i++) {
-                headerHex.append(String.format("%02X ", finalWav[i]));
-            }
-            Log.d("Tunas", headerHex.toString());
-
-            // Also log the calculated values
-            Log.d("Tunas", "WAV header calc: pcmLength=" + pcmData.length +
-                  ", totalPcmSize=" + totalPcmSize +
-                  ", totalFileSize=" + (44 + totalPcmSize) +
-                  ", riffChunkSize=" + (44 + totalPcmSize - 8) +
-                  ", sampleRate=" + sampleRate + ", channels=" + channelCount +
-                  ", loopCount=" + loopCount);
-
-            Log.d("Tunas", "decodeAudioClipToWav: Created WAV data, total size: " + finalWav.length + " bytes (header + 1 clip)");
-            return finalWav;
-
-        } finally {
-            if (decoder != null) {
-                decoder.stop();
-                decoder.release();
-            }
-            extractor.release();
+        // Decode straight behind a reserved WAV header, then fade in place
+        ClipCollector clip = decodeClip(audioFile, startMs, endMs, 44, 1, null);
+        byte[] finalWav = clip.toArray();
+        int pcmLength = finalWav.length - 44;
+        int sampleRate = clip.sampleRate;
+        int channelCount = clip.channelCount;
+        applyLoopFades(finalWav, 44, pcmLength, sampleRate, channelCount);
+
+        // Calculate expected duration vs actual duration for timing analysis
+        long expectedDurationUs = (endMs - startMs) * 1000L;
+        long actualDurationUs = (long) ((pcmLength / (channelCount * 2.0)) / sampleRate * 1000000);
+        long durationDiffUs = actualDurationUs - expectedDurationUs;
+
+        Log.d("Tunas", "decodeAudioClipToWav: Duration analysis:");
+        Log.d("Tunas", "decodeAudioClipToWav:   Requested: " + expectedDurationUs + "us (" + (expectedDurationUs / 1000.0) + "ms)");
+        Log.d("Tunas", "decodeAudioClipToWav:   Actual: " + actualDurationUs + "us (" + (actualDurationUs / 1000.0) + "ms)");
+        Log.d("Tunas", "decodeAudioClipToWav:   Difference: " + durationDiffUs + "us (" + (durationDiffUs / 1000.0) + "ms)");
+
+        // Create WAV header with total size for all loops
+        long totalPcmSize = (long) pcmLength * loopCount;
+        byte[] wavHeader = createWavHeader(pcmLength, totalPcmSize, sampleRate, channelCount, 16); // 16-bit PCM
+        System.arraycopy(wavHeader, 0, finalWav, 0, wavHeader.length);
+
+        // Debug: Log first 50 bytes of WAV header
+        StringBuilder headerHex = new StringBuilder("WAV header bytes: ");
+        for (int i = 0; i < Math.min(50, finalWav.length); i++) {
+            headerHex.append(String.format("%02X ", finalWav[i]));
         }
+        Log.d("Tunas", headerHex.toString());
+
+        // Also log the calculated values
+        Log.d("Tunas", "WAV header calc: pcmLength=" + pcmLength +
+              ", totalPcmSize=" + totalPcmSize +
+              ", totalFileSize=" + (44 + totalPcmSize) +
+              ", riffChunkSize=" + (44 + totalPcmSize - 8) +
+              ", sampleRate=" + sampleRate + ", channels=" + channelCount +
+              ", loopCount=" + loopCount);
+
+        Log.d("Tunas", "decodeAudioClipToWav: Created WAV data, total size: " + finalWav.length + " bytes (header + 1 clip)");
+        return finalWav;
     }
 
     /**
      * Creates a WAV header for PCM data with specified total size.
      * For looped playback, totalSize should be pcmDataLength * loopCount.
      */
-    private static byte[] createWavHeader(long pcmDataLength, long totalSize, int sampleRate, int channels, int bitsPerSample) {
+    static byte[] createWavHeader(long pcmDataLength, long totalSize, int sampleRate, int channels, int bitsPerSample) {
         long totalFileSize = 44 + totalSize; // 44 bytes header + total PCM data
         long riffChunkSize = totalFileSize - 8;   // RIFF size = total file size - 8
         long byteRate = sampleRate * channels * bitsPerSample / 8;
@@ -374,64 +131,65 @@ public class AudioLoopUtils {
     }
 
     /**
-     * Applies fade-in and fade-out to PCM data for seamless looping.
-     * Uses 100ms fades to eliminate popping sounds between loop iterations.
+     * Applies fade-in and fade-out to PCM data for seamless looping, in place.
+     * Uses 10ms fades to eliminate popping sounds between loop iterations.
      *
-     * @param pcmData Raw PCM data (16-bit signed, little-endian)
+     * @param pcmData Buffer holding raw PCM data (16-bit signed, little-endian)
+     * @param offset Byte offset of the clip within the buffer
+     * @param length Clip length in bytes
      * @param sampleRate Sample rate in Hz
      * @param channelCount Number of channels
-     * @return PCM data with fades applied
      */
-    private static byte[] applyLoopFades(byte[] pcmData, int sampleRate, int channelCount) {
-        if (pcmData.length < 4) {
+    private static void applyLoopFades(byte[] pcmData, int offset, int length, int sampleRate, int channelCount) {
+        if (length < 4) {
             // Not enough data for fades
-            return pcmData;
+            return;
         }
 
-        // Calculate fade duration in samples (10ms for smooth transition)
-        int fadeSamples = (int) Math.ceil(sampleRate * 0.01); // 10ms fade
         int bytesPerSample = 2 * channelCount; // 16-bit = 2 bytes per sample per channel
-        int fadeBytes = fadeSamples * bytesPerSample;
-
-        // Ensure fade doesn't exceed available data
-        fadeBytes = Math.min(fadeBytes, pcmData.length / 2);
+        int fadeBytes = loopFadeBytes(length, sampleRate, channelCount);
 
         Log.d("Tunas", "applyLoopFades: Applying " + (fadeBytes / bytesPerSample) + " sample fades (" +
-              (fadeBytes * 1000.0 / (sampleRate * bytesPerSample)) + "ms) to " + pcmData.length + " bytes of PCM data");
+              (fadeBytes * 1000.0 / (sampleRate * bytesPerSample)) + "ms) to " + length + " bytes of PCM data");
 
-        // Create a copy to modify
-        byte[] fadedData = pcmData.clone();
+        // Remember the original samples right at the loop point to check for discontinuities
+        int lastSampleByte = offset + length - bytesPerSample;
+        int origLastSample = (pcmData[lastSampleByte + 1] << 8) | (pcmData[lastSampleByte] & 0xFF);
+        if (origLastSample > 32767) origLastSample -= 65536;
+        int origFirstSample = (pcmData[offset + 1] << 8) | (pcmData[offset] & 0xFF);
+        if (origFirstSample > 32767) origFirstSample -= 65536;
 
         // Apply fade-out at the end and fade-in at the beginning for seamless looping
-        applyFade(fadedData, pcmData.length - fadeBytes, fadeBytes, channelCount, true);  // fade out at end
-        applyFade(fadedData, 0, fadeBytes, channelCount, false);  // fade in at beginning
+        applyFade(pcmData, offset + length - fadeBytes, fadeBytes, channelCount, true);  // fade out at end
+        applyFade(pcmData, offset, fadeBytes, channelCount, false);  // fade in at beginning
 
-        // Log the boundary values and check for original audio discontinuities
+        // Log the boundary values
         int fadeSampleCount = fadeBytes / bytesPerSample;
         if (fadeSampleCount > 0) {
             // Check the last sample of fade-out (end of audio)
-            int lastSampleByte = pcmData.length - bytesPerSample;
-            int lastSample = (fadedData[lastSampleByte + 1] << 8) | (fadedData[lastSampleByte] & 0xFF);
+            int lastSample = (pcmData[lastSampleByte + 1] << 8) | (pcmData[lastSampleByte] & 0xFF);
             if (lastSample > 32767) lastSample -= 65536;
 
             // Check the first sample of fade-in (beginning of audio)
-            int firstSample = (fadedData[1] << 8) | (fadedData[0] & 0xFF);
+            int firstSample = (pcmData[offset + 1] << 8) | (pcmData[offset] & 0xFF);
             if (firstSample > 32767) firstSample -= 65536;
 
-            // Also check original samples right at the loop point for discontinuities
-            int origLastSample = (pcmData[lastSampleByte + 1] << 8) | (pcmData[lastSampleByte] & 0xFF);
-            if (origLastSample > 32767) origLastSample -= 65536;
-            int origFirstSample = (pcmData[1] << 8) | (pcmData[0] & 0xFF);
-            if (origFirstSample > 32767) origFirstSample -= 65536;
-
             Log.d("Tunas", String.format("applyLoopFades: Boundary check - faded: last=%d, first=%d | original: last=%d, first=%d",
                   lastSample, firstSample, origLastSample, origFirstSample));
         }
-
-        return fadedData;
     }
 
 
+    /**
+     * Length in bytes of the loop fades for a clip: 10ms for a smooth transition, but at most
+     * half the clip, rounded down to whole frames.
+     */
+    static int loopFadeBytes(int clipLength, int sampleRate, int channelCount) {
+        int bytesPerFrame = 2 * channelCount;
+        int fadeBytes = (int) Math.ceil(sampleRate * 0.01) * bytesPerFrame;
+        return Math.min(fadeBytes, clipLength / 2 / bytesPerFrame * bytesPerFrame);
+    }
+
     /**
      * Applies a cosine fade to a portion of PCM data for click-free transitions.
      *
@@ -441,7 +199,7 @@ public class AudioLoopUtils {
      * @param channelCount Number of channels
      * @param isFadeOut true for fade-out (to silence), false for fade-in (from silence)
      */
-    private static void applyFade(byte[] pcmData, int startByte, int fadeBytes, int channelCount, boolean isFadeOut) {
+    static void applyFade(byte[] pcmData, int startByte, int fadeBytes, int channelCount, boolean isFadeOut) {
         int bytesPerSample = 2 * channelCount; // 16-bit samples
         int numSamples = fadeBytes / bytesPerSample;
 
@@ -499,31 +257,11 @@ public class AudioLoopUtils {
         Log.d("Tunas", "createLoopedMediaSource: Creating PCM-based looped media source for " + audioFile.getName() +
               ", startMs=" + startMs + ", endMs=" + endMs + ", loopCount=" + loopCount);
 
-        // Decode the clip to PCM WAV format
-        byte[] wavData = decodeAudioClipToWav(audioFile, startMs, endMs, loopCount);
-        Log.d("Tunas", "createLoopedMediaSource: Decoded to " + wavData.length + " bytes of WAV data");
-
-        // Check memory usage
-        if (!isMemoryUsageAcceptable(wavData, loopCount)) {
-            Log.w("Tunas", "createLoopedMediaSource: Memory usage may be too high - " +
-                  estimateMemoryUsage(wavData, loopCount) + " bytes estimated");
-        }
-
-        // Create the looped data source factory
-        LoopedAudioDataSourceFactory factory = new LoopedAudioDataSourceFactory(wavData, loopCount);
-        Log.d("Tunas", "createLoopedMediaSource: Created looped data source factory");
-
-        // Create media source from the WAV data using DefaultMediaSourceFactory
-        MediaItem mediaItem = new MediaItem.Builder()
-            .setUri("data:audio/wav;base64,looped")  // Custom URI to indicate WAV format
-            .setMimeType("audio/wav")  // Explicitly set MIME type
-            .build();
-
-        ProgressiveMediaSource mediaSource = new ProgressiveMediaSource.Factory(factory)
-            .createMediaSource(mediaItem);
-
-        Log.d("Tunas", "createLoopedMediaSource: Created MediaSource for WAV data");
-        return mediaSource;
+        // Decode the clip to raw PCM and fade it in place; the source loops it without copying
+        ClipCollector clip = decodeClip(audioFile, startMs, endMs, 0, 1, null);
+        byte[] pcmData = clip.toArray();
+        applyLoopFades(pcmData, 0, pcmData.length, clip.sampleRate, clip.channelCount);
+        return createLoopedPcmMediaSource(new LoopCycle(pcmData, clip.sampleRate, clip.channelCount, false), loopCount);
     }
 
     /**
@@ -537,130 +275,255 @@ public class AudioLoopUtils {
      * @throws IOException If decoding fails
      */
     public static byte[] decodeAudioClipToPcm(File audioFile, long startMs, long endMs) throws IOException {
-        Log.d("Tunas", "decodeAudioClipToPcm: Starting raw PCM decoding from " + audioFile.getName() +
+        return decodeAudioClipToPcm(audioFile, startMs, endMs, null);
+    }
+
+    /**
+     * Cancellable variant of {@link #decodeAudioClipToPcm(File, long, long)}.
+     * Throws OperationCanceledException if the signal is canceled while decoding.
+     */
+    public static byte[] decodeAudioClipToPcm(File audioFile, long startMs, long endMs,
+                                              CancellationSignal cancellationSignal) throws IOException {
+        byte[] pcmData = decodeClip(audioFile, startMs, endMs, 0, 1, cancellationSignal).toArray();
+        Log.d("Tunas", "decodeAudioClipToPcm: Created raw PCM data, total size: " + pcmData.length + " bytes");
+        return pcmData;
+    }
+
+    /**
+     * Decodes the clip into a ClipCollector sized for leadingBytes of header space followed by
+     * clipSlots clip-sized segments, the first of which receives the decoded clip. Long clips
+     * are split into chunks decoded concurrently by ParallelAudioDecoder.
+     */
+    private static ClipCollector decodeClip(File audioFile, long startMs, long endMs, int leadingBytes, int clipSlots,
+                                            CancellationSignal cancellationSignal) throws IOException {
+        Log.d("Tunas", "decodeClip: Starting raw PCM decoding from " + audioFile.getName() +
               ", startMs=" + startMs + ", endMs=" + endMs);
 
-        MediaExtractor extractor = new MediaExtractor();
-        MediaCodec decoder = null;
+        ClipCollector clip = new ClipCollector(leadingBytes, clipSlots);
+        AsyncAudioDecoder.DecodeStats stats = ParallelAudioDecoder.decode(audioFile, startMs * 1000, endMs * 1000,
+                ParallelAudioDecoder.getDefaultParallelism(), clip, cancellationSignal);
+
+        long expectedDurationUs = (endMs - startMs) * 1000L;
+        long actualDurationUs = (long) ((clip.size / (clip.channelCount * 2.0)) / clip.sampleRate * 1000000);
+        Log.d("Tunas", "decodeClip: Decoded " + clip.size + " bytes of " + clip.capacity + " expected" +
+              String.format(" (%.1fx realtime)", stats.getRealtimeFactor()) +
+              ", requested " + (expectedDurationUs / 1000.0) + "ms, got " + (actualDurationUs / 1000.0) + "ms");
+        return clip;
+    }
+
+    /**
+     * Decodes a portion of compressed audio and hands the PCM inside [startMs, endMs) to the sink
+     * as soon as it leaves the codec, with the seek pre-roll already dropped. Used for streaming
+     * playback that starts before the whole clip is decoded.
+     *
+     * @param audioFile The source audio file
+     * @param startMs Start time in milliseconds
+     * @param endMs End time in milliseconds
+     * @param sink Receiver for the in-range PCM and where it belongs in the clip, called on the
+     *             decoder callback thread
+     * @throws IOException If decoding fails
+     */
+    static void streamAudioClipPcm(File audioFile, long startMs, long endMs,
+                                   TrimmedClipSink sink, CancellationSignal cancellationSignal) throws IOException {
+        decodeTrimmedRange(AsyncAudioDecoder.getShared(), audioFile, startMs * 1000, endMs * 1000, endMs * 1000,
+                sink, cancellationSignal);
+    }
+
+    /**
+     * Receives the trimmed range's format and exact length (-1 if open-ended) before its PCM
+     * is streamed.
+     */
+    interface TrimmedClipSink {
+        void onClipFormat(int sampleRate, int channelCount, long clipBytes) throws IOException;
+
+        /**
+         * Receives the buffer's remaining bytes, which belong clipOffset bytes from the start
+         * of the range as placed by the output timestamps.
+         */
+        void onClipPcm(ByteBuffer pcm, long clipOffset, long presentationTimeUs) throws IOException;
+    }
 
+    /**
+     * Index of the sample frame at the given time. Range boundaries are always converted
+     * through this, so ranges that share a boundary (e.g. adjacent decode chunks) meet on the
+     * same frame.
+     */
+    static long frameAtUs(long timeUs, int sampleRate) {
+        return Math.round(timeUs * (double) sampleRate / 1000000.0);
+    }
+
+    /**
+     * Decodes [startUs, endUs) on the given decoder, dropping the seek pre-roll and anything
+     * past the end on the fly, so the sink only ever sees the frames of the range.
+     *
+     * @param endUs End of the range, or Long.MAX_VALUE to decode to the end of the file
+     * @param inputEndUs Compressed input is fed up to this time; past endUs it lets the codec
+     *                   settle before the range end, and the extra output is trimmed
+     */
+    static AsyncAudioDecoder.DecodeStats decodeTrimmedRange(AsyncAudioDecoder decoder, File audioFile,
+                                                            long startUs, long endUs, long inputEndUs,
+                                                            final TrimmedClipSink sink,
+                                                            CancellationSignal cancellationSignal) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
         try {
             extractor.setDataSource(audioFile.getAbsolutePath());
             extractor.selectTrack(0);
 
             MediaFormat format = extractor.getTrackFormat(0);
-            String mime = format.getString(MediaFormat.KEY_MIME);
-            int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+            final int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
             int channelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+            final int bytesPerFrame = channelCount * 2;
+
+            // Seek to a sync point shortly before the start; the pre-roll is dropped while decoding
+            long seekOffsetUs = seekForDecode(extractor, startUs);
+            long landedUs = startUs - seekOffsetUs;
+            Log.d("Tunas", "decodeTrimmedRange: " + format.getString(MediaFormat.KEY_MIME) + ", " + sampleRate + "Hz, " +
+                  channelCount + " channels, seeking to " + startUs + "us, landed at " + landedUs +
+                  "us (offset: " + seekOffsetUs + "us = " + (seekOffsetUs / 1000.0) + "ms)");
+
+            // Exact frame boundaries of the requested range, relative to where decoding starts
+            final long landedFrame = frameAtUs(landedUs, sampleRate);
+            final long skipBytes = Math.max(0, frameAtUs(startUs, sampleRate) - landedFrame) * bytesPerFrame;
+            final long endBytes = endUs == Long.MAX_VALUE ? Long.MAX_VALUE :
+                    Math.max(skipBytes, (frameAtUs(endUs, sampleRate) - landedFrame) * bytesPerFrame);
+            final long maxDriftBytes = frameAtUs(MAX_PTS_DRIFT_US, sampleRate) * bytesPerFrame;
+            sink.onClipFormat(sampleRate, channelCount, endUs == Long.MAX_VALUE ? -1 : endBytes - skipBytes);
+
+            return decoder.decode(extractor, format, inputEndUs, new AsyncAudioDecoder.PcmSink() {
+                private long decodedBytes = -1; // position of the next output frame, -1 before the first
 
-            Log.d("Tunas", "decodeAudioClipToPcm: Format - " + mime + ", " + sampleRate + "Hz, " + channelCount + " channels");
-
-        // Seek to start position (allowing some tolerance for keyframes)
-        long startTimeUs = startMs * 1000;
-        extractor.seekTo(startTimeUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
-        long actualSeekPosition = extractor.getSampleTime();
-        long seekOffsetUs = startTimeUs - actualSeekPosition;
-
-        Log.d("Tunas", "decodeAudioClipToPcm: Seeking to " + startTimeUs + "us, landed at " +
-              actualSeekPosition + "us (offset: " + seekOffsetUs + "us = " + (seekOffsetUs / 1000.0) + "ms)");
-
-            // Create decoder
-            decoder = MediaCodec.createDecoderByType(mime);
-            decoder.configure(format, null, null, 0);
-            decoder.start();
-
-            ByteArrayOutputStream pcmOutput = new ByteArrayOutputStream();
-            ByteBuffer[] inputBuffers = decoder.getInputBuffers();
-            ByteBuffer[] outputBuffers = decoder.getOutputBuffers();
-            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-
-            long endTimeUs = endMs * 1000;
-            boolean done = false;
-            boolean inputDone = false;
-            long totalPcmBytes = 0;
-
-            while (!done) {
-                // Feed input
-                if (!inputDone) {
-                    int inputBufferIndex = decoder.dequeueInputBuffer(10000);
-                    if (inputBufferIndex >= 0) {
-                        ByteBuffer inputBuffer = inputBuffers[inputBufferIndex];
-                        inputBuffer.clear();
-
-                        int sampleSize = extractor.readSampleData(inputBuffer, 0);
-                        long sampleTime = extractor.getSampleTime();
-
-                        if (sampleSize < 0) {
-                            // End of stream
-                            decoder.queueInputBuffer(inputBufferIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                            inputDone = true;
-                            Log.d("Tunas", "decodeAudioClipToPcm: End of input stream");
-                        } else if (sampleTime >= endTimeUs) {
-                            // Reached end time
-                            decoder.queueInputBuffer(inputBufferIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                            inputDone = true;
-                            Log.d("Tunas", "decodeAudioClipToPcm: Reached end time " + sampleTime + "us");
-                        } else {
-                            // Feed sample to decoder
-                            decoder.queueInputBuffer(inputBufferIndex, 0, sampleSize, sampleTime, 0);
-                            extractor.advance();
-                        }
-                    }
-                }
-
-                // Get output
-                int outputBufferIndex = decoder.dequeueOutputBuffer(info, 10000);
-                if (outputBufferIndex >= 0) {
-                    ByteBuffer outputBuffer = outputBuffers[outputBufferIndex];
-
-                    if (info.size > 0) {
-                        byte[] pcmChunk = new byte[info.size];
-                        outputBuffer.get(pcmChunk);
-                        pcmOutput.write(pcmChunk);
-                        totalPcmBytes += info.size;
+                @Override
+                public void onPcm(ByteBuffer pcm, long presentationTimeUs) throws IOException {
+                    // Output is placed by its timestamp: after a seek the codec may drop priming
+                    // frames, so the first buffer need not start at the landing point. Later
+                    // buffers follow on sample-exactly unless their timestamps jump.
+                    long timestampBytes = (frameAtUs(presentationTimeUs, sampleRate) - landedFrame) * bytesPerFrame;
+                    if (decodedBytes < 0 || Math.abs(timestampBytes - decodedBytes) > maxDriftBytes) {
+                        decodedBytes = timestampBytes;
                     }
-
-                    outputBuffer.clear();
-                    decoder.releaseOutputBuffer(outputBufferIndex, false);
-
-                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                        done = true;
-                        Log.d("Tunas", "decodeAudioClipToPcm: Decoding complete, total PCM bytes: " + totalPcmBytes);
+                    long chunkStart = decodedBytes;
+                    decodedBytes += pcm.remaining();
+                    long from = Math.max(chunkStart, skipBytes);
+                    long to = Math.min(decodedBytes, endBytes);
+                    if (from >= to) {
+                        return;
                     }
-                } else if (outputBufferIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                    outputBuffers = decoder.getOutputBuffers();
-                } else if (outputBufferIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                    // Output format may change, but we don't need to handle it for PCM
+                    int base = pcm.position();
+                    pcm.limit(base + (int) (to - chunkStart));
+                    pcm.position(base + (int) (from - chunkStart));
+                    sink.onClipPcm(pcm, from - skipBytes, presentationTimeUs);
                 }
-            }
+            }, cancellationSignal);
+        } finally {
+            extractor.release();
+        }
+    }
 
-            byte[] rawPcmData = pcmOutput.toByteArray();
+    /**
+     * Collects a decoded clip straight from the codec's output buffers into one array pre-sized
+     * from the clip duration, so every sample is copied exactly once. Header space before the
+     * clip and extra clip-sized segments after it (e.g. the metronome half of an alternating
+     * cycle) are reserved in the same array. Chunks of a parallel decode write disjoint
+     * regions concurrently.
+     */
+    private static class ClipCollector implements ParallelAudioDecoder.RangeOutput {
+        private final int leadingBytes;
+        private final int clipSlots;
+        int sampleRate;
+        int channelCount;
+        int capacity;
+        int size; // end of the furthest write, guarded by this
+        private byte[] data;
+
+        ClipCollector(int leadingBytes, int clipSlots) {
+            this.leadingBytes = leadingBytes;
+            this.clipSlots = clipSlots;
+        }
 
-            // Calculate timing and trim to exact boundaries
-            long expectedDurationUs = (endMs - startMs) * 1000L;
-            long actualDurationUs = (long) ((rawPcmData.length / (channelCount * 2.0)) / sampleRate * 1000000);
-            long durationDiffUs = actualDurationUs - expectedDurationUs;
+        @Override
+        public void onFormat(int sampleRate, int channelCount, long rangeBytes) {
+            this.sampleRate = sampleRate;
+            this.channelCount = channelCount;
+            this.capacity = (int) rangeBytes;
+            this.data = new byte[leadingBytes + capacity * clipSlots];
+        }
 
-            Log.d("Tunas", "decodeAudioClipToPcm: Pre-trim duration analysis:");
-            Log.d("Tunas", "decodeAudioClipToPcm:   Requested: " + expectedDurationUs + "us (" + (expectedDurationUs / 1000.0) + "ms)");
-            Log.d("Tunas", "decodeAudioClipToPcm:   Decoded: " + actualDurationUs + "us (" + (actualDurationUs / 1000.0) + "ms)");
-            Log.d("Tunas", "decodeAudioClipToPcm:   Seek offset: " + seekOffsetUs + "us (" + (seekOffsetUs / 1000.0) + "ms)");
+        @Override
+        public void write(ByteBuffer pcm, long byteOffset) {
+            int offset = (int) byteOffset;
+            int length = Math.min(pcm.remaining(), capacity - offset);
+            if (length <= 0) {
+                return;
+            }
+            pcm.get(data, leadingBytes + offset, length);
+            synchronized (this) {
+                size = Math.max(size, offset + length);
+            }
+        }
 
-            // Trim PCM data to exact start/end boundaries
-            byte[] pcmData = trimPcmToExactTime(rawPcmData, sampleRate, channelCount, seekOffsetUs, startTimeUs, endTimeUs);
+        /**
+         * Returns the collected buffer. It is only copied (shrunk) when the decoder delivered
+         * less than the requested range, e.g. when the range runs past the end of the file.
+         */
+        synchronized byte[] toArray() {
+            int bytesPerFrame = channelCount * 2;
+            int clipLength = size / bytesPerFrame * bytesPerFrame;
+            if (clipLength == capacity) {
+                return data;
+            }
+            Log.d("Tunas", "ClipCollector: decoder delivered " + clipLength + " of " + capacity + " bytes, shrinking buffer");
+            byte[] shrunk = new byte[leadingBytes + clipLength * clipSlots];
+            System.arraycopy(data, 0, shrunk, 0, leadingBytes + clipLength);
+            return shrunk;
+        }
+    }
 
-            long finalDurationUs = (long) ((pcmData.length / (channelCount * 2.0)) / sampleRate * 1000000);
-            Log.d("Tunas", "decodeAudioClipToPcm: Post-trim duration: " + finalDurationUs + "us (" + (finalDurationUs / 1000.0) + "ms)");
-            Log.d("Tunas", "decodeAudioClipToPcm: Created raw PCM data, total size: " + pcmData.length + " bytes");
+    /**
+     * Positions the extractor on the sync point at or before DECODE_PREROLL_US ahead of
+     * startTimeUs, so the decoder has settled by the time it reaches the requested audio.
+     *
+     * @return Pre-roll in microseconds between the landing position and startTimeUs
+     */
+    private static long seekForDecode(MediaExtractor extractor, long startTimeUs) {
+        long prerollTimeUs = Math.max(0, startTimeUs - DECODE_PREROLL_US);
+        extractor.seekTo(prerollTimeUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        long landedUs = extractor.getSampleTime();
+        return landedUs >= 0 ? startTimeUs - landedUs : 0;
+    }
 
+    /**
+     * Returns raw PCM for the clip, copied from the mapped file for 16-bit PCM WAV sources or
+     * sliced from the whole-file PCM cache when available. On a cache miss the clip is decoded
+     * directly and the whole file is queued for caching, so later selections on the same file
+     * need no decoding.
+     *
+     * The returned array holds clipSlots clip-sized segments with the clip in the first one, so
+     * callers can render further cycle segments into it without another copy.
+     */
+    private static byte[] loadClipPcm(Context context, File audioFile, long startMs, long endMs, int clipSlots,
+                                      CancellationSignal cancellationSignal) throws IOException {
+        WavFile wav = WavFile.open(audioFile);
+        if (wav != null) {
+            ByteBuffer clip = wav.slice(startMs, endMs);
+            int clipLength = clip.remaining();
+            byte[] pcmData = new byte[clipLength * clipSlots];
+            clip.get(pcmData, 0, clipLength);
+            Log.d("Tunas", "loadClipPcm: read " + clipLength + " bytes from mapped WAV " + audioFile.getName());
             return pcmData;
+        }
 
-        } finally {
-            if (decoder != null) {
-                decoder.stop();
-                decoder.release();
-            }
-            extractor.release();
+        PcmCache cache = PcmCache.getInstance(context);
+        PcmCache.CachedPcm cached = cache.get(audioFile);
+        if (cached != null) {
+            byte[] pcmData = new byte[cached.sliceLength(startMs, endMs) * clipSlots];
+            cached.sliceInto(startMs, endMs, pcmData);
+            Log.d("Tunas", "loadClipPcm: PCM cache hit for " + audioFile.getName() + ", sliced " + (pcmData.length / clipSlots) + " bytes");
+            return pcmData;
         }
+
+        Log.d("Tunas", "loadClipPcm: PCM cache miss for " + audioFile.getName() + ", decoding clip");
+        cache.cacheInBackground(audioFile);
+        return decodeClip(audioFile, startMs, endMs, 0, clipSlots, cancellationSignal).toArray();
     }
 
     /**
@@ -708,6 +571,24 @@ public class AudioLoopUtils {
 
 
 
+    /**
+     * One rendered loop cycle: the faded music clip, optionally followed by a metronome
+     * segment of the same length (alternating mode). Ready to be repeated by a looped source.
+     */
+    public static class LoopCycle {
+        public final byte[] pcm;
+        public final int sampleRate;
+        public final int channelCount;
+        public final boolean withMetronome;
+
+        public LoopCycle(byte[] pcm, int sampleRate, int channelCount, boolean withMetronome) {
+            this.pcm = pcm;
+            this.sampleRate = sampleRate;
+            this.channelCount = channelCount;
+            this.withMetronome = withMetronome;
+        }
+    }
+
     /**
      * Creates a MediaSource that serves multiple concatenated WAV clips for truly gapless looping.
      * This bypasses ExoPlayer's LoopingMediaSource to ensure no gaps between loops.
@@ -721,58 +602,28 @@ public class AudioLoopUtils {
      * @throws IOException If audio decoding fails
      */
     public static ProgressiveMediaSource createLoopedPcmMediaSource(Context context, File audioFile, long startMs, long endMs, int loopCount) throws IOException {
+        return createLoopedPcmMediaSource(context, audioFile, startMs, endMs, loopCount, null);
+    }
+
+    /**
+     * Cancellable variant of {@link #createLoopedPcmMediaSource(Context, File, long, long, int)}.
+     * Throws OperationCanceledException if the signal is canceled before the source is built.
+     */
+    public static ProgressiveMediaSource createLoopedPcmMediaSource(Context context, File audioFile, long startMs, long endMs,
+                                                                    int loopCount, CancellationSignal cancellationSignal) throws IOException {
         Log.d("Tunas", "createLoopedPcmMediaSource: Creating gapless looped media source using concatenated PCM data");
         Log.d("Tunas", "createLoopedPcmMediaSource: Loop boundaries - startMs=" + startMs + ", endMs=" + endMs + ", duration=" + (endMs - startMs) + "ms, loopCount=" + loopCount);
 
-        // Decode the clip to raw PCM data (no WAV header)
-        byte[] pcmData = decodeAudioClipToPcm(audioFile, startMs, endMs);
-        Log.d("Tunas", "createLoopedPcmMediaSource: Decoded single clip to " + pcmData.length + " bytes of raw PCM");
-
-        // Apply fades to the PCM data for seamless looping
-        pcmData = applyLoopFades(pcmData, getSampleRate(audioFile), getChannelCount(audioFile));
-        Log.d("Tunas", "createLoopedPcmMediaSource: Applied fades to PCM data");
-
-        // Check memory usage for the looped data
-        if (!isMemoryUsageAcceptable(pcmData, loopCount)) {
-            Log.w("Tunas", "createLoopedPcmMediaSource: Memory usage may be too high - " +
-                  estimateMemoryUsage(pcmData, loopCount) + " bytes estimated for " + loopCount + " loops");
-        }
-
-        // Create WAV wrapper for the looped PCM data
-        byte[] loopedWavData = createLoopedWavData(pcmData, getSampleRate(audioFile), getChannelCount(audioFile), loopCount);
-        Log.d("Tunas", "createLoopedPcmMediaSource: Created looped WAV data: " + loopedWavData.length + " bytes");
-
-        // Create a simple data source factory for the complete looped WAV
-        SimpleDataSourceFactory factory = new SimpleDataSourceFactory(loopedWavData);
-        Log.d("Tunas", "createLoopedPcmMediaSource: Created data source factory");
-
-        // Create media source with proper WAV format
-        // Try a simple URI without special characters
-        MediaItem mediaItem = new MediaItem.Builder()
-            .setUri("looped_audio")
-            .build(); // Let ExoPlayer auto-detect MIME type from WAV header
-
-        ProgressiveMediaSource mediaSource;
-        try {
-            mediaSource = new ProgressiveMediaSource.Factory(factory)
-                .createMediaSource(mediaItem);
-
-            Log.d("Tunas", "createLoopedPcmMediaSource: Created ProgressiveMediaSource for gapless WAV looping");
-            Log.d("Tunas", "createLoopedPcmMediaSource: MediaItem URI=" + mediaItem.mediaId);
-        } catch (Exception e) {
-            Log.e("Tunas", "createLoopedPcmMediaSource: Failed to create media source", e);
-            throw new RuntimeException("Failed to create looped media source", e);
-        }
-
-        return mediaSource;
+        LoopCycle cycle = renderLoopCycle(context, audioFile, startMs, endMs, null, cancellationSignal);
+        return createLoopedPcmMediaSource(cycle, loopCount);
     }
 
     /**
      * Creates an alternating loop where each cycle is:
      *   [selected music segment] + [metronome segment with same duration]
      *
-     * The generated metronome uses 4/4 timing with an accented click on bar beginnings
-     * and quieter clicks on other beats.
+     * The metronome, mixed in by MetronomeRenderer, uses 4/4 timing with an accented click on
+     * bar beginnings and quieter clicks on other beats.
      */
     public static ProgressiveMediaSource createAlternatingLoopedPcmMediaSource(
             Context context,
@@ -781,289 +632,253 @@ public class AudioLoopUtils {
             long endMs,
             int loopCount,
             long[] barOffsetsMs) throws IOException {
+        return createAlternatingLoopedPcmMediaSource(context, audioFile, startMs, endMs, loopCount, barOffsetsMs, null);
+    }
+
+    /**
+     * Cancellable variant of
+     * {@link #createAlternatingLoopedPcmMediaSource(Context, File, long, long, int, long[])}.
+     */
+    public static ProgressiveMediaSource createAlternatingLoopedPcmMediaSource(
+            Context context,
+            File audioFile,
+            long startMs,
+            long endMs,
+            int loopCount,
+            long[] barOffsetsMs,
+            CancellationSignal cancellationSignal) throws IOException {
         Log.d("Tunas", "createAlternatingLoopedPcmMediaSource: startMs=" + startMs +
                 ", endMs=" + endMs + ", loopCount=" + loopCount +
                 ", barOffsetsCount=" + (barOffsetsMs != null ? barOffsetsMs.length : 0));
 
-        int sampleRate = getSampleRate(audioFile);
-        int channelCount = getChannelCount(audioFile);
-
-        byte[] musicPcmData = decodeAudioClipToPcm(audioFile, startMs, endMs);
-        musicPcmData = applyLoopFades(musicPcmData, sampleRate, channelCount);
-
-        byte[] metronomePcmData = createMetronomePcmSegment(
-                musicPcmData.length, sampleRate, channelCount, barOffsetsMs);
-
-        byte[] cyclePcmData = new byte[musicPcmData.length + metronomePcmData.length];
-        System.arraycopy(musicPcmData, 0, cyclePcmData, 0, musicPcmData.length);
-        System.arraycopy(metronomePcmData, 0, cyclePcmData, musicPcmData.length, metronomePcmData.length);
-
-        byte[] loopedWavData = createLoopedWavData(cyclePcmData, sampleRate, channelCount, loopCount);
-        SimpleDataSourceFactory factory = new SimpleDataSourceFactory(loopedWavData);
-        MediaItem mediaItem = new MediaItem.Builder()
-                .setUri("looped_audio_alternating")
-                .build();
-        return new ProgressiveMediaSource.Factory(factory).createMediaSource(mediaItem);
+        LoopCycle cycle = renderLoopCycle(context, audioFile, startMs, endMs,
+                barOffsetsMs != null ? barOffsetsMs : new long[0], cancellationSignal);
+        return createLoopedPcmMediaSource(cycle, loopCount);
     }
 
-    private static byte[] createMetronomePcmSegment(
-            int pcmByteLength,
-            int sampleRate,
-            int channelCount,
-            long[] barOffsetsMs) {
-        int bytesPerFrame = channelCount * 2;
-        if (pcmByteLength <= 0 || bytesPerFrame <= 0) {
-            return new byte[0];
-        }
-
-        byte[] metronome = new byte[pcmByteLength];
-        int totalFrames = pcmByteLength / bytesPerFrame;
-        int clickFrames = Math.max(1, (int) (sampleRate * 0.05)); // 50ms clicks
-
-        if (barOffsetsMs == null || barOffsetsMs.length < 2) {
-            long[] fallback = new long[]{0L, Math.max(1L, Math.round((1000.0 * totalFrames) / sampleRate))};
-            barOffsetsMs = fallback;
+    /**
+     * Decodes (or slices from the PCM cache) and fades one loop cycle.
+     *
+     * @param metronomeBarOffsetsMs Bar offsets for the metronome half of an alternating cycle,
+     *                              or null for a plain music loop
+     * @return The rendered cycle
+     * @throws IOException If audio decoding fails
+     */
+    public static LoopCycle renderLoopCycle(Context context, File audioFile, long startMs, long endMs,
+                                            long[] metronomeBarOffsetsMs, CancellationSignal cancellationSignal) throws IOException {
+        AudioFileRegistry.AudioFileDescriptor descriptor = AudioFileRegistry.getInstance(context).get(audioFile);
+        int sampleRate = descriptor.sampleRate;
+        int channelCount = descriptor.channelCount;
+
+        // Slice the clip from the PCM cache, or decode it to raw PCM data (no WAV header), into a
+        // buffer that already has room for the metronome half in alternating mode
+        boolean withMetronome = metronomeBarOffsetsMs != null;
+        int clipSlots = withMetronome ? 2 : 1;
+        byte[] cyclePcmData = loadClipPcm(context, audioFile, startMs, endMs, clipSlots, cancellationSignal);
+        int musicLength = cyclePcmData.length / clipSlots;
+        Log.d("Tunas", "renderLoopCycle: Decoded single clip to " + musicLength + " bytes of raw PCM");
+
+        // Apply fades to the PCM data in place for seamless looping
+        applyLoopFades(cyclePcmData, 0, musicLength, sampleRate, channelCount);
+        throwIfCanceled(cancellationSignal);
+
+        if (withMetronome) {
+            renderMetronomePcm(cyclePcmData, musicLength, musicLength, sampleRate, channelCount, metronomeBarOffsetsMs);
         }
+        return new LoopCycle(cyclePcmData, sampleRate, channelCount, withMetronome);
+    }
 
-        int barCount = barOffsetsMs.length - 1;
-        for (int barIndex = 0; barIndex < barCount; barIndex++) {
-            long barStartMs = barOffsetsMs[barIndex];
-            long barEndMs = barOffsetsMs[barIndex + 1];
-            if (barEndMs <= barStartMs) {
-                continue;
-            }
-
-            double barDurationMs = (double) (barEndMs - barStartMs);
-            for (int beatInBar = 0; beatInBar < 4; beatInBar++) {
-                double beatStartMs = barStartMs + (barDurationMs * beatInBar / 4.0);
-                int startFrame = (int) Math.round((beatStartMs * sampleRate) / 1000.0);
-                if (startFrame >= totalFrames) {
-                    continue;
-                }
-
-                boolean isBarStart = beatInBar == 0;
-                double frequencyHz = isBarStart ? 1760.0 : 880.0;
-                double amplitude = isBarStart ? 0.65 : 0.45;
-                int thisClickFrames = Math.min(clickFrames, totalFrames - startFrame);
-
-                for (int i = 0; i < thisClickFrames; i++) {
-                    int frameIndex = startFrame + i;
-                    double t = (double) i / (double) sampleRate;
-                    double envelope = Math.exp(-6.0 * ((double) i / (double) thisClickFrames));
-                    short sample = (short) Math.round(
-                            Math.sin(2.0 * Math.PI * frequencyHz * t) * amplitude * envelope * 32767.0);
-
-                    int frameByteOffset = frameIndex * bytesPerFrame;
-                    for (int channel = 0; channel < channelCount; channel++) {
-                        int sampleOffset = frameByteOffset + (channel * 2);
-                        int existing = (short) (((metronome[sampleOffset + 1] & 0xFF) << 8) | (metronome[sampleOffset] & 0xFF));
-                        int mixed = existing + sample;
-                        mixed = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, mixed));
-                        metronome[sampleOffset] = (byte) (mixed & 0xFF);
-                        metronome[sampleOffset + 1] = (byte) ((mixed >> 8) & 0xFF);
-                    }
-                }
+    /**
+     * Renders a loop cycle slowed down to the given speed and transposed by the given semitones
+     * with PitchShifter, so it can be played at normal speed and pitch with no real-time DSP.
+     * The music is rendered as a loop and needs no fades; in alternating mode the metronome half
+     * is rendered at the slowed bar offsets and is not transposed.
+     *
+     * @param metronomeBarOffsetsMs Bar offsets at normal speed for the metronome half of an
+     *                              alternating cycle, or null for a plain music loop
+     */
+    public static LoopCycle renderStretchedLoopCycle(Context context, File audioFile, long startMs, long endMs,
+                                                     long[] metronomeBarOffsetsMs, float speed, int semitones,
+                                                     CancellationSignal cancellationSignal) throws IOException {
+        AudioFileRegistry.AudioFileDescriptor descriptor = AudioFileRegistry.getInstance(context).get(audioFile);
+        int sampleRate = descriptor.sampleRate;
+        int channelCount = descriptor.channelCount;
+        byte[] clipPcmData = loadClipPcm(context, audioFile, startMs, endMs, 1, cancellationSignal);
+
+        long renderStartMs = SystemClock.elapsedRealtime();
+        boolean withMetronome = metronomeBarOffsetsMs != null;
+        byte[] cyclePcmData = PitchShifter.renderLoop(clipPcmData, sampleRate, channelCount, speed, semitones,
+                withMetronome ? 2 : 1, cancellationSignal);
+        int musicLength = cyclePcmData.length / (withMetronome ? 2 : 1);
+        long renderMs = SystemClock.elapsedRealtime() - renderStartMs;
+        long renderedAudioMs = (long) musicLength * 1000 / (sampleRate * channelCount * 2);
+        Log.d("Tunas", "renderStretchedLoopCycle: rendered " + clipPcmData.length + " bytes to " + musicLength +
+                " at " + Math.round(speed * 100) + "%, " + semitones + " semitones in " + renderMs + "ms (" +
+                (renderedAudioMs > 0 ? renderMs * 60000 / renderedAudioMs : 0) + "ms per minute of audio)");
+
+        if (withMetronome) {
+            long[] stretchedOffsetsMs = new long[metronomeBarOffsetsMs.length];
+            for (int i = 0; i < stretchedOffsetsMs.length; i++) {
+                stretchedOffsetsMs[i] = Math.round(metronomeBarOffsetsMs[i] / (double) speed);
             }
+            renderMetronomePcm(cyclePcmData, musicLength, musicLength, sampleRate, channelCount, stretchedOffsetsMs);
         }
-
-        return metronome;
+        return new LoopCycle(cyclePcmData, sampleRate, channelCount, withMetronome);
     }
 
-
     /**
-     * Get sample rate from audio file.
+     * Creates a gapless looped MediaSource that repeats an already rendered cycle. The cycle is
+     * held once and served with modular reads, so memory stays flat whatever the repeat count.
+     *
+     * @param cycle The rendered loop cycle
+     * @param loopCount Number of times to loop the cycle
+     * @return ProgressiveMediaSource with custom looped data source
      */
-    private static int getSampleRate(File audioFile) throws IOException {
-        MediaExtractor extractor = new MediaExtractor();
-        try {
-            extractor.setDataSource(audioFile.getAbsolutePath());
-            extractor.selectTrack(0);
-            MediaFormat format = extractor.getTrackFormat(0);
-            return format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
-        } finally {
-            extractor.release();
-        }
+    public static ProgressiveMediaSource createLoopedPcmMediaSource(LoopCycle cycle, int loopCount) {
+        long heapBeforeBytes = getUsedHeapBytes();
+        ProgressiveMediaSource mediaSource = SegmentedPcmSource.createMediaSource(
+            cycle.withMetronome ? "looped_audio_alternating" : "looped_audio",
+            new ByteBuffer[]{ByteBuffer.wrap(cycle.pcm)}, cycle.sampleRate, cycle.channelCount, loopCount);
+        Log.d("Tunas", "createLoopedPcmMediaSource: " + loopCount + " loops of a " + cycle.pcm.length +
+              " byte cycle, heap used " + heapBeforeBytes + " bytes before, " + getUsedHeapBytes() + " after");
+        return mediaSource;
     }
 
     /**
-     * Get channel count from audio file.
+     * Creates a gapless looped MediaSource served straight from a memory-mapped WAV file,
+     * without decoding.
+     *
+     * @param metronomeBarOffsetsMs Bar offsets for the metronome half of an alternating cycle,
+     *                              or null for a plain music loop
      */
-    private static int getChannelCount(File audioFile) throws IOException {
-        MediaExtractor extractor = new MediaExtractor();
-        try {
-            extractor.setDataSource(audioFile.getAbsolutePath());
-            extractor.selectTrack(0);
-            MediaFormat format = extractor.getTrackFormat(0);
-            return format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
-        } finally {
-            extractor.release();
-        }
+    public static ProgressiveMediaSource createMappedWavLoopSource(WavFile wav, long startMs, long endMs,
+                                                                   long[] metronomeBarOffsetsMs, int loopCount) {
+        return createMappedLoopSource(wav.slice(startMs, endMs), wav.sampleRate, wav.channelCount,
+                metronomeBarOffsetsMs, loopCount);
     }
 
     /**
-     * Create a single WAV file containing looped PCM data.
+     * Creates a gapless looped MediaSource over a clip in a file mapping (a WAV file or the PCM
+     * cache). The clip body is read from the mapping; only the faded 10ms edges and, in
+     * alternating mode, the metronome half are rendered onto the heap, so even long selections
+     * loop in constant memory.
      */
-    private static byte[] createLoopedWavData(byte[] pcmData, int sampleRate, int channelCount, int loopCount) {
-        // Calculate total PCM size
-        int pcmSizePerLoop = pcmData.length;
-        int totalPcmSize = pcmSizePerLoop * loopCount;
-
-        // Create WAV header using existing method
-        byte[] header = createWavHeader(pcmSizePerLoop, totalPcmSize, sampleRate, channelCount, 16);
-
-        // WAV data = header + looped PCM
-        byte[] wavData = new byte[header.length + totalPcmSize];
-
-        // Copy header
-        System.arraycopy(header, 0, wavData, 0, header.length);
-
-        // Copy PCM data loopCount times
-        for (int loop = 0; loop < loopCount; loop++) {
-            int offset = header.length + (loop * pcmSizePerLoop);
-            System.arraycopy(pcmData, 0, wavData, offset, pcmSizePerLoop);
+    public static ProgressiveMediaSource createMappedLoopSource(ByteBuffer clip, int sampleRate, int channelCount,
+                                                                long[] metronomeBarOffsetsMs, int loopCount) {
+        int clipLength = clip.remaining();
+        int fadeBytes = loopFadeBytes(clipLength, sampleRate, channelCount);
+
+        // The fades are applied to copies of the clip edges, the file mapping is read-only
+        byte[] head = new byte[fadeBytes];
+        byte[] tail = new byte[fadeBytes];
+        ByteBuffer edge = clip.duplicate();
+        edge.get(head);
+        edge.position(clipLength - fadeBytes);
+        edge.get(tail);
+        applyFade(head, 0, fadeBytes, channelCount, false);
+        applyFade(tail, 0, fadeBytes, channelCount, true);
+
+        ByteBuffer body = clip.duplicate();
+        body.position(fadeBytes);
+        body.limit(clipLength - fadeBytes);
+
+        boolean withMetronome = metronomeBarOffsetsMs != null;
+        ByteBuffer[] segments = new ByteBuffer[withMetronome ? 4 : 3];
+        segments[0] = ByteBuffer.wrap(head);
+        segments[1] = body;
+        segments[2] = ByteBuffer.wrap(tail);
+        if (withMetronome) {
+            segments[3] = ByteBuffer.wrap(createMetronomePcmSegment(
+                    clipLength, sampleRate, channelCount, metronomeBarOffsetsMs));
         }
-
-        return wavData;
+        return SegmentedPcmSource.createMediaSource(withMetronome ? "mapped_loop_alternating" : "mapped_loop",
+                segments, sampleRate, channelCount, loopCount);
     }
 
     /**
-     * Simple data source factory that serves complete data.
+     * Creates a MediaSource that plays [startMs, endMs) of a memory-mapped WAV file once, cut on
+     * exact sample boundaries.
      */
-    public static class SimpleDataSourceFactory implements DataSource.Factory {
-        private final byte[] data;
-
-        public SimpleDataSourceFactory(byte[] data) {
-            this.data = data;
-        }
-
-        @Override
-        public DataSource createDataSource() {
-            return new DataSource() {
-                private boolean opened = false;
-                private long position = 0;
-
-                @Override
-                public long open(DataSpec dataSpec) throws IOException {
-                    opened = true;
-                    position = dataSpec.position;
-                    Log.d("Tunas", "SimpleDataSource.open: Opened with position=" + position + ", totalSize=" + data.length);
-                    return data.length;
-                }
-
-                @Override
-                public int read(byte[] buffer, int offset, int readLength) throws IOException {
-                    if (!opened) {
-                        throw new IOException("DataSource not opened");
-                    }
-
-                    if (position >= data.length) {
-                        return C.RESULT_END_OF_INPUT;
-                    }
-
-                    int bytesToRead = (int) Math.min(readLength, data.length - position);
-                    System.arraycopy(data, (int) position, buffer, offset, bytesToRead);
-                    position += bytesToRead;
-
-                    return bytesToRead;
-                }
-
-                @Override
-                public Uri getUri() {
-                    return Uri.parse("simple_audio");
-                }
-
-                @Override
-                public void close() throws IOException {
-                    opened = false;
-                }
-
-                @Override
-                public void addTransferListener(TransferListener transferListener) {
-                    // No-op for simple in-memory data source
-                }
+    public static ProgressiveMediaSource createMappedWavClipSource(WavFile wav, long startMs, long endMs) {
+        return SegmentedPcmSource.createMediaSource("mapped_clip", new ByteBuffer[]{wav.slice(startMs, endMs)},
+                wav.sampleRate, wav.channelCount, 1);
+    }
 
-                @Override
-                public Map<String, List<String>> getResponseHeaders() {
-                    return Collections.emptyMap();
-                }
-            };
-        }
+    static byte[] createMetronomePcmSegment(
+            int pcmByteLength,
+            int sampleRate,
+            int channelCount,
+            long[] barOffsetsMs) {
+        byte[] metronome = new byte[Math.max(0, pcmByteLength)];
+        renderMetronomePcm(metronome, 0, metronome.length, sampleRate, channelCount, barOffsetsMs);
+        return metronome;
     }
 
     /**
-     * Trims PCM data to exact start/end time boundaries.
+     * Mixes the metronome clicks into pcmByteLength bytes of target starting at offset, with
+     * DEFAULT_BEATS_PER_BAR beats in every bar.
      */
-    private static byte[] trimPcmToExactTime(byte[] pcmData, int sampleRate, int channelCount, long seekOffsetUs, long requestedStartUs, long requestedEndUs) {
-        int bytesPerSample = channelCount * 2; // 16-bit PCM
-        int totalSamples = pcmData.length / bytesPerSample;
-
-        // Calculate sample positions for trimming
-        long decodedStartUs = requestedStartUs - seekOffsetUs; // When decoding actually started
-        long trimStartSample = Math.max(0, (long) Math.ceil((requestedStartUs - decodedStartUs) * sampleRate / 1000000.0));
-        long trimEndSample = Math.min(totalSamples, (long) Math.floor((requestedEndUs - decodedStartUs) * sampleRate / 1000000.0));
-
-        // Ensure we have valid bounds
-        trimStartSample = Math.max(0, Math.min(trimStartSample, totalSamples));
-        trimEndSample = Math.max(trimStartSample, Math.min(trimEndSample, totalSamples));
-
-        int trimmedSamples = (int) (trimEndSample - trimStartSample);
-        int trimmedBytes = trimmedSamples * bytesPerSample;
+    static void renderMetronomePcm(
+            byte[] target,
+            int offset,
+            int pcmByteLength,
+            int sampleRate,
+            int channelCount,
+            long[] barOffsetsMs) {
+        renderMetronomePcm(target, offset, pcmByteLength, sampleRate, channelCount, barOffsetsMs, null);
+    }
 
-        Log.d("Tunas", "trimPcmToExactTime: Trimming " + totalSamples + " samples to [" + trimStartSample + ", " + trimEndSample + "] = " + trimmedSamples + " samples");
+    /**
+     * Mixes the metronome clicks into pcmByteLength bytes of target starting at offset.
+     *
+     * @param beatsPerBar Beats in each bar, or null for 4/4 throughout
+     */
+    static void renderMetronomePcm(
+            byte[] target,
+            int offset,
+            int pcmByteLength,
+            int sampleRate,
+            int channelCount,
+            long[] barOffsetsMs,
+            int[] beatsPerBar) {
+        int bytesPerFrame = channelCount * 2;
+        if (pcmByteLength <= 0 || bytesPerFrame <= 0) {
+            return;
+        }
 
-        if (trimmedBytes <= 0) {
-            Log.w("Tunas", "trimPcmToExactTime: No valid samples after trimming, returning empty array");
-            return new byte[0];
+        if (barOffsetsMs == null || barOffsetsMs.length < 2) {
+            int totalFrames = pcmByteLength / bytesPerFrame;
+            barOffsetsMs = new long[]{0L, Math.max(1L, Math.round((1000.0 * totalFrames) / sampleRate))};
         }
+        MetronomeRenderer.render(target, offset, pcmByteLength, sampleRate, channelCount,
+                MetronomeRenderer.BeatSchedule.fromBarOffsets(barOffsetsMs, beatsPerBar, sampleRate));
+    }
 
-        byte[] trimmedData = new byte[trimmedBytes];
-        System.arraycopy(pcmData, (int) trimStartSample * bytesPerSample, trimmedData, 0, trimmedBytes);
 
-        return trimmedData;
+    private static void throwIfCanceled(CancellationSignal cancellationSignal) {
+        if (cancellationSignal != null) {
+            cancellationSignal.throwIfCanceled();
+        }
     }
 
     /**
      * Gets the format information for an audio file.
      * Useful for debugging or format validation.
      *
+     * @param context Android context
      * @param audioFile The audio file to analyze
-     * @return MediaFormat containing track information
+     * @return MediaFormat containing track information, from the AudioFileRegistry
      * @throws IOException If format detection fails
      */
-    public static MediaFormat getAudioFormat(File audioFile) throws IOException {
-        MediaExtractor extractor = new MediaExtractor();
-        try {
-            extractor.setDataSource(audioFile.getAbsolutePath());
-            return extractor.getTrackFormat(0);
-        } finally {
-            extractor.release();
-        }
+    public static MediaFormat getAudioFormat(Context context, File audioFile) throws IOException {
+        return AudioFileRegistry.getInstance(context).get(audioFile).toMediaFormat();
     }
 
     /**
-     * Estimates memory usage for a looped clip.
-     *
-     * @param clipData The extracted clip data
-     * @param loopCount Number of loops
-     * @return Estimated memory usage in bytes
+     * Bytes of the Java heap currently in use, for logging the footprint of loop sources.
      */
-    public static long estimateMemoryUsage(byte[] clipData, int loopCount) {
-        return clipData.length * loopCount;
-    }
-
-    /**
-     * Checks if the device has enough memory for the looped audio.
-     * Uses a conservative estimate of 50% of available heap.
-     *
-     * @param clipData The extracted clip data
-     * @param loopCount Number of loops
-     * @return true if memory usage is acceptable
-     */
-    public static boolean isMemoryUsageAcceptable(byte[] clipData, int loopCount) {
-        long estimatedUsage = estimateMemoryUsage(clipData, loopCount);
-        long maxHeap = Runtime.getRuntime().maxMemory();
-        long conservativeLimit = maxHeap / 2; // Use max 50% of heap
-
-        return estimatedUsage < conservativeLimit;
+    static long getUsedHeapBytes() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
     }
 }
@@ -0,0 +1,433 @@
+package com.tunas.app;
+
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioTrack;
+import android.media.PlaybackParams;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Loop playback that writes the PCM cycle straight to an AudioTrack, bypassing ExoPlayer.
+ *
+ * The cycle is the same set of segments SegmentedPcmSource serves to the player (heap or
+ * memory-mapped), played endlessly by a dedicated URGENT_AUDIO thread in small blocks to a
+ * streaming track in low-latency performance mode. Play, pause, seek, speed and loop changes
+ * are requested from the UI thread and applied by the writer thread between blocks, so a new
+ * loop is heard after one block plus the track's short buffer instead of a player re-prepare.
+ *
+ * Time-stretching and transposing need the normal mixer path, so the track is rebuilt without
+ * low-latency mode while the speed is below 100% or the pitch is shifted, and with it again
+ * once both are back to normal, continuing from the last frame the old track played. Loudness
+ * normalization is applied to each block as it is copied out of the cycle. Start latency, from
+ * play() to the playback head first moving, is logged for comparison with ExoPlayer.
+ */
+public class AudioTrackLoopEngine {
+
+    private static final int BLOCK_FRAMES = 256; // ~5ms at 48kHz
+
+    /**
+     * Receives engine events on the main thread.
+     */
+    public interface Listener {
+        /**
+         * Playback stopped because the track couldn't be created or written to.
+         */
+        void onPlaybackFailed();
+    }
+
+    private final Object lock = new Object();
+    private final Thread writerThread;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Listener listener;
+
+    // Guarded by lock
+    private ByteBuffer[] segments; // private duplicates of the cycle's segments
+    private long[] segmentStarts;
+    private long cycleLength;
+    private int sampleRate;
+    private int channelCount;
+    private long writePosition;    // cycle offset of the next block
+    private long headBasePosition; // cycle offset played at playback head 0
+    private long generation;       // bumped by every seek, so a block written before it isn't counted
+    private boolean flushPending;
+    private boolean playing;
+    private boolean released;
+    private float speed = 1.0f;
+    private float pitch = 1.0f;
+    private float gain = 1.0f;
+    private boolean speedPending;
+    private AudioTrack track;
+    private boolean trackLowLatency;
+    private long playRequestRealtimeMs = -1;
+    private long playRequestHead;
+    private long lastStartLatencyMs = -1;
+
+    public AudioTrackLoopEngine(Listener listener) {
+        this.listener = listener;
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+                writeLoop();
+            }
+        }, "TunasLoopEngine");
+        writerThread.start();
+    }
+
+    /**
+     * Switches to a new loop cycle, continuing at positionMs into it. Takes effect at the next
+     * block, whether or not the engine is playing.
+     */
+    public void setCycle(SegmentedPcmSource.Cycle cycle, long positionMs) {
+        synchronized (lock) {
+            segments = new ByteBuffer[cycle.segments.length];
+            segmentStarts = new long[cycle.segments.length];
+            long start = 0;
+            for (int i = 0; i < cycle.segments.length; i++) {
+                segments[i] = cycle.segments[i].duplicate();
+                segmentStarts[i] = start;
+                start += cycle.segments[i].remaining();
+            }
+            cycleLength = cycle.length;
+            sampleRate = cycle.sampleRate;
+            channelCount = cycle.channelCount;
+            Log.d("Tunas", "AudioTrackLoopEngine: new cycle of " + cycleLength + " bytes at " + positionMs + "ms");
+            seekLocked(positionMs);
+        }
+    }
+
+    public void play() {
+        synchronized (lock) {
+            if (!playing) {
+                playing = true;
+                playRequestRealtimeMs = SystemClock.elapsedRealtime();
+                lock.notifyAll();
+            }
+        }
+    }
+
+    public void pause() {
+        synchronized (lock) {
+            playing = false;
+            playRequestRealtimeMs = -1;
+            lock.notifyAll();
+        }
+    }
+
+    public boolean isPlaying() {
+        synchronized (lock) {
+            return playing;
+        }
+    }
+
+    /**
+     * Moves playback to positionMs into the cycle, wrapping positions past its end.
+     */
+    public void seekTo(long positionMs) {
+        synchronized (lock) {
+            seekLocked(positionMs);
+        }
+    }
+
+    private void seekLocked(long positionMs) {
+        if (cycleLength == 0) {
+            return;
+        }
+        long frame = AudioLoopUtils.frameAtUs(Math.max(0, positionMs) * 1000, sampleRate);
+        writePosition = frame * getBytesPerFrame() % cycleLength;
+        generation++;
+        flushPending = true;
+        lock.notifyAll();
+    }
+
+    /**
+     * Current position in the cycle in milliseconds, from the frames the track has played.
+     */
+    public long getCurrentPosition() {
+        synchronized (lock) {
+            if (cycleLength == 0) {
+                return 0;
+            }
+            long position = writePosition;
+            if (track != null && !flushPending) {
+                long playedBytes = (track.getPlaybackHeadPosition() & 0xFFFFFFFFL) * getBytesPerFrame();
+                position = (headBasePosition + playedBytes) % cycleLength;
+            }
+            return position / getBytesPerFrame() * 1000 / sampleRate;
+        }
+    }
+
+    /**
+     * Sets the playback speed, keeping the pitch.
+     */
+    public void setSpeed(float speed) {
+        synchronized (lock) {
+            if (this.speed != speed) {
+                this.speed = speed;
+                speedPending = true;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Sets the pitch as a frequency ratio, keeping the speed.
+     */
+    public void setPitch(float pitch) {
+        synchronized (lock) {
+            if (this.pitch != pitch) {
+                this.pitch = pitch;
+                speedPending = true;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Sets the gain applied to the cycle as it is written, 1 for unchanged audio.
+     */
+    public void setGain(float gain) {
+        synchronized (lock) {
+            this.gain = gain;
+        }
+    }
+
+    /**
+     * Milliseconds from the last play() until audio started moving, or -1 if not measured yet.
+     */
+    public long getLastStartLatencyMs() {
+        synchronized (lock) {
+            return lastStartLatencyMs;
+        }
+    }
+
+    /**
+     * Stops playback and releases the track. The engine can't be used afterwards.
+     */
+    public void release() {
+        synchronized (lock) {
+            released = true;
+            playing = false;
+            lock.notifyAll();
+        }
+    }
+
+    private int getBytesPerFrame() {
+        return channelCount * 2;
+    }
+
+    private void writeLoop() {
+        byte[] block = new byte[0];
+        float blockGain = 1.0f; // gain at the end of the last block, ramped from to the new gain
+        while (true) {
+            AudioTrack target;
+            int length;
+            long blockGeneration;
+            synchronized (lock) {
+                while (!released && (!playing || cycleLength == 0)) {
+                    if (track != null && track.getPlayState() == AudioTrack.PLAYSTATE_PLAYING) {
+                        track.pause();
+                    }
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        released = true;
+                    }
+                }
+                if (released) {
+                    break;
+                }
+
+                boolean lowLatency = speed == 1.0f && pitch == 1.0f;
+                if (track == null || track.getSampleRate() != sampleRate || track.getChannelCount() != channelCount
+                        || trackLowLatency != lowLatency) {
+                    releaseTrackLocked();
+                    track = createTrack(sampleRate, channelCount, lowLatency);
+                    if (track == null) {
+                        stopOnFailureLocked();
+                        continue;
+                    }
+                    trackLowLatency = lowLatency;
+                    speedPending = true;
+                    headBasePosition = writePosition;
+                }
+                if (flushPending) {
+                    // flush() only discards queued audio on a paused track
+                    track.pause();
+                    track.flush();
+                    headBasePosition = writePosition;
+                    flushPending = false;
+                }
+                if (speedPending) {
+                    applySpeedLocked();
+                    speedPending = false;
+                }
+                if (track.getPlayState() != AudioTrack.PLAYSTATE_PLAYING) {
+                    playRequestHead = track.getPlaybackHeadPosition() & 0xFFFFFFFFL;
+                    track.play();
+                }
+
+                length = (int) Math.min(BLOCK_FRAMES * getBytesPerFrame(), cycleLength);
+                if (block.length < length) {
+                    block = new byte[length];
+                }
+                fillLocked(block, length);
+                if (gain != 1.0f || blockGain != 1.0f) {
+                    applyGain(block, length, blockGain, gain);
+                    blockGain = gain;
+                }
+                target = track;
+                blockGeneration = generation;
+            }
+
+            // Blocks for at most about one block's duration once the track buffer is full
+            int written = target.write(block, 0, length);
+
+            synchronized (lock) {
+                if (written < 0) {
+                    Log.e("Tunas", "AudioTrackLoopEngine: write failed with " + written);
+                    releaseTrackLocked();
+                    stopOnFailureLocked();
+                    continue;
+                }
+                if (blockGeneration == generation) {
+                    writePosition = (writePosition + written) % cycleLength;
+                }
+                if (playRequestRealtimeMs >= 0 && (target.getPlaybackHeadPosition() & 0xFFFFFFFFL) > playRequestHead) {
+                    lastStartLatencyMs = SystemClock.elapsedRealtime() - playRequestRealtimeMs;
+                    playRequestRealtimeMs = -1;
+                    Log.d("Tunas", "AudioTrackLoopEngine: start latency " + lastStartLatencyMs + "ms (" +
+                            (trackLowLatency ? "low-latency" : "normal") + " track)");
+                }
+            }
+        }
+        synchronized (lock) {
+            releaseTrackLocked();
+        }
+    }
+
+    /**
+     * Copies length bytes of the cycle from writePosition into the block, wrapping at the end.
+     */
+    private void fillLocked(byte[] block, int length) {
+        int offset = 0;
+        long position = writePosition;
+        while (offset < length) {
+            int segment = segments.length - 1;
+            while (segmentStarts[segment] > position) {
+                segment--;
+            }
+            ByteBuffer source = segments[segment];
+            int positionInSegment = (int) (position - segmentStarts[segment]);
+            int count = Math.min(length - offset, source.capacity() - positionInSegment);
+            source.position(positionInSegment);
+            source.get(block, offset, count);
+            offset += count;
+            position = (position + count) % cycleLength;
+        }
+    }
+
+    /**
+     * Scales the 16-bit samples of the block by a gain ramped linearly from startGain to endGain.
+     */
+    private void applyGain(byte[] block, int length, float startGain, float endGain) {
+        int bytesPerFrame = getBytesPerFrame();
+        int frames = length / bytesPerFrame;
+        for (int frame = 0; frame < frames; frame++) {
+            float frameGain = startGain + (endGain - startGain) * (frame + 1) / frames;
+            for (int index = frame * bytesPerFrame; index < (frame + 1) * bytesPerFrame; index += 2) {
+                int sample = Math.round((short) (((block[index + 1] & 0xFF) << 8) | (block[index] & 0xFF)) * frameGain);
+                sample = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+                block[index] = (byte) sample;
+                block[index + 1] = (byte) (sample >> 8);
+            }
+        }
+    }
+
+    private void applySpeedLocked() {
+        try {
+            track.setPlaybackParams(new PlaybackParams().allowDefaults().setSpeed(speed).setPitch(pitch));
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            Log.w("Tunas", "AudioTrackLoopEngine: speed " + speed + ", pitch " + pitch + " not supported by the track", e);
+        }
+    }
+
+    private void stopOnFailureLocked() {
+        playing = false;
+        playRequestRealtimeMs = -1;
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                boolean current;
+                synchronized (lock) {
+                    current = !released;
+                }
+                if (current && listener != null) {
+                    listener.onPlaybackFailed();
+                }
+            }
+        });
+    }
+
+    /**
+     * Releases the track, first moving writePosition back to the last frame it played, so the
+     * audio still queued in it is written again to the next track instead of skipped.
+     */
+    private void releaseTrackLocked() {
+        if (track != null) {
+            if (!flushPending && cycleLength > 0) {
+                long playedBytes = (track.getPlaybackHeadPosition() & 0xFFFFFFFFL) * getBytesPerFrame();
+                writePosition = (headBasePosition + playedBytes) % cycleLength;
+            }
+            track.release();
+            track = null;
+        }
+    }
+
+    private static AudioTrack createTrack(int sampleRate, int channelCount, boolean lowLatency) {
+        int channelMask = channelCount == 1 ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO;
+        int minBufferSize = AudioTrack.getMinBufferSize(sampleRate, channelMask, AudioFormat.ENCODING_PCM_16BIT);
+        if (minBufferSize <= 0 || channelCount > 2) {
+            Log.e("Tunas", "AudioTrackLoopEngine: unsupported format " + sampleRate + "Hz, " + channelCount + " channels");
+            return null;
+        }
+
+        AudioAttributes.Builder attributes = new AudioAttributes.Builder()
+                .setUsage(AudioAttributes.USAGE_MEDIA)
+                .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC);
+        AudioTrack.Builder builder = new AudioTrack.Builder()
+                .setAudioFormat(new AudioFormat.Builder()
+                        .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                        .setSampleRate(sampleRate)
+                        .setChannelMask(channelMask)
+                        .build())
+                .setTransferMode(AudioTrack.MODE_STREAM)
+                .setBufferSizeInBytes(minBufferSize);
+        if (lowLatency) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                builder.setPerformanceMode(AudioTrack.PERFORMANCE_MODE_LOW_LATENCY);
+            } else {
+                attributes.setFlags(AudioAttributes.FLAG_LOW_LATENCY);
+            }
+        }
+        builder.setAudioAttributes(attributes.build());
+
+        AudioTrack track;
+        try {
+            track = builder.build();
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            Log.e("Tunas", "AudioTrackLoopEngine: failed to create track", e);
+            return null;
+        }
+        Log.d("Tunas", "AudioTrackLoopEngine: track " + sampleRate + "Hz, " + channelCount + " channels, " +
+                (lowLatency ? "low-latency" : "normal") + " mode, buffer " + minBufferSize + " bytes");
+        return track;
+    }
+}
@@ -0,0 +1,208 @@
+package com.tunas.app;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.audio.BaseAudioProcessor;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Mixes metronome clicks over the music in real time, as an ExoPlayer audio processor.
+ *
+ * Beats are laid out from the bar positions by MetronomeRenderer.BeatSchedule, as for the
+ * alternating metronome, and the clicks are MetronomeRenderer's pre-rendered ones, so the
+ * overlay holds no PCM of its own: each buffer from the decoder is copied to the processor's
+ * output block with the clicks added. The player sets a Timeline mapping positions in its
+ * current source to the file, so clicks follow loops, live loops and seeks. The volume can be
+ * changed while playing.
+ *
+ * The processor sits ahead of the sink's speed processor, so it counts source time: every
+ * frame since the stream started at the last seek position. A flush after the sink drained
+ * the processor (the sink does that to change speed) continues the same stream.
+ */
+public class ClickOverlayProcessor extends BaseAudioProcessor {
+
+    private static final int BEAT_SCHEDULE_RATE = 1000;
+
+    /**
+     * Maps the player's position in the current source to the file.
+     */
+    public interface Timeline {
+        /**
+         * Returns the file position playing at sourceMs, or -1 where no clicks should play.
+         */
+        long toFileMs(long sourceMs);
+    }
+
+    /**
+     * Sorted beat times in the file, and which of them start a bar.
+     */
+    private static class Beats {
+        final long[] timesMs;
+        final boolean[] accents;
+
+        Beats(long[] timesMs, boolean[] accents) {
+            this.timesMs = timesMs;
+            this.accents = accents;
+        }
+    }
+
+    private volatile float volume;
+    private volatile Timeline timeline;
+    private volatile Beats beats = new Beats(new long[0], new boolean[0]);
+    private volatile long startPositionMs;
+    private volatile int startGeneration;
+
+    // Playback thread only
+    private long streamFrame;       // frames since the stream started at streamStartMs
+    private long streamStartMs;
+    private int consumedGeneration;
+    private boolean draining;
+    private short[] click;
+    private int clickPosition = -1; // next frame of click to mix, -1 if none is sounding
+    private int lastBeat = -1;      // beat at the last checked millisecond, -1 if none
+
+    /**
+     * Sets the click volume, 0 (silent) to 1 (as loud as the alternating metronome).
+     */
+    public void setVolume(float volume) {
+        this.volume = Math.max(0f, Math.min(1f, volume));
+    }
+
+    public float getVolume() {
+        return volume;
+    }
+
+    /**
+     * Sets the bars to click, DEFAULT_BEATS_PER_BAR beats to each.
+     *
+     * @param barStartsMs Bar start times in the file, in order
+     * @param endMs End of the last bar
+     */
+    public void setBars(long[] barStartsMs, long endMs) {
+        long[] barOffsetsMs = Arrays.copyOf(barStartsMs, barStartsMs.length + 1);
+        barOffsetsMs[barStartsMs.length] = endMs;
+        // Laid out at 1kHz, so each beat frame is a millisecond of the file
+        MetronomeRenderer.BeatSchedule schedule = MetronomeRenderer.BeatSchedule.fromBarOffsets(
+                barOffsetsMs, null, BEAT_SCHEDULE_RATE);
+
+        long[] timesMs = new long[schedule.getBeatCount()];
+        boolean[] accents = new boolean[timesMs.length];
+        int count = 0;
+        for (int beat = 0; beat < schedule.getBeatCount(); beat++) {
+            int frame = schedule.beatFrames[beat];
+            if (frame < 0) {
+                continue;
+            }
+            long timeMs = frame * 1000L / BEAT_SCHEDULE_RATE;
+            // Beats falling on the same millisecond would click on top of each other
+            if (count == 0 || timeMs > timesMs[count - 1]) {
+                timesMs[count] = timeMs;
+                accents[count] = schedule.accents[beat];
+                count++;
+            }
+        }
+        beats = new Beats(Arrays.copyOf(timesMs, count), Arrays.copyOf(accents, count));
+    }
+
+    /**
+     * Sets the mapping for a new source, whose audio starts at its beginning. Null silences the
+     * overlay.
+     */
+    public void setTimeline(Timeline timeline) {
+        this.timeline = timeline;
+        setStartPosition(0);
+    }
+
+    /**
+     * Tells the processor the player is about to seek, so the stream restarts at positionMs.
+     */
+    public void setStartPosition(long positionMs) {
+        startPositionMs = positionMs;
+        startGeneration++;
+    }
+
+    @Override
+    protected AudioFormat onConfigure(AudioFormat inputAudioFormat) throws UnhandledAudioFormatException {
+        if (inputAudioFormat.encoding != C.ENCODING_PCM_16BIT) {
+            throw new UnhandledAudioFormatException(inputAudioFormat);
+        }
+        return inputAudioFormat;
+    }
+
+    @Override
+    public void queueInput(ByteBuffer inputBuffer) {
+        int remaining = inputBuffer.remaining();
+        if (remaining == 0) {
+            return;
+        }
+        ByteBuffer output = replaceOutputBuffer(remaining);
+        int sampleRate = inputAudioFormat.sampleRate;
+        int channelCount = inputAudioFormat.channelCount;
+        int bytesPerFrame = channelCount * 2;
+        float gain = volume;
+        Timeline currentTimeline = timeline;
+        Beats currentBeats = beats;
+        short[][] clicks = MetronomeRenderer.getClicks(sampleRate);
+
+        while (inputBuffer.remaining() >= bytesPerFrame) {
+            // A beat can only start on a new millisecond of source time
+            long frame = streamFrame++;
+            if (gain > 0 && currentTimeline != null && frame * 1000 % sampleRate < 1000) {
+                long fileMs = currentTimeline.toFileMs(streamStartMs + frame * 1000 / sampleRate);
+                int beat = fileMs >= 0 ? Arrays.binarySearch(currentBeats.timesMs, fileMs) : -1;
+                // Slowed down, several source milliseconds map to the beat's file millisecond;
+                // only the first of them starts the click
+                if (beat >= 0 && beat != lastBeat) {
+                    click = currentBeats.accents[beat] ? clicks[0] : clicks[1];
+                    clickPosition = 0;
+                }
+                lastBeat = Math.max(beat, -1);
+            }
+
+            if (clickPosition < 0 || gain <= 0) {
+                for (int channel = 0; channel < channelCount; channel++) {
+                    output.putShort(inputBuffer.getShort());
+                }
+                continue;
+            }
+            int sample = (int) (click[clickPosition] * gain);
+            for (int channel = 0; channel < channelCount; channel++) {
+                int mixed = inputBuffer.getShort() + sample;
+                output.putShort((short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, mixed)));
+            }
+            if (++clickPosition >= click.length) {
+                clickPosition = -1;
+            }
+        }
+        output.flip();
+    }
+
+    @Override
+    protected void onQueueEndOfStream() {
+        draining = true;
+    }
+
+    @Override
+    protected void onFlush() {
+        // After a drain with no seek in between, the same stream carries on at a new speed
+        int generation = startGeneration;
+        if (!draining || generation != consumedGeneration) {
+            streamFrame = 0;
+            streamStartMs = startPositionMs;
+            clickPosition = -1;
+            lastBeat = -1;
+        }
+        consumedGeneration = generation;
+        draining = false;
+    }
+
+    @Override
+    protected void onReset() {
+        streamFrame = 0;
+        streamStartMs = 0;
+        clickPosition = -1;
+        lastBeat = -1;
+        draining = false;
+    }
+}
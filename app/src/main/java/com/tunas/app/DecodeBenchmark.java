@@ -0,0 +1,99 @@
+package com.tunas.app;
+
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * On-device benchmark of parallel chunked decoding against the single-threaded path.
+ *
+ * Decodes a 30s selection, a 60s selection (the loop length limit) and the whole file with
+ * 1, 2, 4 and 8 chunks and logs the median wall time of each, together with the device model
+ * and core count, so runs on 4- and 8-core phones can be compared, plus how many of the decodes
+ * found a pooled codec. PCM is counted and discarded so only the decode is measured. Started by
+ * long-pressing the file name in the player; results are logged under the "Tunas" tag.
+ */
+public class DecodeBenchmark {
+
+    private static final int[] CHUNK_COUNTS = {1, 2, 4, 8};
+    private static final long[] RANGE_LENGTHS_US = {30000000, 60000000, Long.MAX_VALUE};
+    private static final int RUNS = 3;
+
+    /**
+     * Runs the benchmark for the file on a background thread.
+     */
+    public static void runInBackground(final File audioFile) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runBenchmark(audioFile);
+                } catch (IOException e) {
+                    Log.e("Tunas", "DecodeBenchmark: failed for " + audioFile.getName(), e);
+                }
+            }
+        }, "TunasDecodeBenchmark");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void runBenchmark(File audioFile) throws IOException {
+        Log.d("Tunas", "DecodeBenchmark: " + Build.MANUFACTURER + " " + Build.MODEL + ", " +
+                Runtime.getRuntime().availableProcessors() + " cores, default parallelism " +
+                ParallelAudioDecoder.getDefaultParallelism() + ", file " + audioFile.getName());
+
+        // Warm up the codec pools so the first measured run doesn't pay for codec creation
+        for (int chunks : CHUNK_COUNTS) {
+            decode(audioFile, 0, 10000000 * chunks, chunks);
+        }
+
+        for (long lengthUs : RANGE_LENGTHS_US) {
+            long singleMs = 0;
+            for (int chunks : CHUNK_COUNTS) {
+                long[] wallTimesMs = new long[RUNS];
+                long pcmBytes = 0;
+                long reusedBefore = AsyncAudioDecoder.getReusedCodecCount();
+                long createdBefore = AsyncAudioDecoder.getCreatedCodecCount();
+                for (int run = 0; run < RUNS; run++) {
+                    long startRealtimeMs = SystemClock.elapsedRealtime();
+                    pcmBytes = decode(audioFile, 0, lengthUs, chunks);
+                    wallTimesMs[run] = SystemClock.elapsedRealtime() - startRealtimeMs;
+                }
+                Arrays.sort(wallTimesMs);
+                long medianMs = wallTimesMs[RUNS / 2];
+                if (chunks == 1) {
+                    singleMs = medianMs;
+                }
+                long reused = AsyncAudioDecoder.getReusedCodecCount() - reusedBefore;
+                long created = AsyncAudioDecoder.getCreatedCodecCount() - createdBefore;
+                Log.d("Tunas", "DecodeBenchmark: " + (lengthUs == Long.MAX_VALUE ? "whole file" : (lengthUs / 1000000) + "s") +
+                        ", " + chunks + " chunk(s): median " + medianMs + "ms, " + pcmBytes + " bytes" +
+                        (chunks > 1 && medianMs > 0 ? String.format(", %.2fx vs single-threaded", singleMs / (double) medianMs) : "") +
+                        ", codec pool hits " + reused + "/" + (reused + created));
+            }
+        }
+    }
+
+    private static long decode(File audioFile, long startUs, long endUs, int maxChunks) throws IOException {
+        final long[] written = new long[1];
+        ParallelAudioDecoder.decode(audioFile, startUs, endUs, maxChunks, new ParallelAudioDecoder.RangeOutput() {
+            @Override
+            public void onFormat(int sampleRate, int channelCount, long rangeBytes) {
+            }
+
+            @Override
+            public void write(ByteBuffer pcm, long byteOffset) {
+                synchronized (written) {
+                    written[0] += pcm.remaining();
+                }
+                pcm.position(pcm.limit());
+            }
+        }, null);
+        return written[0];
+    }
+}
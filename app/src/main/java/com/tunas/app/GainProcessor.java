@@ -0,0 +1,70 @@
+package com.tunas.app;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.audio.BaseAudioProcessor;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Applies a playback gain to 16-bit PCM, as an ExoPlayer audio processor.
+ *
+ * Used for loudness normalization, with the gain LoudnessAnalyzer worked out for the file, so
+ * the cost is one multiply per sample. A new gain is ramped to over RAMP_MS instead of jumping,
+ * since it can arrive mid-playback when an analysis finishes. Samples are clipped to 16 bits.
+ */
+public class GainProcessor extends BaseAudioProcessor {
+
+    private static final int RAMP_MS = 50;
+
+    private volatile float targetGain = 1f;
+
+    // Playback thread only
+    private float gain = 1f;
+
+    /**
+     * Sets the gain, 1 for unchanged audio.
+     */
+    public void setGain(float gain) {
+        targetGain = gain;
+    }
+
+    public float getGain() {
+        return targetGain;
+    }
+
+    @Override
+    protected AudioFormat onConfigure(AudioFormat inputAudioFormat) throws UnhandledAudioFormatException {
+        if (inputAudioFormat.encoding != C.ENCODING_PCM_16BIT) {
+            throw new UnhandledAudioFormatException(inputAudioFormat);
+        }
+        return inputAudioFormat;
+    }
+
+    @Override
+    public void queueInput(ByteBuffer inputBuffer) {
+        int remaining = inputBuffer.remaining();
+        if (remaining == 0) {
+            return;
+        }
+        ByteBuffer output = replaceOutputBuffer(remaining);
+        int channelCount = inputAudioFormat.channelCount;
+        float target = targetGain;
+        float step = 1000f / (RAMP_MS * (float) inputAudioFormat.sampleRate);
+
+        while (inputBuffer.remaining() >= channelCount * 2) {
+            if (gain != target) {
+                gain = gain < target ? Math.min(target, gain + step) : Math.max(target, gain - step);
+            }
+            for (int channel = 0; channel < channelCount; channel++) {
+                int sample = Math.round(inputBuffer.getShort() * gain);
+                output.putShort((short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample)));
+            }
+        }
+        output.flip();
+    }
+
+    @Override
+    protected void onReset() {
+        gain = targetGain;
+    }
+}
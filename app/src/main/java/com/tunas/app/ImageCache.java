@@ -0,0 +1,114 @@
+package com.tunas.app;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Process-wide LRU cache of the tune images, decoded at the size they are shown.
+ *
+ * Images are decoded with a power-of-two inSampleSize so a 12MP score photo shown as a 64dp
+ * thumbnail costs tens of kilobytes instead of tens of megabytes. The decoded bitmaps are
+ * charged to the MemoryBudget, which can have the cache drop them when loops need the heap;
+ * they are cheap to decode again.
+ */
+public class ImageCache {
+
+    private static ImageCache instance;
+
+    private final MemoryBudget budget = MemoryBudget.getInstance();
+    private final MemoryBudget.Account account;
+
+    // Guarded by this
+    private final Map<String, Bitmap> bitmaps = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes;
+
+    public static synchronized ImageCache getInstance() {
+        if (instance == null) {
+            instance = new ImageCache();
+        }
+        return instance;
+    }
+
+    private ImageCache() {
+        account = budget.register("images", MemoryBudget.PRIORITY_IMAGES, new MemoryBudget.Evictable() {
+            @Override
+            public long evict(long bytes) {
+                synchronized (ImageCache.this) {
+                    return evictLeastRecentlyUsed(bytes);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the image decoded to at least widthPx by heightPx (or its full size if smaller),
+     * or null if it can't be decoded. Views drawing a returned bitmap keep it alive after an
+     * eviction, so it is never recycled here.
+     */
+    public Bitmap get(File imageFile, int widthPx, int heightPx) {
+        String key = imageFile.getAbsolutePath() + ":" + widthPx + "x" + heightPx;
+        synchronized (this) {
+            Bitmap cached = bitmaps.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(imageFile.getAbsolutePath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            Log.w("Tunas", "ImageCache: can't decode " + imageFile.getName());
+            return null;
+        }
+        int sampleSize = 1;
+        while (options.outWidth / (sampleSize * 2) >= widthPx && options.outHeight / (sampleSize * 2) >= heightPx) {
+            sampleSize *= 2;
+        }
+        // 4 bytes per ARGB_8888 pixel
+        budget.makeRoom(4L * (options.outWidth / sampleSize) * (options.outHeight / sampleSize), MemoryBudget.PRIORITY_IMAGES);
+
+        options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        Bitmap bitmap = BitmapFactory.decodeFile(imageFile.getAbsolutePath(), options);
+        if (bitmap == null) {
+            Log.w("Tunas", "ImageCache: can't decode " + imageFile.getName());
+            return null;
+        }
+        Log.d("Tunas", "ImageCache: decoded " + imageFile.getName() + " at 1/" + sampleSize + " (" +
+                bitmap.getWidth() + "x" + bitmap.getHeight() + ", " + bitmap.getByteCount() + " bytes)");
+
+        synchronized (this) {
+            Bitmap previous = bitmaps.put(key, bitmap);
+            if (previous != null) {
+                cachedBytes -= previous.getByteCount();
+            }
+            cachedBytes += bitmap.getByteCount();
+            account.setBytes(cachedBytes);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Drops least recently used bitmaps until at least bytes are freed. Must be called holding this.
+     *
+     * @return Bytes freed
+     */
+    private long evictLeastRecentlyUsed(long bytes) {
+        long freed = 0;
+        Iterator<Bitmap> iterator = bitmaps.values().iterator();
+        while (freed < bytes && iterator.hasNext()) {
+            freed += iterator.next().getByteCount();
+            iterator.remove();
+        }
+        cachedBytes -= freed;
+        account.setBytes(cachedBytes);
+        return freed;
+    }
+}
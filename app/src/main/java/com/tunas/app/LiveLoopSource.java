@@ -0,0 +1,436 @@
+package com.tunas.app;
+
+import android.net.Uri;
+import android.util.Log;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.MediaItem;
+import com.google.android.exoplayer2.source.MediaSource;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSourceException;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.TransferListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Endless loop whose start and end points can be moved while it plays.
+ *
+ * The player reads one long raw PCM stream made of epochs. Each epoch starts at a byte position in
+ * the stream and repeats one region's cycle from a given phase. Moving the loop adds an epoch
+ * after the bytes the player has already loaded, so the player is never stopped or prepared:
+ * - if the audio being loaded lies inside the new region too, the new cycle takes over at the
+ *   same file position, which is inaudible;
+ * - if the old cycle only plays inside the new region until it ends, the new cycle starts at
+ *   that loop boundary;
+ * - otherwise, e.g. when the playhead is outside the new region, the new loop starts at the
+ *   playhead and the caller seeks there to drop the buffered audio.
+ * The stream lasts hours, and when the player does repeat it only the latest region is kept.
+ *
+ * For double-buffered playback, queue() lets the current loop play on and hands over to the new
+ * one at its next bar boundary or loop end, never seeking. Every handover logs its switch gap:
+ * 0 samples when the new epoch follows the old one in a single contiguous read, otherwise the
+ * number of samples the player skipped or repeated to get there.
+ */
+public class LiveLoopSource {
+
+    private static final long MAX_STREAM_LENGTH = 1L << 32; // over 6 hours of 44.1kHz stereo
+
+    /**
+     * A selection of the file and the cycle that loops it.
+     */
+    private static class Region {
+        final ByteBuffer[] segments;
+        final long[] segmentStarts;
+        final long cycleLength;
+        final long startFrame;
+        final long clipBytes; // music part of the cycle; an alternating cycle adds a metronome half
+        final long fadeBytes;
+
+        Region(SegmentedPcmSource.Cycle cycle, long startMs, long endMs) {
+            segments = cycle.segments;
+            segmentStarts = new long[segments.length];
+            long start = 0;
+            for (int i = 0; i < segments.length; i++) {
+                segmentStarts[i] = start;
+                start += segments[i].remaining();
+            }
+            cycleLength = cycle.length;
+            int bytesPerFrame = cycle.channelCount * 2;
+            startFrame = AudioLoopUtils.frameAtUs(startMs * 1000, cycle.sampleRate);
+            long endFrame = AudioLoopUtils.frameAtUs(endMs * 1000, cycle.sampleRate);
+            clipBytes = Math.max(bytesPerFrame, Math.min(cycleLength, (endFrame - startFrame) * bytesPerFrame));
+            fadeBytes = AudioLoopUtils.loopFadeBytes((int) Math.min(clipBytes, Integer.MAX_VALUE),
+                    cycle.sampleRate, cycle.channelCount);
+        }
+    }
+
+    /**
+     * Region playing from a stream position on, starting at a phase of its cycle.
+     */
+    private static class Epoch {
+        final long start;
+        final Region region;
+        final long phase;
+
+        Epoch(long start, Region region, long phase) {
+            this.start = start;
+            this.region = region;
+            this.phase = phase;
+        }
+
+        long phaseAt(long position) {
+            return (position - start + phase) % region.cycleLength;
+        }
+    }
+
+    private final File audioFile;
+    private final int sampleRate;
+    private final int channelCount;
+    private final int bytesPerFrame;
+    private final long streamLength;
+    private final MediaSource mediaSource;
+
+    // Guarded by this
+    private final List<Epoch> epochs = new ArrayList<>();
+    private long loadPosition;  // stream position of the last byte handed to the player
+    private boolean opened;
+    private Epoch lastReadEpoch;
+    private long lastReadEnd;   // unlike loadPosition, kept across opens
+    private long lastSwitchGapFrames = -1;
+
+    /**
+     * Creates a live loop over the cycle, which loops [startMs, endMs) of the file.
+     */
+    public static LiveLoopSource create(File audioFile, SegmentedPcmSource.Cycle cycle, long startMs, long endMs) {
+        return new LiveLoopSource(audioFile, cycle, startMs, endMs);
+    }
+
+    /**
+     * Returns the live loop behind the media source, or null if it is not a live loop.
+     */
+    public static LiveLoopSource fromMediaSource(MediaSource mediaSource) {
+        MediaItem.LocalConfiguration localConfiguration = mediaSource.getMediaItem().localConfiguration;
+        if (localConfiguration != null && localConfiguration.tag instanceof LiveLoopSource) {
+            return (LiveLoopSource) localConfiguration.tag;
+        }
+        return null;
+    }
+
+    private LiveLoopSource(File audioFile, SegmentedPcmSource.Cycle cycle, long startMs, long endMs) {
+        this.audioFile = audioFile;
+        this.sampleRate = cycle.sampleRate;
+        this.channelCount = cycle.channelCount;
+        this.bytesPerFrame = channelCount * 2;
+        this.streamLength = MAX_STREAM_LENGTH / bytesPerFrame * bytesPerFrame;
+        epochs.add(new Epoch(0, new Region(cycle, startMs, endMs), 0));
+
+        MediaItem mediaItem = new MediaItem.Builder()
+                .setUri("live_loop")
+                .setTag(this)
+                .build();
+        this.mediaSource = RawPcmExtractor.createMediaSource(mediaItem, new DataSource.Factory() {
+            @Override
+            public DataSource createDataSource() {
+                return new LiveLoopDataSource();
+            }
+        }, sampleRate, channelCount, streamLength);
+    }
+
+    public MediaSource getMediaSource() {
+        return mediaSource;
+    }
+
+    /**
+     * Whether a cycle can be played by this loop, i.e. it comes from the same file in the same
+     * format.
+     */
+    public boolean canPlay(File audioFile, SegmentedPcmSource.Cycle cycle) {
+        return this.audioFile.equals(audioFile) && cycle.sampleRate == sampleRate && cycle.channelCount == channelCount
+                && cycle.length >= bytesPerFrame;
+    }
+
+    /**
+     * Moves the loop to [startMs, endMs) of the file, looped by the cycle.
+     *
+     * @param playerPositionMs The player's current position in this source
+     * @param playing Whether the player is playing; a paused loop moves to the new start at once
+     * @return Player position to seek to so the change is heard right away, or -1 if the
+     *         player can keep playing and will pick the change up by itself
+     */
+    public synchronized long update(SegmentedPcmSource.Cycle cycle, long startMs, long endMs,
+                                    long playerPositionMs, boolean playing) {
+        Region next = new Region(cycle, startMs, endMs);
+        long playhead = toStreamPosition(playerPositionMs);
+        Epoch atPlayhead = epochAt(playhead);
+        long playheadFrame = musicFrameAt(atPlayhead, playhead, false);
+
+        if (!playing || (playheadFrame >= 0 && !contains(next, playheadFrame, false))) {
+            return restartAt(playhead, next, 0, playing ? "playhead outside the new region" : "while paused");
+        }
+
+        long load = Math.max(loadPosition, playhead);
+        Epoch atLoad = epochAt(load);
+        long loadFrame = musicFrameAt(atLoad, load, true);
+        if (loadFrame >= 0 && contains(next, loadFrame, true)) {
+            // The same file position plays either way, so the switch is inaudible
+            return switchAt(load, playhead, next, (loadFrame - next.startFrame) * bytesPerFrame, "seamlessly");
+        }
+
+        Region current = atPlayhead.region;
+        long playheadPhase = atPlayhead.phaseAt(playhead);
+        long boundary = load + (current.cycleLength - atPlayhead.phaseAt(load)) % current.cycleLength;
+        boolean samePass = atLoad == atPlayhead && boundary - playhead <= current.cycleLength - playheadPhase;
+        boolean staysInside = playheadFrame < 0 ||
+                current.startFrame + current.clipBytes / bytesPerFrame <= next.startFrame + next.clipBytes / bytesPerFrame;
+        if (samePass && staysInside) {
+            return switchAt(boundary, playhead, next, 0, "at the loop boundary");
+        }
+
+        // The loaded audio already runs past the new end, so replace it from the playhead on
+        long phase = playheadFrame >= 0 ? (playheadFrame - next.startFrame) * bytesPerFrame : 0;
+        return restartAt(playhead, next, phase, "buffered audio runs past the new region");
+    }
+
+    /**
+     * Moves the loop to [startMs, endMs) of the file without interrupting the current one: it
+     * plays on until the first handover point the player hasn't loaded yet, a bar boundary inside
+     * it or its loop end, and the new loop starts there. A later call replaces a handover that
+     * hasn't happened yet.
+     *
+     * @param playerPositionMs The player's current position in this source
+     * @param barStartsMs Bar start times in the file, or null to hand over at the loop end only
+     * @return Player position at which the new loop starts
+     */
+    public synchronized long queue(SegmentedPcmSource.Cycle cycle, long startMs, long endMs,
+                                   long playerPositionMs, long[] barStartsMs) {
+        Region next = new Region(cycle, startMs, endMs);
+        long playhead = toStreamPosition(playerPositionMs);
+        long load = Math.max(loadPosition, playhead);
+        Epoch atLoad = epochAt(load);
+        Region current = atLoad.region;
+        long loadPhase = atLoad.phaseAt(load);
+
+        long handover = load + (current.cycleLength - loadPhase) % current.cycleLength;
+        String reason = "at the loop end";
+        if (barStartsMs != null) {
+            for (long barStartMs : barStartsMs) {
+                long barPhase = (AudioLoopUtils.frameAtUs(barStartMs * 1000, sampleRate) - current.startFrame) * bytesPerFrame;
+                // Phase 0 is the loop end, already a candidate
+                if (barPhase <= 0 || barPhase >= current.clipBytes) {
+                    continue;
+                }
+                long barPosition = load + Math.floorMod(barPhase - loadPhase, current.cycleLength);
+                if (barPosition < handover) {
+                    handover = barPosition;
+                    reason = "at the next bar";
+                }
+            }
+        }
+        switchAt(handover, playhead, next, 0, "double-buffered " + reason);
+        return toPlayerPositionMs(handover);
+    }
+
+    /**
+     * Samples per channel skipped or repeated at the last handover the player read, 0 for a
+     * gapless one, or -1 if there hasn't been one.
+     */
+    public synchronized long getLastSwitchGapFrames() {
+        return lastSwitchGapFrames;
+    }
+
+    /**
+     * Absolute position in the file of the audio at the player position; the metronome half of
+     * an alternating cycle maps onto the music, like the player's position does.
+     */
+    public synchronized long getAbsolutePositionMs(long playerPositionMs) {
+        long position = toStreamPosition(playerPositionMs);
+        Epoch epoch = epochAt(position);
+        long frame = epoch.region.startFrame + epoch.phaseAt(position) % epoch.region.clipBytes / bytesPerFrame;
+        return frame * 1000 / sampleRate;
+    }
+
+    /**
+     * Player position at which the current region plays offsetMs into its music.
+     */
+    public synchronized long getSeekPositionMs(long offsetMs) {
+        Epoch latest = epochs.get(epochs.size() - 1);
+        Region region = latest.region;
+        long target = Math.max(0, Math.min(offsetMs * sampleRate / 1000 * bytesPerFrame, region.clipBytes - bytesPerFrame));
+        long position = latest.start + Math.floorMod(target - latest.phase, region.cycleLength);
+        return toPlayerPositionMs(position);
+    }
+
+    private long restartAt(long position, Region next, long phase, String reason) {
+        switchAt(position, position, next, phase, reason);
+        return toPlayerPositionMs(position);
+    }
+
+    private long switchAt(long position, long playhead, Region next, long phase, String reason) {
+        // Epochs from the switch on are replaced, and those the playhead has left are dropped
+        while (epochs.size() > 1 && epochs.get(epochs.size() - 1).start >= position) {
+            epochs.remove(epochs.size() - 1);
+        }
+        if (epochs.get(0).start >= position) {
+            epochs.clear();
+        }
+        while (epochs.size() > 1 && epochs.get(1).start <= playhead) {
+            epochs.remove(0);
+        }
+        epochs.add(new Epoch(position, next, phase));
+        Log.d("Tunas", "LiveLoopSource: loop moved " + reason + " at " + toPlayerPositionMs(position) + "ms, " +
+                next.cycleLength + " bytes per cycle");
+        return -1;
+    }
+
+    private long toStreamPosition(long playerPositionMs) {
+        return Math.min(playerPositionMs * sampleRate / 1000, streamLength / bytesPerFrame - 1) * bytesPerFrame;
+    }
+
+    /**
+     * Rounds up, so that the player lands on or after the position when it seeks there.
+     */
+    private long toPlayerPositionMs(long position) {
+        long frame = position / bytesPerFrame;
+        return (frame * 1000 + sampleRate - 1) / sampleRate;
+    }
+
+    private Epoch epochAt(long position) {
+        for (int i = epochs.size() - 1; i > 0; i--) {
+            if (epochs.get(i).start <= position) {
+                return epochs.get(i);
+            }
+        }
+        return epochs.get(0);
+    }
+
+    /**
+     * File frame playing at the stream position, or -1 in the metronome half (or, when
+     * excludeFades is set, in the faded edges of the cycle).
+     */
+    private long musicFrameAt(Epoch epoch, long position, boolean excludeFades) {
+        Region region = epoch.region;
+        long phase = epoch.phaseAt(position);
+        long margin = excludeFades ? region.fadeBytes : 0;
+        if (phase < margin || phase >= region.clipBytes - margin) {
+            return -1;
+        }
+        return region.startFrame + phase / bytesPerFrame;
+    }
+
+    private boolean contains(Region region, long frame, boolean excludeFades) {
+        long margin = excludeFades ? region.fadeBytes / bytesPerFrame : 0;
+        return frame >= region.startFrame + margin && frame < region.startFrame + region.clipBytes / bytesPerFrame - margin;
+    }
+
+    /**
+     * Copies stream bytes from position into the buffer, up to the end of the current segment
+     * or epoch. Returns the number of bytes copied.
+     */
+    synchronized int read(long position, byte[] buffer, int offset, int readLength) {
+        int index = epochs.size() - 1;
+        while (index > 0 && epochs.get(index).start > position) {
+            index--;
+        }
+        Epoch epoch = epochs.get(index);
+        long epochEnd = index + 1 < epochs.size() ? epochs.get(index + 1).start : streamLength;
+
+        Region region = epoch.region;
+        long phase = epoch.phaseAt(position);
+        int segment = region.segments.length - 1;
+        while (region.segmentStarts[segment] > phase) {
+            segment--;
+        }
+        ByteBuffer source = region.segments[segment].duplicate();
+        int positionInSegment = (int) (phase - region.segmentStarts[segment]);
+        int length = (int) Math.min(Math.min(readLength, source.limit() - positionInSegment), epochEnd - position);
+        source.position(positionInSegment);
+        source.get(buffer, offset, length);
+
+        // The first read of a later epoch is its handover; a read straight after the previous one
+        // means the player hears the two loops back to back
+        if (lastReadEpoch != null && epoch != lastReadEpoch && epochs.indexOf(lastReadEpoch) < index) {
+            lastSwitchGapFrames = Math.abs(position - lastReadEnd) / bytesPerFrame;
+            Log.d("Tunas", "LiveLoopSource: switch gap " + lastSwitchGapFrames + " samples at " +
+                    toPlayerPositionMs(position) + "ms" + (lastSwitchGapFrames == 0 ? " (gapless)" : " (after a seek)"));
+        }
+        lastReadEpoch = epoch;
+        lastReadEnd = position + length;
+        loadPosition = position + length;
+        return length;
+    }
+
+    synchronized void onOpen(long position) {
+        // A read from the top means the player repeated the stream; only the latest region is left
+        if (opened && position == 0 && epochs.size() > 1) {
+            Epoch latest = epochs.get(epochs.size() - 1);
+            epochs.clear();
+            epochs.add(new Epoch(0, latest.region, 0));
+            lastReadEpoch = null;
+        }
+        opened = true;
+        loadPosition = position;
+    }
+
+    /**
+     * Serves the epochs.
+     */
+    private class LiveLoopDataSource implements DataSource {
+        private long position;
+        private long bytesRemaining;
+        private boolean opened;
+
+        @Override
+        public long open(DataSpec dataSpec) throws IOException {
+            position = dataSpec.position;
+            if (position > streamLength) {
+                throw new DataSourceException(DataSourceException.POSITION_OUT_OF_RANGE);
+            }
+            bytesRemaining = streamLength - position;
+            if (dataSpec.length != C.LENGTH_UNSET) {
+                bytesRemaining = Math.min(bytesRemaining, dataSpec.length);
+            }
+            onOpen(position);
+            opened = true;
+            return bytesRemaining;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int readLength) throws IOException {
+            if (!opened) {
+                throw new IOException("DataSource not opened");
+            }
+            if (readLength == 0) {
+                return 0;
+            }
+            if (bytesRemaining == 0) {
+                return C.RESULT_END_OF_INPUT;
+            }
+            readLength = (int) Math.min(readLength, bytesRemaining);
+
+            int length = LiveLoopSource.this.read(position, buffer, offset, readLength);
+            position += length;
+            bytesRemaining -= length;
+            return length;
+        }
+
+        @Override
+        public Uri getUri() {
+            return Uri.parse("live_loop");
+        }
+
+        @Override
+        public void close() {
+            opened = false;
+        }
+
+        @Override
+        public void addTransferListener(TransferListener transferListener) {
+            // No-op for in-memory data source
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package com.tunas.app;
+
+import android.content.Context;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.OperationCanceledException;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Idle-time prefetcher for the loops the user is likely to select next.
+ *
+ * Rendered loop cycles (decoded, faded and, in alternating mode, followed by the metronome
+ * segment) are kept in a small LRU cache bounded by a memory ceiling and by the MemoryBudget,
+ * which has it give cycles back first whenever anything else needs the heap. Once the selection
+ * has been idle for a moment, the candidates supplied by the player are rendered one by one on
+ * a lowest-priority thread. Any new selection cancels the running prefetch so it never competes
+ * with the foreground build. Hit/miss counters are logged to tune how aggressive it is.
+ */
+public class LoopPrefetcher {
+
+    private static final long IDLE_DELAY_MS = 1500;
+    private static final int MEMORY_CEILING_FRACTION = 8; // share of the max heap used for prefetched cycles
+
+    /**
+     * A loop range worth rendering ahead of time.
+     */
+    public static class Candidate {
+        public final File audioFile;
+        public final long startMs;
+        public final long endMs;
+        public final long[] metronomeBarOffsetsMs; // null for a plain music loop
+
+        public Candidate(File audioFile, long startMs, long endMs, long[] metronomeBarOffsetsMs) {
+            this.audioFile = audioFile;
+            this.startMs = startMs;
+            this.endMs = endMs;
+            this.metronomeBarOffsetsMs = metronomeBarOffsetsMs;
+        }
+    }
+
+    private final Context context;
+    private final long memoryCeilingBytes;
+    private final MemoryBudget budget = MemoryBudget.getInstance();
+    private final MemoryBudget.Account account;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+                    r.run();
+                }
+            }, "TunasPrefetch");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    // Guarded by this
+    private final Map<String, AudioLoopUtils.LoopCycle> cycles = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes;
+    private int hitCount;
+    private int missCount;
+    private int prefetchCount;
+
+    // Main-thread state
+    private Runnable pendingStart;
+    private CancellationSignal inFlightSignal;
+
+    public LoopPrefetcher(Context context) {
+        this.context = context.getApplicationContext();
+        this.memoryCeilingBytes = Runtime.getRuntime().maxMemory() / MEMORY_CEILING_FRACTION;
+        this.account = budget.register("prefetch", MemoryBudget.PRIORITY_PREFETCH, new MemoryBudget.Evictable() {
+            @Override
+            public long evict(long bytes) {
+                synchronized (LoopPrefetcher.this) {
+                    return evictLeastRecentlyUsed(bytes, null);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the rendered cycle for the range, from the prefetch cache if possible. Cycles
+     * rendered on a miss are cached too, so jumping back to a previous loop is also instant.
+     */
+    public AudioLoopUtils.LoopCycle getOrRender(File audioFile, long startMs, long endMs, long[] metronomeBarOffsetsMs,
+                                                CancellationSignal cancellationSignal) throws IOException {
+        AudioLoopUtils.LoopCycle cycle = lookup(audioFile, startMs, endMs, metronomeBarOffsetsMs);
+        if (cycle != null) {
+            return cycle;
+        }
+
+        cycle = AudioLoopUtils.renderLoopCycle(
+                context, audioFile, startMs, endMs, metronomeBarOffsetsMs, cancellationSignal);
+        offer(audioFile, startMs, endMs, metronomeBarOffsetsMs, cycle);
+        return cycle;
+    }
+
+    /**
+     * Returns the cached cycle for the range or null, counting the lookup as a hit or miss.
+     */
+    public synchronized AudioLoopUtils.LoopCycle lookup(File audioFile, long startMs, long endMs, long[] metronomeBarOffsetsMs) {
+        AudioLoopUtils.LoopCycle cycle = cycles.get(keyFor(audioFile, startMs, endMs, metronomeBarOffsetsMs));
+        if (cycle != null) {
+            hitCount++;
+            logStats("hit");
+        } else {
+            missCount++;
+            logStats("miss");
+        }
+        return cycle;
+    }
+
+    /**
+     * Adds a cycle rendered elsewhere (e.g. by a streaming source) to the cache.
+     */
+    public void offer(File audioFile, long startMs, long endMs, long[] metronomeBarOffsetsMs, AudioLoopUtils.LoopCycle cycle) {
+        put(keyFor(audioFile, startMs, endMs, metronomeBarOffsetsMs), cycle);
+    }
+
+    /**
+     * Cancels any running prefetch. Called before a foreground build so the two never compete.
+     * Must be called on the main thread.
+     */
+    public void cancel() {
+        if (pendingStart != null) {
+            mainHandler.removeCallbacks(pendingStart);
+            pendingStart = null;
+        }
+        if (inFlightSignal != null) {
+            inFlightSignal.cancel();
+            inFlightSignal = null;
+        }
+    }
+
+    /**
+     * Replaces the prefetch queue with the given candidates, most likely first. Rendering
+     * starts after the selection has been idle for IDLE_DELAY_MS. Must be called on the main thread.
+     */
+    public void schedule(List<Candidate> candidates) {
+        cancel();
+        if (candidates.isEmpty()) {
+            return;
+        }
+
+        final List<Candidate> queue = new ArrayList<>(candidates);
+        pendingStart = new Runnable() {
+            @Override
+            public void run() {
+                pendingStart = null;
+                final CancellationSignal signal = new CancellationSignal();
+                inFlightSignal = signal;
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        prefetch(queue, signal);
+                    }
+                });
+            }
+        };
+        mainHandler.postDelayed(pendingStart, IDLE_DELAY_MS);
+    }
+
+    private void prefetch(List<Candidate> queue, CancellationSignal signal) {
+        for (Candidate candidate : queue) {
+            if (signal.isCanceled()) {
+                return;
+            }
+            String key = keyFor(candidate.audioFile, candidate.startMs, candidate.endMs, candidate.metronomeBarOffsetsMs);
+            synchronized (this) {
+                if (cycles.containsKey(key)) {
+                    continue;
+                }
+            }
+            try {
+                AudioLoopUtils.LoopCycle cycle = AudioLoopUtils.renderLoopCycle(context, candidate.audioFile,
+                        candidate.startMs, candidate.endMs, candidate.metronomeBarOffsetsMs, signal);
+                put(key, cycle);
+                synchronized (this) {
+                    prefetchCount++;
+                }
+                Log.d("Tunas", "LoopPrefetcher: prefetched " + candidate.startMs + "-" + candidate.endMs + "ms (" +
+                        cycle.pcm.length + " bytes)");
+            } catch (OperationCanceledException e) {
+                Log.d("Tunas", "LoopPrefetcher: prefetch canceled");
+                return;
+            } catch (IOException e) {
+                Log.e("Tunas", "LoopPrefetcher: prefetch failed for " + candidate.startMs + "-" + candidate.endMs + "ms", e);
+            }
+        }
+    }
+
+    private synchronized void put(String key, AudioLoopUtils.LoopCycle cycle) {
+        if (cycle.pcm.length > memoryCeilingBytes) {
+            return;
+        }
+        AudioLoopUtils.LoopCycle previous = cycles.put(key, cycle);
+        if (previous != null) {
+            cachedBytes -= previous.pcm.length;
+        }
+        cachedBytes += cycle.pcm.length;
+        account.setBytes(cachedBytes);
+
+        // Evict least recently used cycles until we are back under the ceiling and the budget.
+        // Prefetched cycles have the lowest priority, so nothing else is evicted for them.
+        long excess = Math.max(cachedBytes - memoryCeilingBytes, budget.getUsedBytes() - budget.getBudgetBytes());
+        if (excess > 0) {
+            evictLeastRecentlyUsed(excess, cycle);
+        }
+        if (budget.isOverBudget()) {
+            cycles.remove(key);
+            cachedBytes -= cycle.pcm.length;
+            account.setBytes(cachedBytes);
+        }
+    }
+
+    /**
+     * Drops least recently used cycles other than keep until at least bytes are freed.
+     * Must be called holding this.
+     *
+     * @return Bytes freed
+     */
+    private long evictLeastRecentlyUsed(long bytes, AudioLoopUtils.LoopCycle keep) {
+        long freed = 0;
+        Iterator<AudioLoopUtils.LoopCycle> iterator = cycles.values().iterator();
+        while (freed < bytes && iterator.hasNext()) {
+            AudioLoopUtils.LoopCycle eldest = iterator.next();
+            if (eldest == keep) {
+                continue;
+            }
+            freed += eldest.pcm.length;
+            iterator.remove();
+        }
+        cachedBytes -= freed;
+        account.setBytes(cachedBytes);
+        return freed;
+    }
+
+    public synchronized int getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return missCount;
+    }
+
+    private void logStats(String event) {
+        int lookups = hitCount + missCount;
+        Log.d("Tunas", "LoopPrefetcher: " + event + " (hits=" + hitCount + ", misses=" + missCount +
+                ", hitRate=" + (lookups > 0 ? (100 * hitCount / lookups) : 0) + "%, prefetched=" + prefetchCount +
+                ", cached=" + cycles.size() + " cycles/" + cachedBytes + " of " + memoryCeilingBytes + " bytes)");
+    }
+
+    /**
+     * Cancels outstanding work, drops all cached cycles and stops the prefetch thread.
+     */
+    public void release() {
+        cancel();
+        executor.shutdownNow();
+        budget.unregister(account);
+        synchronized (this) {
+            cycles.clear();
+            cachedBytes = 0;
+        }
+    }
+
+    private static String keyFor(File audioFile, long startMs, long endMs, long[] metronomeBarOffsetsMs) {
+        String key = audioFile.getAbsolutePath() + ":" + startMs + "-" + endMs;
+        if (metronomeBarOffsetsMs != null) {
+            key += ":metronome" + Arrays.hashCode(metronomeBarOffsetsMs);
+        }
+        return key;
+    }
+}
@@ -0,0 +1,298 @@
+package com.tunas.app;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Background loudness analysis of whole audio files, for normalized playback.
+ *
+ * Each file's PCM is streamed, in order, through a Meter that measures its integrated loudness
+ * (ITU-R BS.1770: K-weighted, gated 400ms blocks) and sample peak, so nothing is held in memory
+ * but the per-100ms block energies. PCM WAVs are read from their file mapping, anything else
+ * from the PCM cache mapping, which the player fills for every compressed file it opens, so
+ * no file is decoded just to be measured. Results are stored with the file's descriptor in
+ * AudioFileRegistry, so each file is only analyzed once and playback never measures anything.
+ */
+public class LoudnessAnalyzer {
+
+    public static final float TARGET_LOUDNESS_LUFS = -16f;
+    private static final float MAX_GAIN_DB = 12f;
+    private static final float MAX_PEAK = 0.98f; // normalized peaks stay just under full scale
+    private static final int STREAM_CHUNK_MS = 1000; // chunk size when reading mapped PCM
+
+    /**
+     * Receives the end of an analysis on the main thread.
+     */
+    public interface Listener {
+        void onAnalyzed(File audioFile);
+    }
+
+    private static LoudnessAnalyzer instance;
+
+    private final Context context;
+    private final AudioFileRegistry registry;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Set<String> pendingAnalyses = Collections.synchronizedSet(new HashSet<String>());
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "TunasLoudness");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    public static synchronized LoudnessAnalyzer getInstance(Context context) {
+        if (instance == null) {
+            instance = new LoudnessAnalyzer(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private LoudnessAnalyzer(Context context) {
+        this.context = context;
+        this.registry = AudioFileRegistry.getInstance(context);
+    }
+
+    /**
+     * Gain that brings a file of the given loudness to TARGET_LOUDNESS_LUFS, limited so its peak
+     * doesn't clip and so quiet files are boosted by at most MAX_GAIN_DB.
+     */
+    public static float normalizationGain(float integratedLoudnessLufs, float peak) {
+        float gain = (float) Math.pow(10.0, Math.min(MAX_GAIN_DB, TARGET_LOUDNESS_LUFS - integratedLoudnessLufs) / 20.0);
+        if (peak > 0) {
+            gain = Math.min(gain, MAX_PEAK / peak);
+        }
+        return gain;
+    }
+
+    /**
+     * Schedules a background analysis of the file if it has not been analyzed yet. The listener
+     * is called once the results are in the registry, and not at all if they already were.
+     */
+    public void analyzeInBackground(final File audioFile, final Listener listener) {
+        final String key = audioFile.getAbsolutePath();
+        if (!pendingAnalyses.add(key)) {
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (!registry.get(audioFile).loudnessAnalyzed) {
+                        analyze(audioFile);
+                        mainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                listener.onAnalyzed(audioFile);
+                            }
+                        });
+                    }
+                } catch (IOException e) {
+                    Log.e("Tunas", "LoudnessAnalyzer: failed to analyze " + audioFile.getName(), e);
+                } finally {
+                    pendingAnalyses.remove(key);
+                }
+            }
+        });
+    }
+
+    private void analyze(File audioFile) throws IOException {
+        long startRealtimeMs = SystemClock.elapsedRealtime();
+
+        // WAVs are mapped as they are; anything else is streamed from the PCM cache
+        ByteBuffer pcm;
+        int sampleRate;
+        int channelCount;
+        WavFile wav = WavFile.open(audioFile);
+        if (wav != null) {
+            pcm = wav.slice(0, wav.getDurationMs() + 1);
+            sampleRate = wav.sampleRate;
+            channelCount = wav.channelCount;
+        } else {
+            PcmCache.CachedPcm cached = PcmCache.getInstance(context).getBlocking(audioFile, null);
+            pcm = cached.sliceView(0, cached.getFrameCount() * 1000 / cached.sampleRate);
+            sampleRate = cached.sampleRate;
+            channelCount = cached.channelCount;
+        }
+
+        Meter meter = new Meter(sampleRate, channelCount);
+        int chunkBytes = sampleRate * STREAM_CHUNK_MS / 1000 * channelCount * 2;
+        for (int position = 0; position < pcm.limit(); position += chunkBytes) {
+            ByteBuffer chunk = pcm.duplicate();
+            chunk.position(position);
+            chunk.limit(Math.min(pcm.limit(), position + chunkBytes));
+            meter.add(chunk);
+        }
+
+        float loudness = meter.getIntegratedLoudness();
+        float peak = meter.getPeak();
+        registry.setLoudness(audioFile, loudness, peak);
+        Log.d("Tunas", "LoudnessAnalyzer: " + audioFile.getName() + " " + String.format("%.1f LUFS, peak %.1f dBFS",
+                loudness, 20 * Math.log10(Math.max(peak, 1e-5f))) + ", gain " +
+                String.format("%.1f dB", 20 * Math.log10(normalizationGain(loudness, peak))) + ", analyzed in " +
+                (SystemClock.elapsedRealtime() - startRealtimeMs) + "ms");
+    }
+
+    /**
+     * Streaming BS.1770 loudness and sample peak meter for 16-bit PCM.
+     *
+     * Samples go through the K-weighting filter (a high shelf and a high-pass biquad, with
+     * coefficients for the actual sample rate) and their energy is summed per 100ms. Gating
+     * only needs those sums: a 400ms block is four of them, blocks overlap by 75%.
+     */
+    static class Meter {
+        private static final float ABSOLUTE_GATE_LUFS = -70f;
+        private static final float RELATIVE_GATE_LU = -10f;
+
+        private final int channelCount;
+        private final int subBlockFrames;
+        private final double[] shelf = new double[5]; // b0, b1, b2, a1, a2
+        private final double[] highPass = new double[5];
+        private final double[] state;                 // per channel: shelf x1 x2 y1 y2, high-pass y1 y2
+        private double[] subBlockEnergies = new double[256];
+        private int subBlockCount;
+        private double energy;                        // of the sub-block being filled
+        private int framesInSubBlock;
+        private int peakSample;
+
+        Meter(int sampleRate, int channelCount) {
+            this.channelCount = channelCount;
+            this.subBlockFrames = Math.max(1, sampleRate / 10);
+            this.state = new double[channelCount * 6];
+
+            double k = Math.tan(Math.PI * 1681.974450955533 / sampleRate);
+            double q = 0.7071752369554196;
+            double vh = Math.pow(10.0, 3.999843853973347 / 20.0);
+            double vb = Math.pow(vh, 0.4996667741545416);
+            double a0 = 1.0 + k / q + k * k;
+            shelf[0] = (vh + vb * k / q + k * k) / a0;
+            shelf[1] = 2.0 * (k * k - vh) / a0;
+            shelf[2] = (vh - vb * k / q + k * k) / a0;
+            shelf[3] = 2.0 * (k * k - 1.0) / a0;
+            shelf[4] = (1.0 - k / q + k * k) / a0;
+
+            k = Math.tan(Math.PI * 38.13547087602444 / sampleRate);
+            q = 0.5003270373238773;
+            a0 = 1.0 + k / q + k * k;
+            highPass[0] = 1.0;
+            highPass[1] = -2.0;
+            highPass[2] = 1.0;
+            highPass[3] = 2.0 * (k * k - 1.0) / a0;
+            highPass[4] = (1.0 - k / q + k * k) / a0;
+        }
+
+        /**
+         * Adds the PCM between the buffer's position and limit, without moving them.
+         */
+        void add(ByteBuffer pcm) {
+            ByteBuffer samples = pcm.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            int frames = samples.remaining() / (channelCount * 2);
+            for (int frame = 0; frame < frames; frame++) {
+                for (int channel = 0; channel < channelCount; channel++) {
+                    int sample = samples.getShort();
+                    peakSample = Math.max(peakSample, Math.abs(sample));
+                    energy += square(filter(channel, sample / 32768.0));
+                }
+                if (++framesInSubBlock == subBlockFrames) {
+                    if (subBlockCount == subBlockEnergies.length) {
+                        subBlockEnergies = Arrays.copyOf(subBlockEnergies, subBlockCount * 2);
+                    }
+                    subBlockEnergies[subBlockCount++] = energy;
+                    energy = 0;
+                    framesInSubBlock = 0;
+                }
+            }
+        }
+
+        private double filter(int channel, double x) {
+            int s = channel * 6;
+            double y = shelf[0] * x + shelf[1] * state[s] + shelf[2] * state[s + 1]
+                    - shelf[3] * state[s + 2] - shelf[4] * state[s + 3];
+            state[s + 1] = state[s];
+            state[s] = x;
+            // The high-pass input is the shelf output, so it shares the shelf's output history
+            double z = highPass[0] * y + highPass[1] * state[s + 2] + highPass[2] * state[s + 3]
+                    - highPass[3] * state[s + 4] - highPass[4] * state[s + 5];
+            state[s + 3] = state[s + 2];
+            state[s + 2] = y;
+            state[s + 5] = state[s + 4];
+            state[s + 4] = z;
+            return z;
+        }
+
+        /**
+         * Integrated loudness in LUFS of everything added so far, ABSOLUTE_GATE_LUFS if it is
+         * all silence or shorter than one block.
+         */
+        float getIntegratedLoudness() {
+            int blockCount = subBlockCount - 3;
+            if (blockCount <= 0) {
+                return ABSOLUTE_GATE_LUFS;
+            }
+            double[] blockPowers = new double[blockCount];
+            for (int block = 0; block < blockCount; block++) {
+                double sum = subBlockEnergies[block] + subBlockEnergies[block + 1] +
+                        subBlockEnergies[block + 2] + subBlockEnergies[block + 3];
+                blockPowers[block] = sum / (4.0 * subBlockFrames);
+            }
+            double relativeGate = loudnessOf(gatedMean(blockPowers, powerOf(ABSOLUTE_GATE_LUFS))) + RELATIVE_GATE_LU;
+            double gate = Math.max(powerOf(ABSOLUTE_GATE_LUFS), powerOf(relativeGate));
+            double power = gatedMean(blockPowers, gate);
+            return power > 0 ? (float) loudnessOf(power) : ABSOLUTE_GATE_LUFS;
+        }
+
+        /**
+         * Sample peak, 0 to 1 of full scale.
+         */
+        float getPeak() {
+            return Math.min(1f, peakSample / 32768f);
+        }
+
+        private static double gatedMean(double[] blockPowers, double gate) {
+            double sum = 0;
+            int count = 0;
+            for (double power : blockPowers) {
+                if (power > gate) {
+                    sum += power;
+                    count++;
+                }
+            }
+            return count > 0 ? sum / count : 0;
+        }
+
+        private static double loudnessOf(double power) {
+            return -0.691 + 10.0 * Math.log10(Math.max(power, 1e-12));
+        }
+
+        private static double powerOf(double loudness) {
+            return Math.pow(10.0, (loudness + 0.691) / 10.0);
+        }
+
+        private static double square(double x) {
+            return x * x;
+        }
+    }
+}
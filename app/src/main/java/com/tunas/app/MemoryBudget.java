@@ -0,0 +1,207 @@
+package com.tunas.app;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Process-wide budget for the PCM and images the app keeps on the heap.
+ *
+ * Every holder of large heap buffers has an Account with a priority and keeps its size up to
+ * date: the loop prefetch cache, the stretched loop cache, the image cache and the PCM of the
+ * source that is playing. Before a large buffer is allocated, makeRoom() has lower-priority
+ * caches drop their least recently used entries, lowest priority first, until it fits, so
+ * heap pressure costs the prefetcher its guesses instead of ending in an OutOfMemoryError.
+ * chooseLoopStorage() decides from what is left whether a loop's PCM goes on the heap or is
+ * served from a file mapping (the WAV itself or the PCM cache), which costs no heap at all.
+ *
+ * Sizes are read without locking the accounts' owners, and owners are only called back to
+ * evict while the budget holds no lock, so caches can use the budget from inside their own
+ * code without lock ordering problems.
+ */
+public class MemoryBudget {
+
+    public static final int PRIORITY_PREFETCH = 0; // predicted loops, cheapest to lose
+    public static final int PRIORITY_IMAGES = 1;
+    public static final int PRIORITY_RENDERED = 2; // stretched and transposed loops
+    public static final int PRIORITY_PLAYING = 3;  // the current source, never evicted
+
+    private static final int BUDGET_FRACTION = 2;     // share of the max heap for PCM and images
+    private static final int MAX_BUFFER_FRACTION = 8; // share of the budget one heap buffer may take
+
+    /**
+     * Where a loop's PCM is kept.
+     */
+    public enum Storage {
+        HEAP,   // rendered into a byte array, can be prefetched, stretched and moved in place
+        MAPPED  // sliced from a memory-mapped WAV or PCM cache entry, paged in by the OS
+    }
+
+    /**
+     * Frees cached entries on request.
+     */
+    public interface Evictable {
+        /**
+         * Drops least recently used entries until at least bytes are freed or nothing is left.
+         *
+         * @return Bytes freed
+         */
+        long evict(long bytes);
+    }
+
+    /**
+     * One holder's share of the budget.
+     */
+    public static class Account {
+        final String name;
+        final int priority;
+        final Evictable evictable;
+        private volatile long bytes;
+
+        Account(String name, int priority, Evictable evictable) {
+            this.name = name;
+            this.priority = priority;
+            this.evictable = evictable;
+        }
+
+        public void setBytes(long bytes) {
+            this.bytes = bytes;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+    }
+
+    private static MemoryBudget instance;
+
+    private final long budgetBytes;
+    private final List<Account> accounts = new CopyOnWriteArrayList<>();
+
+    public static synchronized MemoryBudget getInstance() {
+        if (instance == null) {
+            instance = new MemoryBudget(Runtime.getRuntime().maxMemory() / BUDGET_FRACTION);
+        }
+        return instance;
+    }
+
+    private MemoryBudget(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    /**
+     * Opens an account for a holder of heap buffers.
+     *
+     * @param evictable Called to free memory for higher-priority allocations, null if the
+     *                  holder can't give anything back
+     */
+    public Account register(String name, int priority, Evictable evictable) {
+        Account account = new Account(name, priority, evictable);
+        accounts.add(account);
+        return account;
+    }
+
+    public void unregister(Account account) {
+        accounts.remove(account);
+    }
+
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    public long getUsedBytes() {
+        long used = 0;
+        for (Account account : accounts) {
+            used += account.bytes;
+        }
+        return used;
+    }
+
+    public boolean isOverBudget() {
+        return getUsedBytes() > budgetBytes;
+    }
+
+    /**
+     * Whether a single buffer of this size may be held on the heap at all.
+     */
+    public boolean fitsOnHeap(long bytes) {
+        return bytes <= budgetBytes / MAX_BUFFER_FRACTION;
+    }
+
+    /**
+     * Evicts from accounts with a lower priority than the caller's, lowest first, until bytes
+     * more fit in the budget. Must not be called while holding a lock an Evictable takes.
+     *
+     * @return Whether the bytes fit now
+     */
+    public boolean makeRoom(long bytes, int priority) {
+        if (getUsedBytes() + bytes <= budgetBytes) {
+            return true;
+        }
+        List<Account> candidates = new ArrayList<>();
+        for (Account account : accounts) {
+            if (account.priority < priority && account.evictable != null) {
+                candidates.add(account);
+            }
+        }
+        Collections.sort(candidates, new Comparator<Account>() {
+            @Override
+            public int compare(Account a1, Account a2) {
+                return Integer.compare(a1.priority, a2.priority);
+            }
+        });
+
+        for (Account account : candidates) {
+            long excess = getUsedBytes() + bytes - budgetBytes;
+            if (excess <= 0) {
+                break;
+            }
+            long freed = account.evictable.evict(excess);
+            if (freed > 0) {
+                Log.d("Tunas", "MemoryBudget: " + account.name + " evicted " + freed + " bytes for a " + bytes + " byte buffer");
+            }
+        }
+        boolean fits = getUsedBytes() + bytes <= budgetBytes;
+        if (!fits) {
+            Log.w("Tunas", "MemoryBudget: no room for " + bytes + " bytes, " + describe());
+        }
+        return fits;
+    }
+
+    /**
+     * Chooses where a loop of loopBytes is kept, making room on the heap if it goes there.
+     */
+    public Storage chooseLoopStorage(long loopBytes) {
+        Storage storage = fitsOnHeap(loopBytes) && makeRoom(loopBytes, PRIORITY_PLAYING) ? Storage.HEAP : Storage.MAPPED;
+        Log.d("Tunas", "MemoryBudget: " + loopBytes + " byte loop goes " + (storage == Storage.HEAP ? "on the heap" : "to a mapping") +
+                ", " + describe());
+        return storage;
+    }
+
+    /**
+     * Empties every evictable account. Call from onTrimMemory.
+     */
+    public void trimMemory() {
+        for (Account account : accounts) {
+            if (account.evictable != null) {
+                account.evictable.evict(Long.MAX_VALUE);
+            }
+        }
+        Log.d("Tunas", "MemoryBudget: trimmed, " + describe());
+    }
+
+    private String describe() {
+        StringBuilder description = new StringBuilder();
+        description.append(getUsedBytes()).append(" of ").append(budgetBytes).append(" bytes used (");
+        String separator = "";
+        for (Account account : accounts) {
+            description.append(separator).append(account.name).append(' ').append(account.bytes);
+            separator = ", ";
+        }
+        return description.append(')').toString();
+    }
+}
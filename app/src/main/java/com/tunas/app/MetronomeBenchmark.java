@@ -0,0 +1,121 @@
+package com.tunas.app;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * On-device benchmark of metronome rendering for a 64-bar selection.
+ *
+ * Renders the clicks of 64 bars at 120 bpm (two minutes of stereo PCM) at 44.1 and 48kHz,
+ * in 4/4 and in a mix of 3/4, 4/4 and 7/8, with MetronomeRenderer and with the previous
+ * per-sample synthesis, and logs the median wall time of each. The buffer is allocated once,
+ * so only the rendering is measured. Started together with DecodeBenchmark by long-pressing
+ * the file name in the player; results are logged under the "Tunas" tag.
+ */
+public class MetronomeBenchmark {
+
+    private static final int BARS = 64;
+    private static final long BAR_MS = 2000;
+    private static final int[] SAMPLE_RATES = {44100, 48000};
+    private static final int CHANNEL_COUNT = 2;
+    private static final int RUNS = 5;
+
+    /**
+     * Runs the benchmark on a background thread.
+     */
+    public static void runInBackground() {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runBenchmark();
+            }
+        }, "TunasMetronomeBenchmark");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void runBenchmark() {
+        long[] barOffsetsMs = new long[BARS + 1];
+        int[] mixedMeters = new int[BARS];
+        int[] meterPattern = {3, 4, 7};
+        for (int bar = 0; bar <= BARS; bar++) {
+            barOffsetsMs[bar] = bar * BAR_MS;
+            if (bar < BARS) {
+                mixedMeters[bar] = meterPattern[bar % meterPattern.length];
+            }
+        }
+
+        for (int sampleRate : SAMPLE_RATES) {
+            byte[] pcm = new byte[(int) (BARS * BAR_MS * sampleRate / 1000) * CHANNEL_COUNT * 2];
+
+            long clickStartNs = System.nanoTime();
+            MetronomeRenderer.renderClick(sampleRate, true);
+            MetronomeRenderer.renderClick(sampleRate, false);
+            Log.d("Tunas", "MetronomeBenchmark: " + sampleRate + "Hz, pre-rendering both clicks took " +
+                    (System.nanoTime() - clickStartNs) / 1000 + "us");
+
+            long scheduledMs = measure(pcm, sampleRate, barOffsetsMs, null, false);
+            long mixedMs = measure(pcm, sampleRate, barOffsetsMs, mixedMeters, false);
+            long synthesizedMs = measure(pcm, sampleRate, barOffsetsMs, null, true);
+            Log.d("Tunas", "MetronomeBenchmark: " + sampleRate + "Hz, " + BARS + " bars: scheduled 4/4 median " +
+                    scheduledMs + "ms, scheduled mixed meters " + mixedMs + "ms, per-sample synthesis " + synthesizedMs +
+                    "ms" + (scheduledMs > 0 ? String.format(" (%.1fx)", synthesizedMs / (double) scheduledMs) : ""));
+        }
+    }
+
+    private static long measure(byte[] pcm, int sampleRate, long[] barOffsetsMs, int[] beatsPerBar, boolean synthesize) {
+        long[] wallTimesMs = new long[RUNS];
+        for (int run = 0; run < RUNS; run++) {
+            Arrays.fill(pcm, (byte) 0);
+            long startRealtimeMs = SystemClock.elapsedRealtime();
+            if (synthesize) {
+                renderSynthesized(pcm, sampleRate, barOffsetsMs);
+            } else {
+                MetronomeRenderer.render(pcm, 0, pcm.length, sampleRate, CHANNEL_COUNT,
+                        MetronomeRenderer.BeatSchedule.fromBarOffsets(barOffsetsMs, beatsPerBar, sampleRate));
+            }
+            wallTimesMs[run] = SystemClock.elapsedRealtime() - startRealtimeMs;
+        }
+        Arrays.sort(wallTimesMs);
+        return wallTimesMs[RUNS / 2];
+    }
+
+    /**
+     * The previous renderer, computing every click sample for every beat of every bar in 4/4.
+     */
+    private static void renderSynthesized(byte[] target, int sampleRate, long[] barOffsetsMs) {
+        int bytesPerFrame = CHANNEL_COUNT * 2;
+        int totalFrames = target.length / bytesPerFrame;
+        int clickFrames = Math.max(1, (int) (sampleRate * 0.05));
+        for (int barIndex = 0; barIndex < barOffsetsMs.length - 1; barIndex++) {
+            double barDurationMs = barOffsetsMs[barIndex + 1] - barOffsetsMs[barIndex];
+            for (int beatInBar = 0; beatInBar < 4; beatInBar++) {
+                double beatStartMs = barOffsetsMs[barIndex] + (barDurationMs * beatInBar / 4.0);
+                int startFrame = (int) Math.round((beatStartMs * sampleRate) / 1000.0);
+                if (startFrame >= totalFrames) {
+                    continue;
+                }
+                boolean isBarStart = beatInBar == 0;
+                double frequencyHz = isBarStart ? 1760.0 : 880.0;
+                double amplitude = isBarStart ? 0.65 : 0.45;
+                int thisClickFrames = Math.min(clickFrames, totalFrames - startFrame);
+                for (int i = 0; i < thisClickFrames; i++) {
+                    double t = (double) i / (double) sampleRate;
+                    double envelope = Math.exp(-6.0 * ((double) i / (double) thisClickFrames));
+                    short sample = (short) Math.round(
+                            Math.sin(2.0 * Math.PI * frequencyHz * t) * amplitude * envelope * 32767.0);
+                    int frameByteOffset = (startFrame + i) * bytesPerFrame;
+                    for (int channel = 0; channel < CHANNEL_COUNT; channel++) {
+                        int sampleOffset = frameByteOffset + (channel * 2);
+                        int existing = (short) (((target[sampleOffset + 1] & 0xFF) << 8) | (target[sampleOffset] & 0xFF));
+                        int mixed = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, existing + sample));
+                        target[sampleOffset] = (byte) (mixed & 0xFF);
+                        target[sampleOffset + 1] = (byte) ((mixed >> 8) & 0xFF);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.tunas.app;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Renders metronome clicks into 16-bit PCM from a beat schedule.
+ *
+ * The accented and normal clicks are rendered once per sample rate and cached, so rendering a
+ * selection only adds the cached waveforms in at each beat, with no sin() or exp() per sample.
+ * The schedule holds the frame of every beat and whether it starts a bar; each bar is divided
+ * into its own number of beats, so selections can mix meters.
+ */
+public class MetronomeRenderer {
+
+    public static final int DEFAULT_BEATS_PER_BAR = 4;
+    private static final double CLICK_SECONDS = 0.05;
+    private static final double ACCENT_FREQUENCY_HZ = 1760.0;
+    private static final double BEAT_FREQUENCY_HZ = 880.0;
+    private static final double ACCENT_AMPLITUDE = 0.65;
+    private static final double BEAT_AMPLITUDE = 0.45;
+
+    // Guarded by the class; index 0 is the accented click, 1 the normal one
+    private static final Map<Integer, short[][]> clicksBySampleRate = new HashMap<>();
+
+    private MetronomeRenderer() {
+    }
+
+    /**
+     * Beats to click, in frames from the start of the rendered PCM.
+     */
+    public static class BeatSchedule {
+        final int[] beatFrames;
+        final boolean[] accents;
+
+        private BeatSchedule(int[] beatFrames, boolean[] accents) {
+            this.beatFrames = beatFrames;
+            this.accents = accents;
+        }
+
+        /**
+         * Creates the schedule for bars starting at the given offsets.
+         *
+         * @param barOffsetsMs Bar start offsets followed by the end of the last bar
+         * @param beatsPerBar Beats in each bar, or null for DEFAULT_BEATS_PER_BAR in every bar
+         */
+        public static BeatSchedule fromBarOffsets(long[] barOffsetsMs, int[] beatsPerBar, int sampleRate) {
+            int barCount = barOffsetsMs.length - 1;
+            int beatCount = 0;
+            for (int bar = 0; bar < barCount; bar++) {
+                beatCount += beatsInBar(beatsPerBar, bar);
+            }
+
+            int[] beatFrames = new int[beatCount];
+            boolean[] accents = new boolean[beatCount];
+            int beat = 0;
+            for (int bar = 0; bar < barCount; bar++) {
+                long barStartMs = barOffsetsMs[bar];
+                long barEndMs = barOffsetsMs[bar + 1];
+                int beats = beatsInBar(beatsPerBar, bar);
+                for (int beatInBar = 0; beatInBar < beats; beatInBar++) {
+                    // A bar that doesn't move forward gets no clicks
+                    double beatStartMs = barStartMs + (double) (barEndMs - barStartMs) * beatInBar / beats;
+                    beatFrames[beat] = barEndMs > barStartMs ? (int) Math.round(beatStartMs * sampleRate / 1000.0) : -1;
+                    accents[beat] = beatInBar == 0;
+                    beat++;
+                }
+            }
+            return new BeatSchedule(beatFrames, accents);
+        }
+
+        public int getBeatCount() {
+            return beatFrames.length;
+        }
+
+        private static int beatsInBar(int[] beatsPerBar, int bar) {
+            if (beatsPerBar == null || bar >= beatsPerBar.length || beatsPerBar[bar] <= 0) {
+                return DEFAULT_BEATS_PER_BAR;
+            }
+            return beatsPerBar[bar];
+        }
+    }
+
+    /**
+     * Mixes the scheduled clicks into pcmByteLength bytes of target starting at offset. Clicks
+     * running past the end are cut off.
+     */
+    public static void render(byte[] target, int offset, int pcmByteLength, int sampleRate, int channelCount,
+                              BeatSchedule schedule) {
+        int bytesPerFrame = channelCount * 2;
+        if (pcmByteLength <= 0 || bytesPerFrame <= 0) {
+            return;
+        }
+        int totalFrames = pcmByteLength / bytesPerFrame;
+        short[][] clicks = getClicks(sampleRate);
+
+        for (int beat = 0; beat < schedule.beatFrames.length; beat++) {
+            int startFrame = schedule.beatFrames[beat];
+            if (startFrame < 0 || startFrame >= totalFrames) {
+                continue;
+            }
+            short[] click = schedule.accents[beat] ? clicks[0] : clicks[1];
+            int frames = Math.min(click.length, totalFrames - startFrame);
+            int byteOffset = offset + startFrame * bytesPerFrame;
+            for (int i = 0; i < frames; i++) {
+                int sample = click[i];
+                for (int channel = 0; channel < channelCount; channel++) {
+                    int existing = (short) (((target[byteOffset + 1] & 0xFF) << 8) | (target[byteOffset] & 0xFF));
+                    int mixed = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, existing + sample));
+                    target[byteOffset] = (byte) mixed;
+                    target[byteOffset + 1] = (byte) (mixed >> 8);
+                    byteOffset += 2;
+                }
+            }
+        }
+    }
+
+    /**
+     * The accented and normal clicks at the sample rate, rendered on first use.
+     */
+    static synchronized short[][] getClicks(int sampleRate) {
+        short[][] clicks = clicksBySampleRate.get(sampleRate);
+        if (clicks == null) {
+            clicks = new short[][] {renderClick(sampleRate, true), renderClick(sampleRate, false)};
+            clicksBySampleRate.put(sampleRate, clicks);
+        }
+        return clicks;
+    }
+
+    /**
+     * A decaying sine burst, CLICK_SECONDS long.
+     */
+    static short[] renderClick(int sampleRate, boolean accent) {
+        double frequencyHz = accent ? ACCENT_FREQUENCY_HZ : BEAT_FREQUENCY_HZ;
+        double amplitude = accent ? ACCENT_AMPLITUDE : BEAT_AMPLITUDE;
+        short[] click = new short[Math.max(1, (int) (sampleRate * CLICK_SECONDS))];
+        for (int i = 0; i < click.length; i++) {
+            double t = (double) i / sampleRate;
+            double envelope = Math.exp(-6.0 * ((double) i / click.length));
+            click[i] = (short) Math.round(Math.sin(2.0 * Math.PI * frequencyHz * t) * amplitude * envelope * 32767.0);
+        }
+        return click;
+    }
+}
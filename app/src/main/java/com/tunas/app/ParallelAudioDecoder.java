@@ -0,0 +1,275 @@
+package com.tunas.app;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Decodes long ranges of compressed audio as several chunks in parallel.
+ *
+ * The range is split into equal chunks of at least MIN_CHUNK_US. Each chunk is decoded on its
+ * own MediaExtractor/MediaCodec pair on a separate decoder lane: it seeks to a sync point
+ * DECODE_PREROLL_US before its start and is fed CHUNK_OVERLAP_US of input past its end, and
+ * both overlaps are trimmed off. Chunk boundaries are converted to frames the same way on both
+ * sides, and each chunk's output is placed by its presentation timestamps rather than by
+ * counting bytes from the seek landing point, so priming frames the codec drops after a seek
+ * don't shift the seams. The chunks tile the range exactly and are written straight to their
+ * byte offsets in the output. Short ranges are decoded in one piece on the calling thread.
+ *
+ * Background decodes (decodeInBackground) use their own chunk threads and decoder lanes at
+ * background priority, so filling a cache never competes with a foreground decode.
+ */
+public class ParallelAudioDecoder {
+
+    private static final long MIN_CHUNK_US = 5000000;
+    private static final long CHUNK_OVERLAP_US = 100000;
+    private static final int MAX_DEFAULT_PARALLELISM = 4;
+    private static final long CANCEL_POLL_MS = 50;
+
+    /**
+     * Destination of a range decode. Chunks write disjoint byte ranges, possibly concurrently
+     * from different threads.
+     */
+    public interface RangeOutput {
+        /**
+         * Called once before any PCM is written.
+         *
+         * @param rangeBytes Exact byte length of the range, or -1 if it runs to the end of the file
+         */
+        void onFormat(int sampleRate, int channelCount, long rangeBytes) throws IOException;
+
+        /**
+         * Writes the buffer's remaining bytes at byteOffset from the start of the range.
+         */
+        void write(ByteBuffer pcm, long byteOffset) throws IOException;
+    }
+
+    private static final ExecutorService chunkExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "TunasChunkDecoder");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private static final ExecutorService backgroundChunkExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "TunasBackgroundChunkDecoder");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Number of chunks used by default: one per core, capped so a long decode leaves cores
+     * free for playback and the UI.
+     */
+    public static int getDefaultParallelism() {
+        return Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), MAX_DEFAULT_PARALLELISM));
+    }
+
+    /**
+     * Decodes [startUs, endUs) of the file into the output, using up to maxChunks concurrent
+     * decoders.
+     *
+     * @param endUs End of the range, or Long.MAX_VALUE for the rest of the file
+     * @param maxChunks Upper bound on the number of chunks; 1 decodes in one piece
+     * @return Combined throughput of all chunks
+     * @throws IOException If any chunk fails
+     */
+    public static AsyncAudioDecoder.DecodeStats decode(File audioFile, long startUs, long endUs,
+                                                       int maxChunks, RangeOutput output,
+                                                       CancellationSignal cancellationSignal) throws IOException {
+        return decode(audioFile, startUs, endUs, maxChunks, output, cancellationSignal, false);
+    }
+
+    /**
+     * Same as {@link #decode(File, long, long, int, RangeOutput, CancellationSignal)},
+     * but on the background chunk threads and decoder lanes.
+     */
+    public static AsyncAudioDecoder.DecodeStats decodeInBackground(File audioFile, long startUs, long endUs,
+                                                                   int maxChunks, RangeOutput output,
+                                                                   CancellationSignal cancellationSignal) throws IOException {
+        return decode(audioFile, startUs, endUs, maxChunks, output, cancellationSignal, true);
+    }
+
+    private static AsyncAudioDecoder.DecodeStats decode(File audioFile, long startUs, long endUs, int maxChunks, final RangeOutput output,
+                                                        CancellationSignal cancellationSignal, final boolean background) throws IOException {
+        if (maxChunks < 2 || (endUs != Long.MAX_VALUE && endUs - startUs < 2 * MIN_CHUNK_US)) {
+            return decodeSingle(audioFile, startUs, endUs, output, cancellationSignal, background);
+        }
+
+        // Probe the track so the chunks can be laid out before any of them starts
+        int sampleRate;
+        int channelCount;
+        long durationUs;
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(audioFile.getAbsolutePath());
+            MediaFormat format = extractor.getTrackFormat(0);
+            sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+            channelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+            durationUs = format.containsKey(MediaFormat.KEY_DURATION) ? format.getLong(MediaFormat.KEY_DURATION) : 0;
+        } finally {
+            extractor.release();
+        }
+
+        long splitEndUs = durationUs > 0 ? Math.min(endUs, durationUs) : endUs;
+        long chunkCount = splitEndUs == Long.MAX_VALUE ? 1 : Math.min(maxChunks, (splitEndUs - startUs) / MIN_CHUNK_US);
+        if (chunkCount < 2) {
+            return decodeSingle(audioFile, startUs, endUs, output, cancellationSignal, background);
+        }
+
+        long startRealtimeMs = SystemClock.elapsedRealtime();
+        int bytesPerFrame = channelCount * 2;
+        long startFrame = AudioLoopUtils.frameAtUs(startUs, sampleRate);
+        output.onFormat(sampleRate, channelCount, endUs == Long.MAX_VALUE ? -1 :
+                (AudioLoopUtils.frameAtUs(endUs, sampleRate) - startFrame) * bytesPerFrame);
+
+        // Chunks get their own signal so a failing chunk can stop its siblings
+        final CancellationSignal chunkSignal = new CancellationSignal();
+        List<Future<AsyncAudioDecoder.DecodeStats>> chunks = new ArrayList<>();
+        long spanUs = splitEndUs - startUs;
+        for (int i = 0; i < chunkCount; i++) {
+            final int lane = i;
+            final long chunkStartUs = startUs + spanUs * i / chunkCount;
+            boolean last = i == chunkCount - 1;
+            // The last chunk keeps the caller's end, which may run past the probed duration
+            final long chunkEndUs = last ? endUs : startUs + spanUs * (i + 1) / chunkCount;
+            final long inputEndUs = last ? endUs : chunkEndUs + CHUNK_OVERLAP_US;
+            final long chunkOffset = (AudioLoopUtils.frameAtUs(chunkStartUs, sampleRate) - startFrame) * bytesPerFrame;
+            final File file = audioFile;
+            ExecutorService executor = background ? backgroundChunkExecutor : chunkExecutor;
+            chunks.add(executor.submit(new Callable<AsyncAudioDecoder.DecodeStats>() {
+                @Override
+                public AsyncAudioDecoder.DecodeStats call() throws IOException {
+                    AsyncAudioDecoder decoder = background ? AsyncAudioDecoder.getBackgroundLane(lane) : AsyncAudioDecoder.getLane(lane);
+                    return AudioLoopUtils.decodeTrimmedRange(decoder, file,
+                            chunkStartUs, chunkEndUs, inputEndUs, new ChunkWriter(output, chunkOffset), chunkSignal);
+                }
+            }));
+        }
+
+        long pcmBytes = 0;
+        long decodedUs = 0;
+        Exception failure = null;
+        for (Future<AsyncAudioDecoder.DecodeStats> chunk : chunks) {
+            try {
+                AsyncAudioDecoder.DecodeStats stats = awaitChunk(chunk, chunkSignal, cancellationSignal);
+                pcmBytes += stats.pcmBytes;
+                decodedUs += stats.decodedUs;
+            } catch (ExecutionException e) {
+                chunkSignal.cancel();
+                // Siblings stopped by the failure report cancellation; keep the original cause
+                if (failure == null || failure instanceof OperationCanceledException) {
+                    failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+        }
+
+        if (cancellationSignal != null && cancellationSignal.isCanceled()) {
+            throw new OperationCanceledException("Decode canceled");
+        }
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure != null) {
+            throw new IOException("Chunk decode failed: " + failure.getMessage(), failure);
+        }
+
+        AsyncAudioDecoder.DecodeStats stats = new AsyncAudioDecoder.DecodeStats(pcmBytes, decodedUs,
+                SystemClock.elapsedRealtime() - startRealtimeMs);
+        Log.d("Tunas", "ParallelAudioDecoder: decoded " + audioFile.getName() + " in " + chunkCount + " chunks: " + stats);
+        return stats;
+    }
+
+    /**
+     * Waits for a chunk, forwarding cancellation of the caller's signal to the chunks' signal.
+     */
+    private static AsyncAudioDecoder.DecodeStats awaitChunk(Future<AsyncAudioDecoder.DecodeStats> chunk,
+                                                            CancellationSignal chunkSignal,
+                                                            CancellationSignal cancellationSignal) throws ExecutionException, IOException {
+        while (true) {
+            try {
+                return chunk.get(CANCEL_POLL_MS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                if (cancellationSignal != null && cancellationSignal.isCanceled()) {
+                    chunkSignal.cancel();
+                }
+            } catch (InterruptedException e) {
+                chunkSignal.cancel();
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for decode chunks", e);
+            }
+        }
+    }
+
+    /**
+     * Decodes the whole range on the calling thread and the shared decoder, or the first
+     * background lane.
+     */
+    private static AsyncAudioDecoder.DecodeStats decodeSingle(File audioFile, long startUs, long endUs,
+                                                              final RangeOutput output, CancellationSignal cancellationSignal,
+                                                              boolean background) throws IOException {
+        AsyncAudioDecoder decoder = background ? AsyncAudioDecoder.getBackgroundLane(0) : AsyncAudioDecoder.getShared();
+        return AudioLoopUtils.decodeTrimmedRange(decoder, audioFile, startUs, endUs, endUs,
+                new AudioLoopUtils.TrimmedClipSink() {
+                    @Override
+                    public void onClipFormat(int sampleRate, int channelCount, long clipBytes) throws IOException {
+                        output.onFormat(sampleRate, channelCount, clipBytes);
+                    }
+
+                    @Override
+                    public void onClipPcm(ByteBuffer pcm, long clipOffset, long presentationTimeUs) throws IOException {
+                        output.write(pcm, clipOffset);
+                    }
+                }, cancellationSignal);
+    }
+
+    /**
+     * Writes one chunk's trimmed PCM at its offset in the range.
+     */
+    private static class ChunkWriter implements AudioLoopUtils.TrimmedClipSink {
+        private final RangeOutput output;
+        private final long chunkOffset;
+
+        ChunkWriter(RangeOutput output, long chunkOffset) {
+            this.output = output;
+            this.chunkOffset = chunkOffset;
+        }
+
+        @Override
+        public void onClipFormat(int sampleRate, int channelCount, long clipBytes) {
+            // The range format was reported when the chunks were laid out
+        }
+
+        @Override
+        public void onClipPcm(ByteBuffer pcm, long clipOffset, long presentationTimeUs) throws IOException {
+            output.write(pcm, chunkOffset + clipOffset);
+        }
+    }
+}
@@ -0,0 +1,408 @@
+package com.tunas.app;
+
+import android.content.Context;
+import android.os.CancellationSignal;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * On-disk cache of whole-file decoded PCM, stored in the app cache directory.
+ *
+ * Each audio file is decoded once, in parallel chunks, into a 16-bit PCM cache file and later
+ * read through a memory-mapped buffer, so any bar range can be sliced out without touching
+ * MediaCodec again.
+ * Entries are keyed by the source path and validated against the source size and mtime
+ * recorded in the entry header; a changed source file invalidates its entry. The total cache
+ * size is capped and the least recently used entries are evicted first. Partial entries left
+ * by a decode that never finished (e.g. the process was killed) are deleted on startup and
+ * whenever the cache is trimmed.
+ */
+public class PcmCache {
+
+    private static final int MAGIC = 0x4D435054; // "TPCM" little-endian
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final long MAX_CACHE_BYTES = 512L * 1024 * 1024;
+    private static final int MAX_OPEN_MAPPINGS = 4;
+    private static final long BLOCKING_POLL_MS = 100;
+
+    /**
+     * Memory-mapped decoded PCM for one source file.
+     */
+    public static class CachedPcm {
+        public final int sampleRate;
+        public final int channelCount;
+        private final MappedByteBuffer pcm;
+
+        CachedPcm(MappedByteBuffer pcm, int sampleRate, int channelCount) {
+            this.pcm = pcm;
+            this.sampleRate = sampleRate;
+            this.channelCount = channelCount;
+        }
+
+        public int getBytesPerFrame() {
+            return channelCount * 2;
+        }
+
+        public long getFrameCount() {
+            return pcm.capacity() / getBytesPerFrame();
+        }
+
+        /**
+         * Returns the frame index closest to the given time, clamped to the cached audio.
+         */
+        public long frameAt(long timeMs) {
+            long frame = Math.round(timeMs * sampleRate / 1000.0);
+            return Math.max(0, Math.min(frame, getFrameCount()));
+        }
+
+        /**
+         * Returns a read-only view of the mapped PCM between startMs and endMs, without copying.
+         */
+        public ByteBuffer sliceView(long startMs, long endMs) {
+            ByteBuffer view = pcm.asReadOnlyBuffer();
+            int start = (int) (frameAt(startMs) * getBytesPerFrame());
+            view.limit(start + sliceLength(startMs, endMs));
+            view.position(start);
+            return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        /**
+         * Copies the PCM between startMs (inclusive) and endMs (exclusive) into a new array.
+         */
+        public byte[] slice(long startMs, long endMs) {
+            byte[] clip = new byte[sliceLength(startMs, endMs)];
+            sliceInto(startMs, endMs, clip);
+            return clip;
+        }
+
+        /**
+         * Byte length of the slice between startMs and endMs.
+         */
+        public int sliceLength(long startMs, long endMs) {
+            long startFrame = frameAt(startMs);
+            long endFrame = Math.max(startFrame, frameAt(endMs));
+            return (int) ((endFrame - startFrame) * getBytesPerFrame());
+        }
+
+        /**
+         * Copies the slice between startMs and endMs to the start of target, which must hold at
+         * least sliceLength(startMs, endMs) bytes.
+         */
+        public void sliceInto(long startMs, long endMs, byte[] target) {
+            ByteBuffer view = pcm.duplicate();
+            view.position((int) (frameAt(startMs) * getBytesPerFrame()));
+            view.get(target, 0, sliceLength(startMs, endMs));
+        }
+    }
+
+    private static PcmCache instance;
+
+    private final File cacheDir;
+    private final Map<String, CachedPcm> openMappings = new LinkedHashMap<>(MAX_OPEN_MAPPINGS, 0.75f, true);
+    private final Set<String> pendingDecodes = Collections.synchronizedSet(new HashSet<String>());
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "TunasPcmCache");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    public static synchronized PcmCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new PcmCache(new File(context.getApplicationContext().getCacheDir(), "pcm"));
+        }
+        return instance;
+    }
+
+    private PcmCache(File cacheDir) {
+        this.cacheDir = cacheDir;
+        if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+            Log.w("Tunas", "PcmCache: could not create cache dir " + cacheDir);
+        }
+        // Runs before any decode this process schedules, as they share the executor
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                File[] entries = cacheDir.listFiles();
+                if (entries == null) {
+                    return;
+                }
+                for (File entry : entries) {
+                    deleteIfStaleTmpFile(entry);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the cached PCM for the file, or null if it has not been decoded yet or the
+     * source changed since it was cached.
+     */
+    public synchronized CachedPcm get(File audioFile) throws IOException {
+        String key = keyFor(audioFile);
+        CachedPcm mapped = openMappings.get(key);
+        File entryFile = new File(cacheDir, key + ".pcm");
+        if (mapped != null && entryFile.exists()) {
+            entryFile.setLastModified(System.currentTimeMillis());
+            return mapped;
+        }
+        openMappings.remove(key);
+        if (!entryFile.exists()) {
+            return null;
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(entryFile, "r")) {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(header, 0);
+            header.flip();
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC || header.getInt() != VERSION) {
+                Log.w("Tunas", "PcmCache: discarding malformed entry " + entryFile.getName());
+                entryFile.delete();
+                return null;
+            }
+            int sampleRate = header.getInt();
+            int channelCount = header.getInt();
+            long sourceLength = header.getLong();
+            long sourceMtime = header.getLong();
+            if (sourceLength != audioFile.length() || sourceMtime != audioFile.lastModified()) {
+                Log.d("Tunas", "PcmCache: source changed, invalidating entry for " + audioFile.getName());
+                entryFile.delete();
+                return null;
+            }
+
+            MappedByteBuffer pcm = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, channel.size() - HEADER_SIZE);
+            pcm.order(ByteOrder.LITTLE_ENDIAN);
+            mapped = new CachedPcm(pcm, sampleRate, channelCount);
+        }
+
+        entryFile.setLastModified(System.currentTimeMillis());
+        openMappings.put(key, mapped);
+        while (openMappings.size() > MAX_OPEN_MAPPINGS) {
+            String eldest = openMappings.keySet().iterator().next();
+            openMappings.remove(eldest);
+        }
+        Log.d("Tunas", "PcmCache: mapped " + audioFile.getName() + " (" + mapped.getFrameCount() + " frames)");
+        return mapped;
+    }
+
+    /**
+     * Returns the cached PCM for the file, decoding the whole file into the cache first if
+     * needed and blocking until it is ready.
+     *
+     * @throws IOException If the file can't be decoded
+     * @throws android.os.OperationCanceledException If the signal is canceled while waiting
+     */
+    public CachedPcm getBlocking(File audioFile, CancellationSignal cancellationSignal) throws IOException {
+        CachedPcm cached = get(audioFile);
+        if (cached != null) {
+            return cached;
+        }
+        String key = keyFor(audioFile);
+        cacheInBackground(audioFile);
+        while (true) {
+            if (cancellationSignal != null) {
+                cancellationSignal.throwIfCanceled();
+            }
+            // Check for a finished decode before looking for the entry, so a failure isn't
+            // mistaken for a decode that hasn't started
+            boolean pending = pendingDecodes.contains(key);
+            cached = get(audioFile);
+            if (cached != null) {
+                return cached;
+            }
+            if (!pending) {
+                throw new IOException("Could not cache " + audioFile.getName());
+            }
+            try {
+                Thread.sleep(BLOCKING_POLL_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the PCM cache", e);
+            }
+        }
+    }
+
+    /**
+     * Schedules a background decode of the whole file into the cache if it is not cached yet.
+     */
+    public void cacheInBackground(final File audioFile) {
+        final String key = keyFor(audioFile);
+        if (!pendingDecodes.add(key)) {
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (get(audioFile) == null) {
+                        decodeToCache(audioFile, key);
+                    }
+                } catch (IOException e) {
+                    Log.e("Tunas", "PcmCache: failed to cache " + audioFile.getName(), e);
+                } finally {
+                    pendingDecodes.remove(key);
+                }
+            }
+        });
+    }
+
+    private void decodeToCache(File audioFile, String key) throws IOException {
+        File tmpFile = new File(cacheDir, key + ".tmp");
+        File entryFile = new File(cacheDir, key + ".pcm");
+        long sourceLength = audioFile.length();
+        long sourceMtime = audioFile.lastModified();
+
+        try (RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw")) {
+            raf.setLength(0);
+            CacheFileOutput output = new CacheFileOutput(raf.getChannel());
+            AsyncAudioDecoder.DecodeStats stats = ParallelAudioDecoder.decodeInBackground(audioFile, 0, Long.MAX_VALUE,
+                    ParallelAudioDecoder.getDefaultParallelism(), output, null);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(output.sampleRate).putInt(output.channelCount)
+                    .putLong(sourceLength).putLong(sourceMtime);
+            header.flip();
+            raf.getChannel().write(header, 0);
+            Log.d("Tunas", "PcmCache: cached " + audioFile.getName() + ": " + stats);
+        } catch (IOException e) {
+            tmpFile.delete();
+            throw e;
+        }
+
+        synchronized (this) {
+            openMappings.remove(key);
+            if (!tmpFile.renameTo(entryFile)) {
+                tmpFile.delete();
+                throw new IOException("Could not publish cache entry " + entryFile);
+            }
+            evictToLimit(entryFile);
+        }
+    }
+
+    /**
+     * Deletes least recently used entries until the cache fits in MAX_CACHE_BYTES.
+     */
+    private void evictToLimit(File keep) {
+        File[] entries = cacheDir.listFiles();
+        if (entries == null) {
+            return;
+        }
+        Arrays.sort(entries, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                return Long.compare(f1.lastModified(), f2.lastModified());
+            }
+        });
+
+        long totalBytes = 0;
+        for (File entry : entries) {
+            if (!deleteIfStaleTmpFile(entry)) {
+                totalBytes += entry.length();
+            }
+        }
+        for (File entry : entries) {
+            if (totalBytes <= MAX_CACHE_BYTES) {
+                break;
+            }
+            if (entry.equals(keep) || !entry.getName().endsWith(".pcm")) {
+                continue;
+            }
+            long length = entry.length();
+            if (entry.delete()) {
+                totalBytes -= length;
+                openMappings.remove(entry.getName().substring(0, entry.getName().length() - 4));
+                Log.d("Tunas", "PcmCache: evicted " + entry.getName() + " (" + length + " bytes)");
+            }
+        }
+    }
+
+    /**
+     * Deletes the file if it is the partial output of a decode that is no longer running.
+     *
+     * @return Whether the file was deleted
+     */
+    private boolean deleteIfStaleTmpFile(File entry) {
+        String name = entry.getName();
+        if (!name.endsWith(".tmp") || pendingDecodes.contains(name.substring(0, name.length() - 4))) {
+            return false;
+        }
+        long length = entry.length();
+        if (!entry.delete()) {
+            return false;
+        }
+        Log.d("Tunas", "PcmCache: deleted stale " + name + " (" + length + " bytes)");
+        return true;
+    }
+
+    /**
+     * Writes decoded chunks at their offsets after the entry header. Positional FileChannel
+     * writes are safe to issue from several chunk threads at once.
+     */
+    private static class CacheFileOutput implements ParallelAudioDecoder.RangeOutput {
+        private final FileChannel channel;
+        volatile int sampleRate;
+        volatile int channelCount;
+
+        CacheFileOutput(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void onFormat(int sampleRate, int channelCount, long rangeBytes) {
+            this.sampleRate = sampleRate;
+            this.channelCount = channelCount;
+        }
+
+        @Override
+        public void write(ByteBuffer pcm, long byteOffset) throws IOException {
+            long position = HEADER_SIZE + byteOffset;
+            while (pcm.hasRemaining()) {
+                position += channel.write(pcm, position);
+            }
+        }
+    }
+
+    static String keyFor(File audioFile) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(audioFile.getAbsolutePath().getBytes("UTF-8"));
+            StringBuilder key = new StringBuilder();
+            for (byte b : hash) {
+                key.append(String.format("%02x", b));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException | java.io.UnsupportedEncodingException e) {
+            return Integer.toHexString(audioFile.getAbsolutePath().hashCode());
+        }
+    }
+}
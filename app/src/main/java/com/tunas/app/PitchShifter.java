@@ -0,0 +1,132 @@
+package com.tunas.app;
+
+import android.os.CancellationSignal;
+
+/**
+ * Offline transposition of a loop's PCM by whole semitones, optionally slowed down as well.
+ *
+ * The loop is time-stretched by TimeStretcher to the length it would have at the chosen speed
+ * times the pitch ratio, then resampled back to the chosen length, which moves the pitch by
+ * the ratio and leaves the tempo alone. Both steps treat the PCM as a loop cycle, so the
+ * transposed loop stays seamless. Resampling uses a windowed-sinc kernel, tabulated per
+ * fractional position, with its cutoff lowered when transposing up so nothing folds back.
+ */
+public class PitchShifter {
+
+    private static final int KERNEL_HALF_WIDTH = 8;     // taps on each side of the output position
+    private static final int KERNEL_PHASES = 256;       // tabulated fractional positions
+
+    private PitchShifter() {
+    }
+
+    /**
+     * Frequency ratio of a transposition by semitones.
+     */
+    public static float pitchRatio(int semitones) {
+        return (float) Math.pow(2.0, semitones / 12.0);
+    }
+
+    /**
+     * Heap a render of a clipBytes cycle needs at its peak: the input, the stretcher's float
+     * copy of it (at most twice its size, for mono), the stretched intermediate when
+     * transposing (up to twice the output when transposing up an octave) and the output.
+     */
+    public static long peakRenderBytes(long clipBytes, float speed, int semitones, int outputSlots) {
+        long outputBytes = (long) (clipBytes / speed) * outputSlots;
+        long intermediateBytes = semitones == 0 ? 0 : (long) (clipBytes * Math.max(1f, pitchRatio(semitones)) / speed);
+        return clipBytes * 3 + intermediateBytes + outputBytes;
+    }
+
+    /**
+     * Renders one loop cycle of 16-bit PCM transposed by semitones and lasting 1/speed as long.
+     *
+     * @param outputSlots The returned array holds this many rendered-cycle-sized segments with
+     *                    the rendered cycle in the first, so callers can render more after it
+     */
+    public static byte[] renderLoop(byte[] pcm, int sampleRate, int channelCount, float speed, int semitones,
+                                    int outputSlots, CancellationSignal cancellationSignal) {
+        if (semitones == 0) {
+            return TimeStretcher.stretchLoop(pcm, sampleRate, channelCount, speed, outputSlots, cancellationSignal);
+        }
+        float ratio = pitchRatio(semitones);
+        byte[] stretched = TimeStretcher.stretchLoop(pcm, sampleRate, channelCount, speed / ratio, 1, cancellationSignal);
+
+        int bytesPerFrame = channelCount * 2;
+        int outFrames = TimeStretcher.stretchedFrames(pcm.length / bytesPerFrame, speed);
+        byte[] output = new byte[outFrames * bytesPerFrame * outputSlots];
+        resampleLoop(stretched, stretched.length / bytesPerFrame, output, outFrames, channelCount, cancellationSignal);
+        return output;
+    }
+
+    /**
+     * Resamples a loop cycle of inFrames to outFrames, wrapping around its ends.
+     */
+    private static void resampleLoop(byte[] input, int inFrames, byte[] output, int outFrames, int channelCount,
+                                     CancellationSignal cancellationSignal) {
+        if (inFrames == 0) {
+            return;
+        }
+        double step = inFrames / (double) outFrames;
+        float[][] kernel = createKernel(Math.min(1.0, 1.0 / step));
+        float[] sums = new float[channelCount];
+        for (int frame = 0; frame < outFrames; frame++) {
+            if (frame % 65536 == 0 && cancellationSignal != null) {
+                cancellationSignal.throwIfCanceled();
+            }
+            double position = frame * step;
+            long base = (long) Math.floor(position);
+            int phase = (int) Math.round((position - base) * KERNEL_PHASES);
+            // A fraction rounded up to a whole frame moves on to the next base frame
+            if (phase == KERNEL_PHASES) {
+                base++;
+                phase = 0;
+            }
+            float[] weights = kernel[phase];
+
+            for (int channel = 0; channel < channelCount; channel++) {
+                sums[channel] = 0;
+            }
+            for (int tap = 0; tap < weights.length; tap++) {
+                int inFrame = (int) Math.floorMod(base + tap - KERNEL_HALF_WIDTH + 1, (long) inFrames);
+                float weight = weights[tap];
+                for (int channel = 0; channel < channelCount; channel++) {
+                    int index = (inFrame * channelCount + channel) * 2;
+                    sums[channel] += weight * (short) (((input[index + 1] & 0xFF) << 8) | (input[index] & 0xFF));
+                }
+            }
+            for (int channel = 0; channel < channelCount; channel++) {
+                int sample = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(sums[channel])));
+                int index = (frame * channelCount + channel) * 2;
+                output[index] = (byte) sample;
+                output[index + 1] = (byte) (sample >> 8);
+            }
+        }
+    }
+
+    /**
+     * Blackman-windowed sinc weights for each fractional position, normalized to unity gain.
+     * Tap t weighs input frame base + t - KERNEL_HALF_WIDTH + 1.
+     */
+    private static float[][] createKernel(double cutoff) {
+        int taps = KERNEL_HALF_WIDTH * 2;
+        float[][] kernel = new float[KERNEL_PHASES][taps];
+        for (int phase = 0; phase < KERNEL_PHASES; phase++) {
+            double fraction = phase / (double) KERNEL_PHASES;
+            double total = 0;
+            double[] weights = new double[taps];
+            for (int tap = 0; tap < taps; tap++) {
+                double distance = tap - KERNEL_HALF_WIDTH + 1 - fraction;
+                double x = Math.PI * cutoff * distance;
+                double sinc = x == 0 ? 1.0 : Math.sin(x) / x;
+                double windowPosition = (distance + KERNEL_HALF_WIDTH) / (2.0 * KERNEL_HALF_WIDTH);
+                double window = 0.42 - 0.5 * Math.cos(2 * Math.PI * windowPosition) + 0.08 * Math.cos(4 * Math.PI * windowPosition);
+                weights[tap] = sinc * window;
+                total += weights[tap];
+            }
+            for (int tap = 0; tap < taps; tap++) {
+                kernel[phase][tap] = (float) (weights[tap] / total);
+            }
+        }
+        return kernel;
+    }
+}
@@ -1,10 +1,10 @@
 package com.tunas.app;
 
+import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.media.MediaExtractor;
-import android.media.MediaFormat;
 import android.os.Bundle;
+import android.os.CancellationSignal;
 import android.os.Handler;
 import android.util.Log;
 import android.view.SurfaceView;
@@ -21,9 +21,16 @@ import android.widget.TextView;
 import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 
+import com.google.android.exoplayer2.DefaultLoadControl;
+import com.google.android.exoplayer2.DefaultRenderersFactory;
 import com.google.android.exoplayer2.ExoPlayer;
 import com.google.android.exoplayer2.MediaItem;
+import com.google.android.exoplayer2.PlaybackParameters;
 import com.google.android.exoplayer2.Player;
+import com.google.android.exoplayer2.analytics.AnalyticsListener;
+import com.google.android.exoplayer2.audio.AudioProcessor;
+import com.google.android.exoplayer2.audio.AudioSink;
+import com.google.android.exoplayer2.audio.DefaultAudioSink;
 import com.google.android.exoplayer2.source.ClippingMediaSource;
 import com.google.android.exoplayer2.source.MediaSource;
 import com.google.android.exoplayer2.upstream.DataSource;
@@ -36,6 +43,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -51,6 +59,10 @@ public class PlayerActivity extends AppCompatActivity {
     private Button buttonLess4;
     private Button buttonToggle4;
     private SeekBar playbackSpeedSeekBar;
+    private SeekBar clickVolumeSeekBar;
+    private Button transposeDownBtn;
+    private Button transposeUpBtn;
+    private TextView transposeText;
     private LinearLayout thumbnailContainer;
     private ImageView fullScreenImageView;
     private SurfaceView cameraSurfaceView;
@@ -84,15 +96,45 @@ public class PlayerActivity extends AppCompatActivity {
     private List<Boolean> isSectionMarker; // true if marker starts with "S", false if "M"
     private List<String> sectionNames; // section names for "S" markers, null for "M" markers
     private long audioDuration; // Audio file duration in milliseconds (10 seconds after last bar)
+    private WaveformCache.Pyramid waveformPyramid; // peaks of the current file, null until built
 
     private ExoPlayer exoPlayer;
     private Handler handler = new Handler();
+    private final SelectionPipeline selectionPipeline = new SelectionPipeline();
+    private boolean sourcePending; // a source for the current selection is being built, the player's one is outdated
+    private Runnable afterSourceReady; // playback requested while the source was pending, run once it is ready
+    private File playerSourceFile; // file of the source the player holds
+    private LoopPrefetcher loopPrefetcher;
+    private StreamingLoopSource activeStreamingLoop; // decoding behind the current source, if streamed
+    private LiveLoopSource activeLiveLoop; // the current source, if it is a loop that can be moved in place
+    private AudioTrackLoopEngine loopEngine; // low-latency loop playback, null while ExoPlayer plays everything
+    private boolean loopEngineActive; // the current source is played by loopEngine rather than ExoPlayer
+    private long exoPlayRequestTimeMs = -1; // wall clock of the last ExoPlayer play(), for start latency
+    private final ClickOverlayProcessor clickOverlay = new ClickOverlayProcessor(); // clicks over ExoPlayer's output
+    private final GainProcessor normalizationGain = new GainProcessor(); // loudness normalization of ExoPlayer's output
+    private StretchedLoopCache stretchedLoopCache; // slowed-down and transposed loops rendered offline
+    private MemoryBudget.Account playingAccount; // heap PCM of the source that is playing
+    private float playbackSpeed = 1.0f; // speed chosen on the slider
+    private float sourceStretch = 1.0f; // speed the current ExoPlayer source was rendered at, 1 if not stretched
+    private int transposeSemitones; // transposition chosen with the ♭/♯ buttons
+    private int sourceSemitones; // transposition the current ExoPlayer source was rendered at
+    private static final int MAX_TRANSPOSE_SEMITONES = 12;
 
     private boolean isStopped = true;
     private static final int LOOP_MODE_OFF = 0;
     private static final int LOOP_MODE_REPEAT = 1;
     private static final int LOOP_MODE_ALTERNATING_METRONOME = 2;
     private int loopMode = LOOP_MODE_OFF;
+    private static final long LOOP_PERIOD_MS = 300000; // length of one repetition of an endless loop source
+    // Short player buffers, so a moved live loop is heard at the next loop boundary. All audio is local.
+    private static final int PLAYER_MIN_BUFFER_MS = 1000;
+    private static final int PLAYER_MAX_BUFFER_MS = 2000;
+    private static final int PLAYER_START_BUFFER_MS = 250;
+    // When a moved live loop takes over: at once, or double-buffered at the next bar or loop end
+    private static final int SWITCH_IMMEDIATE = 0;
+    private static final int SWITCH_AT_NEXT_BAR = 1;
+    private static final int SWITCH_AT_LOOP_END = 2;
+    private int switchHandover = SWITCH_IMMEDIATE;
     private boolean gotoOn = true;
 
     // Position tracking
@@ -107,7 +149,7 @@ public class PlayerActivity extends AppCompatActivity {
     private long currentMediaSourceStartMs = 0; // Start time of current media source in absolute file time
     private long currentSegmentDurationMs = 0; // Duration of the current segment
 
-    private void updatePositionDot(long currentPositionMs) {
+    private void updatePositionDot(long absolutePositionMs) {
         if (positionDot == null) {
             return;
         }
@@ -116,16 +158,6 @@ public class PlayerActivity extends AppCompatActivity {
             return;
         }
 
-        // Convert relative position to absolute position in the file
-        // Use modulo to handle looping - position wraps around to start of segment
-        long positionInSegment = (currentSegmentDurationMs > 0) ?
-            (currentPositionMs % currentSegmentDurationMs) : currentPositionMs;
-        long absolutePositionMs = currentMediaSourceStartMs + positionInSegment;
-        // Log.d("Tunas", "Position calc: currentPositionMs=" + currentPositionMs +
-        //       ", currentMediaSourceStartMs=" + currentMediaSourceStartMs +
-        //       ", currentSegmentDurationMs=" + currentSegmentDurationMs +
-        //       ", positionInSegment=" + positionInSegment + ", absolutePositionMs=" + absolutePositionMs);
-
         // Find which bar we're currently playing (based on absolute position)
         int currentBarIndex = -1;
         for (int i = 0; i < barPositions.size(); i++) {
@@ -283,8 +315,8 @@ public class PlayerActivity extends AppCompatActivity {
         positionUpdateRunnable = new Runnable() {
             @Override
             public void run() {
-                if (exoPlayer != null && exoPlayer.isPlaying()) {
-                    long currentPosition = exoPlayer.getCurrentPosition();
+                if (exoPlayer != null && isPlayerPlaying()) {
+                    long currentPosition = getCurrentAbsolutePositionMs();
                     // Log.d("Tunas", "Player position: " + currentPosition + "ms");
                     updatePositionDot(currentPosition);
                     handler.postDelayed(this, POSITION_UPDATE_INTERVAL_MS);
@@ -312,6 +344,9 @@ public class PlayerActivity extends AppCompatActivity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_player);
+        loopPrefetcher = new LoopPrefetcher(this);
+        stretchedLoopCache = new StretchedLoopCache(this);
+        playingAccount = MemoryBudget.getInstance().register("playing", MemoryBudget.PRIORITY_PLAYING, null);
 
         if (getSupportActionBar() != null) {
             getSupportActionBar().hide();
@@ -327,6 +362,10 @@ public class PlayerActivity extends AppCompatActivity {
         buttonLess4 = findViewById(R.id.buttonLess4);
         buttonToggle4 = findViewById(R.id.buttonToggle4);
         playbackSpeedSeekBar = findViewById(R.id.playbackSpeedSeekBar);
+        clickVolumeSeekBar = findViewById(R.id.clickVolumeSeekBar);
+        transposeDownBtn = findViewById(R.id.transposeDownBtn);
+        transposeUpBtn = findViewById(R.id.transposeUpBtn);
+        transposeText = findViewById(R.id.transposeText);
         thumbnailContainer = findViewById(R.id.thumbnailContainer);
         fullScreenImageView = findViewById(R.id.fullScreenImageView);
         cameraSurfaceView = findViewById(R.id.cameraSurfaceView);
@@ -361,7 +400,39 @@ public class PlayerActivity extends AppCompatActivity {
         }
 
         // Initialize ExoPlayer as early as possible
-        exoPlayer = new ExoPlayer.Builder(this).build();
+        // The click overlay runs ahead of the sink's own processors, so speed changes apply to it too.
+        // Normalization comes first so it leaves the clicks' volume alone.
+        exoPlayer = new ExoPlayer.Builder(this, new DefaultRenderersFactory(this) {
+                @Override
+                protected AudioSink buildAudioSink(Context context, boolean enableFloatOutput,
+                                                   boolean enableAudioTrackPlaybackParams, boolean enableOffload) {
+                    return new DefaultAudioSink.Builder(context)
+                        .setAudioProcessors(new AudioProcessor[] {normalizationGain, clickOverlay})
+                        .setEnableFloatOutput(enableFloatOutput)
+                        .setEnableAudioTrackPlaybackParams(enableAudioTrackPlaybackParams)
+                        .build();
+                }
+            })
+            .setLoadControl(new DefaultLoadControl.Builder()
+                .setBufferDurationsMs(PLAYER_MIN_BUFFER_MS, PLAYER_MAX_BUFFER_MS,
+                    PLAYER_START_BUFFER_MS, PLAYER_START_BUFFER_MS)
+                .build())
+            .build();
+        exoPlayer.addAnalyticsListener(new AnalyticsListener() {
+            @Override
+            public void onAudioPositionAdvancing(EventTime eventTime, long playoutStartSystemTimeMs) {
+                if (exoPlayRequestTimeMs >= 0) {
+                    Log.d("Tunas", "ExoPlayer start latency " + (playoutStartSystemTimeMs - exoPlayRequestTimeMs) + "ms");
+                    exoPlayRequestTimeMs = -1;
+                }
+            }
+
+            @Override
+            public void onAudioUnderrun(EventTime eventTime, int bufferSize, long bufferSizeMs, long elapsedSinceLastFeedMs) {
+                // The output ran dry, so there was an audible gap even if the stream was contiguous
+                Log.w("Tunas", "ExoPlayer audio underrun, " + elapsedSinceLastFeedMs + "ms since the last feed");
+            }
+        });
 
         // Initialize position tracking
         initializePositionTracking();
@@ -380,6 +451,8 @@ public class PlayerActivity extends AppCompatActivity {
         setupLess4Button();
         setupToggle4Button();
         setupPlaybackSpeedSeekBar();
+        setupClickVolumeSeekBar();
+        setupTransposeButtons();
         setupLoopButton();
         setupGotoButton();
         setupFineTuneButtons();
@@ -472,7 +545,7 @@ public class PlayerActivity extends AppCompatActivity {
             thumb.setScaleType(ImageView.ScaleType.CENTER_CROP);
             thumb.setAdjustViewBounds(true);
             thumb.setBackgroundColor(0xFF000000);
-            thumb.setImageURI(android.net.Uri.fromFile(imageFiles.get(i)));
+            thumb.setImageBitmap(ImageCache.getInstance().get(imageFiles.get(i), size, size));
             thumb.setClickable(true);
 
             thumb.setOnClickListener(new View.OnClickListener() {
@@ -494,7 +567,10 @@ public class PlayerActivity extends AppCompatActivity {
             return;
         }
 
-        fullScreenImageView.setImageURI(android.net.Uri.fromFile(imageFiles.get(index)));
+        // Decoded at screen size, a full-resolution photo would take tens of megabytes
+        android.util.DisplayMetrics metrics = getResources().getDisplayMetrics();
+        fullScreenImageView.setImageBitmap(ImageCache.getInstance().get(imageFiles.get(index),
+                metrics.widthPixels, metrics.heightPixels));
         fullScreenImageView.setVisibility(View.VISIBLE);
     }
 
@@ -507,6 +583,21 @@ public class PlayerActivity extends AppCompatActivity {
             }
         });
 
+        // Long press on file name benchmarks parallel vs single-threaded decoding and metronome
+        // rendering (results in logcat)
+        fileNameText.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                if (audioFiles.isEmpty()) {
+                    return false;
+                }
+                Log.d("Tunas", "Starting decode benchmark for " + audioFiles.get(currentAudioIndex).getName());
+                DecodeBenchmark.runInBackground(audioFiles.get(currentAudioIndex));
+                MetronomeBenchmark.runInBackground();
+                return true;
+            }
+        });
+
         // Hide full screen image when clicked
         if (fullScreenImageView != null) {
             fullScreenImageView.setOnClickListener(new View.OnClickListener() {
@@ -536,7 +627,12 @@ public class PlayerActivity extends AppCompatActivity {
     }
 
     private void updateStopStartButtonLabel() {
-        String baseText = "stop | start";
+        String baseText = loopEngine != null ? "stop | start ⚡" : "stop | start";
+        if (switchHandover == SWITCH_AT_NEXT_BAR) {
+            baseText += " ⇥bar";
+        } else if (switchHandover == SWITCH_AT_LOOP_END) {
+            baseText += " ⇥loop";
+        }
         if (handWaveDetector != null) {
             stopStartBtn.setText("🤙    " + baseText + "    🤙");
         } else {
@@ -551,38 +647,22 @@ public class PlayerActivity extends AppCompatActivity {
                 Log.d("Tunas", "Stop/Start button clicked, current state: isStopped=" + isStopped);
                 if (isStopped) {
                     Log.d("Tunas", "Starting playback manually");
-
-                    // Check if whole file is selected
-                    boolean isWholeFileSelected = (barPositions != null && !barPositions.isEmpty()) &&
-                                                 (selectionStartBar == 0 && selectionEndBar == barPositions.size() - 1);
-
-                    if (isWholeFileSelected && exoPlayer.getMediaItemCount() > 0) {
-                        // Whole file selected - continue from where we left off
-                        Log.d("Tunas", "Whole file selected, continuing from current position");
-
-                        // If player has reached end of playback, seek back to beginning first
-                        if (exoPlayer.getPlaybackState() == Player.STATE_ENDED) {
-                            Log.d("Tunas", "Player at end of playback, seeking to beginning");
-                            exoPlayer.seekTo(0);
-                        }
-
-                        exoPlayer.play();
-                        isStopped = false;
-                    } else if (exoPlayer.getMediaItemCount() > 0) {
-                        // Not whole file but media source exists - start from selection start (point A)
-                        Log.d("Tunas", "Starting from selection start (point A)");
-                        if (selectionStartBar >= 0 && barPositions != null && selectionStartBar < barPositions.size()) {
-                            exoPlayer.seekTo(0);
-                        }
-                        exoPlayer.play();
+                    if (sourcePending) {
+                        // Don't play the outdated source; start once the selection's source is ready
+                        Log.d("Tunas", "Source still being built, starting once it is ready");
                         isStopped = false;
-                    } else {
-                        Log.d("Tunas", "No media source available, cannot start playback");
+                        afterSourceReady = new Runnable() {
+                            @Override
+                            public void run() {
+                                startPlaybackManually();
+                            }
+                        };
+                        return;
                     }
+                    startPlaybackManually();
                 } else {
                     Log.d("Tunas", "Pausing playback manually");
-                    exoPlayer.pause();
-                    isStopped = true;
+                    pausePlayback();
                 }
             }
         });
@@ -600,14 +680,54 @@ public class PlayerActivity extends AppCompatActivity {
         updateStopStartButtonLabel();
     }
 
+    private void startPlaybackManually() {
+        // Check if whole file is selected
+        boolean isWholeFileSelected = (barPositions != null && !barPositions.isEmpty()) &&
+                                     (selectionStartBar == 0 && selectionEndBar == barPositions.size() - 1);
+
+        if (isWholeFileSelected && hasPlayerSource()) {
+            // Whole file selected - continue from where we left off
+            Log.d("Tunas", "Whole file selected, continuing from current position");
+
+            // If player has reached end of playback, seek back to beginning first
+            if (!loopEngineActive && exoPlayer.getPlaybackState() == Player.STATE_ENDED) {
+                Log.d("Tunas", "Player at end of playback, seeking to beginning");
+                exoSeekTo(0);
+            }
+
+            playerPlay();
+            isStopped = false;
+        } else if (hasPlayerSource()) {
+            // Not whole file but media source exists - start from selection start (point A)
+            Log.d("Tunas", "Starting from selection start (point A)");
+            if (selectionStartBar >= 0 && barPositions != null && selectionStartBar < barPositions.size()) {
+                playerSeekTo(0);
+            }
+            playerPlay();
+            isStopped = false;
+        } else {
+            Log.d("Tunas", "No media source available, cannot start playback");
+            isStopped = true;
+        }
+    }
+
+    /**
+     * Pauses playback, including playback that was waiting for a pending source.
+     */
+    private void pausePlayback() {
+        afterSourceReady = null;
+        playerPause();
+        isStopped = true;
+    }
+
     private void setupPlaybackSpeedSeekBar() {
         playbackSpeedSeekBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
             @Override
             public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
                 if (fromUser) {
-                    // Map progress 0-60 to speed 0.4-1.0 (40%-100%)
-                    float speed = 0.4f + (progress / 60.0f) * 0.6f;
-                    exoPlayer.setPlaybackParameters(exoPlayer.getPlaybackParameters().withSpeed(speed));
+                    // Map progress 0-75 to speed 0.25-1.0 (25%-100%)
+                    float speed = 0.25f + progress / 100.0f;
+                    setPlayerSpeed(speed);
                 }
             }
 
@@ -616,15 +736,69 @@ public class PlayerActivity extends AppCompatActivity {
                 // Not needed
             }
 
+            @Override
+            public void onStopTrackingTouch(SeekBar seekBar) {
+                // Real-time stretching covers the drag; the loop is rendered once the speed is chosen
+                requestStretchedLoop();
+            }
+        });
+
+        // Set default to 100% (progress = 75)
+        playbackSpeedSeekBar.setProgress(75);
+        setPlayerSpeed(1.0f);
+    }
+
+    private void setupClickVolumeSeekBar() {
+        clickVolumeSeekBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                // Progress 0-100 is the click overlay volume; 0 turns the clicks off
+                clickOverlay.setVolume(progress / 100.0f);
+            }
+
+            @Override
+            public void onStartTrackingTouch(SeekBar seekBar) {
+                // Not needed
+            }
+
             @Override
             public void onStopTrackingTouch(SeekBar seekBar) {
                 // Not needed
             }
         });
+        clickVolumeSeekBar.setProgress(0);
+    }
+
+    private void setupTransposeButtons() {
+        transposeDownBtn.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                setTranspose(transposeSemitones - 1);
+            }
+        });
+        transposeUpBtn.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                setTranspose(transposeSemitones + 1);
+            }
+        });
+        setTranspose(0);
+    }
 
-        // Set default to 100% (progress = 60)
-        playbackSpeedSeekBar.setProgress(60);
-        exoPlayer.setPlaybackParameters(exoPlayer.getPlaybackParameters().withSpeed(1.0f));
+    /**
+     * Transposes playback by semitones. Real-time pitch shifting covers the change until the
+     * loop has been rendered at the new pitch.
+     */
+    private void setTranspose(int semitones) {
+        transposeSemitones = Math.max(-MAX_TRANSPOSE_SEMITONES, Math.min(MAX_TRANSPOSE_SEMITONES, semitones));
+        transposeText.setText((transposeSemitones > 0 ? "+" : "") + transposeSemitones + " st");
+        applyExoPlaybackParameters();
+        if (loopEngine != null) {
+            loopEngine.setPitch(PitchShifter.pitchRatio(transposeSemitones));
+        }
+        if (hasPlayerSource()) {
+            requestStretchedLoop();
+        }
     }
 
     private void setupLoopButton() {
@@ -636,8 +810,7 @@ public class PlayerActivity extends AppCompatActivity {
             public void onClick(View v) {
                 // Stop playback when switching modes
                 if (!isStopped) {
-                    exoPlayer.pause();
-                    isStopped = true;
+                    pausePlayback();
                 }
                 // Tap toggles repeat/off; alternating mode also goes directly to off.
                 loopMode = (loopMode == LOOP_MODE_OFF) ? LOOP_MODE_REPEAT : LOOP_MODE_OFF;
@@ -659,8 +832,7 @@ public class PlayerActivity extends AppCompatActivity {
                     return true;
                 }
                 if (!isStopped) {
-                    exoPlayer.pause();
-                    isStopped = true;
+                    pausePlayback();
                 }
                 loopMode = LOOP_MODE_ALTERNATING_METRONOME;
                 updateMediaSource();
@@ -922,11 +1094,11 @@ public class PlayerActivity extends AppCompatActivity {
                     if (fullySelectBar(i)) {
                         // Fully selected bars (between start and end) - no partial selection
                         int colorIndex = i % numColors;
-                        button.setBackgroundColor(rainbowColors[colorIndex]);
+                        setBarButtonColor(button, rainbowColors[colorIndex]);
                         // Log.d("Tunas", "highlightBars: bar " + i + " set to FULL rainbow (between bars)");
                     } else {
                         // Default gray background for non-selected bars
-                        button.setBackgroundColor(0xFFE0E0E0);
+                        setBarButtonColor(button, 0xFFE0E0E0);
                         // Log.d("Tunas", "highlightBars: bar " + i + " set to GRAY (unselected)");
                     }
                 } else {
@@ -1132,10 +1304,35 @@ public class PlayerActivity extends AppCompatActivity {
         button.setLayoutParams(params);
         button.setText(String.valueOf(displayNumber)); // Display section-local number
         button.setId(globalIndex); // Use global index for ID (1-based for button listeners)
-        button.setBackgroundColor(0xFFE0E0E0); // Default gray background
+        // Default gray background, with the bar's waveform drawn on it
+        int bar = globalIndex - 1;
+        long barEndMs = bar + 1 < barPositions.size() ? barPositions.get(bar + 1) : audioDuration;
+        button.setBackground(new WaveformDrawable(0xFFE0E0E0, waveformPyramid, barPositions.get(bar), barEndMs));
         return button;
     }
 
+    private void setBarButtonColor(Button button, int color) {
+        if (button.getBackground() instanceof WaveformDrawable) {
+            ((WaveformDrawable) button.getBackground()).setColor(color);
+        } else {
+            button.setBackgroundColor(color);
+        }
+    }
+
+    /**
+     * Draws the current file's waveform behind the bar buttons once its pyramid is built.
+     */
+    private void showWaveform(WaveformCache.Pyramid pyramid) {
+        waveformPyramid = pyramid;
+        int numBars = barPositions != null ? barPositions.size() : 0;
+        for (int i = 0; i < numBars; i++) {
+            Button button = findViewById(i + 1); // Button IDs are 1-based
+            if (button != null && button.getBackground() instanceof WaveformDrawable) {
+                ((WaveformDrawable) button.getBackground()).setPyramid(pyramid);
+            }
+        }
+    }
+
     private void fillRowWithSpacers(LinearLayout rowLayout, int numSpacers) {
         for (int i = 0; i < numSpacers; i++) {
             View spacer = new View(this);
@@ -1313,60 +1510,322 @@ public class PlayerActivity extends AppCompatActivity {
         Log.d("Tunas", "updateMediaSource called");
 
         // Selection is always valid - use current selection range
-        long startMs = calculateSelectionStartMs();
-        long endMs = calculateSelectionEndMs();
+        final long startMs = calculateSelectionStartMs();
+        final long endMs = calculateSelectionEndMs();
 
         Log.d("Tunas", "updateMediaSource: selection from bar " + selectionStartBar +
               " to " + selectionEndBar + ", startMs=" + startMs + ", endMs=" + endMs);
 
+        final File audioFile = audioFiles.get(currentAudioIndex);
+        SelectionPipeline.SourceBuilder builder;
+
+        long durationMs = endMs - startMs;
+        final boolean looped = loopMode != LOOP_MODE_OFF && durationMs > 200;
+        if (looped) {
+            // Loops are endless: the source holds whole cycles adding up to about
+            // LOOP_PERIOD_MS and the player repeats it, so positions stay bounded however
+            // long the session runs
+            final int loopRepeats = (int) Math.max(1, LOOP_PERIOD_MS / durationMs);
+
+            // Metronome bar offsets for alternating mode, null for a plain loop
+            final long[] metronomeBarOffsetsMs = (loopMode == LOOP_MODE_ALTERNATING_METRONOME) ?
+                buildSelectedBarOffsetsMs(startMs, endMs) : null;
+            // Double-buffered: the current loop plays on, so the next one is rendered in full
+            // rather than streamed, and can be handed over to without stopping the player
+            final boolean doubleBuffered = switchHandover != SWITCH_IMMEDIATE && activeLiveLoop != null && isPlayerPlaying();
+            builder = new SelectionPipeline.SourceBuilder() {
+                @Override
+                public MediaSource build(CancellationSignal cancellationSignal) throws IOException {
+                    // PCM WAVs are looped straight from the mapped file, with no decoding
+                    WavFile wav = WavFile.open(audioFile);
+                    if (wav != null) {
+                        return AudioLoopUtils.createMappedWavLoopSource(wav, startMs, endMs, metronomeBarOffsetsMs, loopRepeats);
+                    }
+
+                    // Prefetched cycles make switching to a predicted loop instant. Looked up
+                    // before the budget makes room, which could evict this very cycle.
+                    AudioLoopUtils.LoopCycle cycle = loopPrefetcher.lookup(audioFile, startMs, endMs, metronomeBarOffsetsMs);
+                    if (cycle != null) {
+                        return AudioLoopUtils.createLoopedPcmMediaSource(cycle, loopRepeats);
+                    }
+
+                    // Selections the heap budget can't take loop straight from the mapped PCM cache.
+                    // Only loops too long for any heap buffer wait for the whole file to be decoded;
+                    // the rest stream until the cache entry is ready.
+                    PcmCache pcmCache = PcmCache.getInstance(PlayerActivity.this);
+                    long loopBytes = estimateLoopBytes(audioFile, startMs, endMs, metronomeBarOffsetsMs != null);
+                    boolean onHeap = MemoryBudget.getInstance().chooseLoopStorage(loopBytes) == MemoryBudget.Storage.HEAP;
+                    if (!onHeap) {
+                        PcmCache.CachedPcm cached = pcmCache.get(audioFile);
+                        if (cached == null && !MemoryBudget.getInstance().fitsOnHeap(loopBytes)) {
+                            cached = pcmCache.getBlocking(audioFile, cancellationSignal);
+                        }
+                        if (cached != null) {
+                            return AudioLoopUtils.createMappedLoopSource(cached.sliceView(startMs, endMs),
+                                cached.sampleRate, cached.channelCount, metronomeBarOffsetsMs, loopRepeats);
+                        }
+                    }
+
+                    // Slicing from the PCM cache is quick; otherwise stream while decoding so
+                    // playback starts before the whole selection is decoded
+                    if (onHeap && (doubleBuffered || pcmCache.get(audioFile) != null)) {
+                        cycle = AudioLoopUtils.renderLoopCycle(
+                            PlayerActivity.this, audioFile, startMs, endMs, metronomeBarOffsetsMs, cancellationSignal);
+                        loopPrefetcher.offer(audioFile, startMs, endMs, metronomeBarOffsetsMs, cycle);
+                        return AudioLoopUtils.createLoopedPcmMediaSource(cycle, loopRepeats);
+                    }
+                    pcmCache.cacheInBackground(audioFile);
+                    StreamingLoopSource streamingLoop = StreamingLoopSource.start(PlayerActivity.this, audioFile,
+                        startMs, endMs, metronomeBarOffsetsMs, loopRepeats, new StreamingLoopSource.CompletionListener() {
+                            @Override
+                            public void onCycleDecoded(AudioLoopUtils.LoopCycle decodedCycle) {
+                                loopPrefetcher.offer(audioFile, startMs, endMs, metronomeBarOffsetsMs, decodedCycle);
+                            }
+                        });
+                    streamingLoop.cancelWith(cancellationSignal);
+                    return streamingLoop.getMediaSource();
+                }
+            };
+        } else {
+            builder = new SelectionPipeline.SourceBuilder() {
+                @Override
+                public MediaSource build(CancellationSignal cancellationSignal) {
+                    WavFile wav = WavFile.open(audioFile);
+                    if (wav != null) {
+                        return AudioLoopUtils.createMappedWavClipSource(wav, startMs, endMs);
+                    }
+
+                    // Create data source factory for reading files
+                    DataSource.Factory dataSourceFactory = new com.google.android.exoplayer2.upstream.DefaultDataSource.Factory(PlayerActivity.this);
+
+                    // Fallback to simple clipping without looping
+                    // This leaks a little bit of audio from following bar, but we don't mind when not looping.
+                    MediaItem mediaItem = MediaItem.fromUri(android.net.Uri.fromFile(audioFile));
+                    return new ClippingMediaSource(
+                        new com.google.android.exoplayer2.source.ProgressiveMediaSource.Factory(dataSourceFactory)
+                            .createMediaSource(mediaItem),
+                        startMs * 1000,
+                        endMs * 1000
+                    );
+                }
+            };
+        }
+
+        // Build in the background; the current source keeps playing until the new one is ready.
+        // Prefetching pauses until then so it does not compete with the foreground build.
+        // Until then the player's source is outdated, so playback requests wait for the new one.
+        loopPrefetcher.cancel();
+        sourcePending = true;
+        selectionPipeline.submit(builder, new SelectionPipeline.Listener() {
+            @Override
+            public void onSourceReady(MediaSource mediaSource) {
+                sourcePending = false;
+                applyMediaSource(mediaSource, audioFile, startMs, endMs, looped, 1.0f, 0);
+                runAfterSourceReady();
+                requestStretchedLoop();
+                loopPrefetcher.schedule(buildPrefetchCandidates());
+            }
+
+            @Override
+            public void onSourceFailed() {
+                sourcePending = false;
+                afterSourceReady = null;
+                isStopped = !isPlayerPlaying();
+            }
+        });
+    }
+
+    private void runAfterSourceReady() {
+        Runnable action = afterSourceReady;
+        afterSourceReady = null;
+        if (action != null) {
+            action.run();
+        }
+    }
+
+    /**
+     * Predicts the loops most likely to be selected next, most likely first: the next 4 bars,
+     * the current section and the section after it.
+     */
+    private List<LoopPrefetcher.Candidate> buildPrefetchCandidates() {
+        List<LoopPrefetcher.Candidate> candidates = new ArrayList<>();
+        if (loopMode == LOOP_MODE_OFF || barPositions == null || barPositions.isEmpty()) {
+            return candidates;
+        }
+        // Loops of mapped WAV files are built instantly, there is nothing to prefetch
+        if (WavFile.open(audioFiles.get(currentAudioIndex)) != null) {
+            return candidates;
+        }
+        int lastBar = barPositions.size() - 1;
+
+        // Next 4 bars after the selection
+        int nextStartBar = selectionEndBar + 1;
+        if (nextStartBar <= lastBar) {
+            addPrefetchCandidate(candidates, nextStartBar, Math.min(nextStartBar + 3, lastBar));
+        }
+
+        // The section containing the selection start
+        int sectionStartBar = 0;
+        if (isSectionMarker != null && isSectionMarker.size() == barPositions.size()) {
+            for (int i = Math.min(selectionStartBar, lastBar); i >= 0; i--) {
+                if (isSectionMarker.get(i)) {
+                    sectionStartBar = i;
+                    break;
+                }
+            }
+        }
+        int sectionEndBar = findSectionEndBarInclusive(sectionStartBar);
+        addPrefetchCandidate(candidates, sectionStartBar, sectionEndBar);
+
+        // The section after it
+        if (sectionEndBar + 1 <= lastBar) {
+            addPrefetchCandidate(candidates, sectionEndBar + 1, findSectionEndBarInclusive(sectionEndBar + 1));
+        }
+        return candidates;
+    }
+
+    private void addPrefetchCandidate(List<LoopPrefetcher.Candidate> candidates, int startBar, int endBar) {
+        boolean isCurrentSelection = startBar == selectionStartBar && endBar == selectionEndBar &&
+            selectionStartTwelfths == 0 && selectionEndTwelfths == 11;
+        if (isCurrentSelection) {
+            return;
+        }
+        long startMs = barPositions.get(startBar);
+        long endMs = (endBar + 1 < barPositions.size()) ? barPositions.get(endBar + 1) : audioDuration;
+        long durationMs = endMs - startMs;
+        if (durationMs <= 200) {
+            return;
+        }
+        long[] metronomeBarOffsetsMs = (loopMode == LOOP_MODE_ALTERNATING_METRONOME) ?
+            buildBarOffsetsMs(startBar, endBar, startMs, endMs) : null;
+        // Only loops rendered onto the heap are worth prefetching
+        File audioFile = audioFiles.get(currentAudioIndex);
+        if (!MemoryBudget.getInstance().fitsOnHeap(estimateLoopBytes(audioFile, startMs, endMs, metronomeBarOffsetsMs != null))) {
+            return;
+        }
+        candidates.add(new LoopPrefetcher.Candidate(audioFile, startMs, endMs, metronomeBarOffsetsMs));
+    }
+
+    /**
+     * @param stretch Speed the source was rendered at by StretchedLoopCache, 1 for normal sources
+     * @param semitones Transposition the source was rendered at by StretchedLoopCache, 0 for normal
+     *                  sources
+     */
+    private void applyMediaSource(MediaSource mediaSource, File audioFile, long startMs, long endMs, boolean looped,
+                                  float stretch, int semitones) {
+        if (exoPlayer == null) {
+            return;
+        }
+
+        // Remember where we are in the outgoing source so playback can continue inside the new
+        // selection; a position in another file means nothing in this one
+        boolean wasPlaying = isPlayerPlaying() && audioFile.equals(playerSourceFile);
+        long absolutePlaybackMs = 0L;
+        if (wasPlaying) {
+            absolutePlaybackMs = getCurrentAbsolutePositionMs();
+        }
+        playerSourceFile = audioFile;
+        // Play at the file's normalized loudness from the moment its source takes over
+        applyNormalizationGain(audioFile);
+
+        // A rendered source plays at normal speed and pitch; the rest of the chosen ones are done in real time
+        sourceStretch = stretch;
+        sourceSemitones = semitones;
+        applyExoPlaybackParameters();
+
         // Track the media source start time and segment duration for position indicator
         currentMediaSourceStartMs = startMs;
         currentSegmentDurationMs = endMs - startMs;
         Log.d("Tunas", "MediaSource set: startMs=" + startMs + ", endMs=" + endMs +
               ", currentMediaSourceStartMs=" + currentMediaSourceStartMs);
 
-        // Prevent auto play
-        exoPlayer.stop();
-        exoPlayer.setPlayWhenReady(false);
-        exoPlayer.setRepeatMode(exoPlayer.REPEAT_MODE_OFF);
-
-        long durationMs = endMs - startMs;
-        if ((loopMode != LOOP_MODE_OFF) && durationMs < 60000 && durationMs > 200) {
-            try {
-                // Calculate number of repeats to not exceed 5 minutes total
-                int repeats;
-                // Calculate repeats so total time doesn't exceed 10 minutes (600,000 ms)
-                repeats = (int) Math.ceil(300000.0 / durationMs);
-                repeats = Math.min(repeats, 20); // Cap at 20 repeats maximum
-                repeats = Math.max(repeats, 2); // At least 2 repeats
+        // Stop decoding for the outgoing source if it was still streaming
+        if (activeStreamingLoop != null) {
+            Log.d("Tunas", "applyMediaSource: replacing streaming loop, time to first sound was " +
+                  activeStreamingLoop.getTimeToFirstSoundMs() + "ms");
+            activeStreamingLoop.cancel();
+        }
+        activeStreamingLoop = StreamingLoopSource.fromMediaSource(mediaSource);
+        playingAccount.setBytes(heapBytesOf(mediaSource));
+
+        // Loops over PCM that is already in memory or mapped can go to the low-latency engine
+        SegmentedPcmSource.Cycle engineCycle = (loopEngine != null && looped && stretch == 1.0f && semitones == 0) ?
+            SegmentedPcmSource.Cycle.fromMediaSource(mediaSource) : null;
+        if (engineCycle != null) {
+            boolean continuing = wasPlaying && absolutePlaybackMs >= startMs && absolutePlaybackMs < endMs;
+            loopEngineActive = true;
+            exoPlayer.stop();
+            exoPlayer.clearMediaItems();
+            activeLiveLoop = null;
+            if (!continuing) {
+                loopEngine.pause();
+            }
+            // The engine switches cycles between blocks, without stopping the track
+            loopEngine.setCycle(engineCycle, continuing ? absolutePlaybackMs - startMs : 0);
+            if (continuing) {
+                playerPlay();
+                isStopped = false;
+                Log.d("Tunas", "applyMediaSource: loop engine continuing at " + (absolutePlaybackMs - startMs) + "ms");
+            } else {
+                isStopped = true;
+                Log.d("Tunas", "applyMediaSource: loop engine cycle updated without continuing playback");
+            }
+            return;
+        }
+        if (loopEngineActive) {
+            loopEngine.pause();
+            loopEngineActive = false;
+        }
 
-                if (loopMode == LOOP_MODE_ALTERNATING_METRONOME) {
-                    long[] selectedBarOffsetsMs = buildSelectedBarOffsetsMs(startMs, endMs);
-                    exoPlayer.setMediaSource(AudioLoopUtils.createAlternatingLoopedPcmMediaSource(
-                        this, audioFiles.get(currentAudioIndex), startMs, endMs, repeats, selectedBarOffsetsMs));
-                } else {
-                    exoPlayer.setMediaSource(AudioLoopUtils.createLoopedPcmMediaSource(
-                        this, audioFiles.get(currentAudioIndex), startMs, endMs, repeats));
-                }
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+        // Loops over ready PCM become live loops, so later edits move them without re-preparing
+        SegmentedPcmSource.Cycle liveCycle = (looped && stretch == 1.0f && semitones == 0) ?
+            SegmentedPcmSource.Cycle.fromMediaSource(mediaSource) : null;
+        if (liveCycle != null && activeLiveLoop != null && activeLiveLoop.canPlay(audioFile, liveCycle)
+                && wasPlaying && switchHandover != SWITCH_IMMEDIATE) {
+            long[] barStartsMs = switchHandover == SWITCH_AT_NEXT_BAR ? getBarStartsMs() : null;
+            long handoverMs = activeLiveLoop.queue(liveCycle, startMs, endMs, exoPlayer.getCurrentPosition(), barStartsMs);
+            isStopped = false;
+            Log.d("Tunas", "applyMediaSource: live loop hands over at " + handoverMs + "ms, in " +
+                  (handoverMs - exoPlayer.getCurrentPosition()) + "ms");
+            return;
+        }
+        if (liveCycle != null && activeLiveLoop != null && activeLiveLoop.canPlay(audioFile, liveCycle)) {
+            long seekMs = activeLiveLoop.update(liveCycle, startMs, endMs, exoPlayer.getCurrentPosition(), wasPlaying);
+            if (seekMs >= 0) {
+                exoSeekTo(seekMs);
             }
+            isStopped = !wasPlaying;
+            Log.d("Tunas", "applyMediaSource: live loop moved, " + (wasPlaying ? "still playing" : "stopped"));
+            return;
+        }
+        if (liveCycle != null) {
+            activeLiveLoop = LiveLoopSource.create(audioFile, liveCycle, startMs, endMs);
+            mediaSource = activeLiveLoop.getMediaSource();
         } else {
-            // Create data source factory for reading files
-            DataSource.Factory dataSourceFactory = new com.google.android.exoplayer2.upstream.DefaultDataSource.Factory(this);
-
-            // Fallback to simple clipping without looping
-            // This leaks a little bit of audio from following bar, but we don't mind when not looping.
-            MediaItem mediaItem = MediaItem.fromUri(android.net.Uri.fromFile(audioFiles.get(currentAudioIndex)));
-            ClippingMediaSource clippingSource = new ClippingMediaSource(
-                new com.google.android.exoplayer2.source.ProgressiveMediaSource.Factory(dataSourceFactory)
-                    .createMediaSource(mediaItem),
-                startMs * 1000,
-                endMs * 1000
-            );
-            exoPlayer.setMediaSource(clippingSource);
+            activeLiveLoop = null;
         }
+
+        clickOverlay.setBars(getBarStartsMs(), audioDuration);
+        clickOverlay.setTimeline(createClickTimeline(activeLiveLoop, startMs, endMs, looped, stretch));
+
+        // Prevent auto play
+        exoPlayer.stop();
+        exoPlayer.setPlayWhenReady(false);
+        exoPlayer.setRepeatMode(looped ? exoPlayer.REPEAT_MODE_ONE : exoPlayer.REPEAT_MODE_OFF);
+        exoPlayer.setMediaSource(mediaSource);
         exoPlayer.prepare();
+
+        if (wasPlaying && absolutePlaybackMs >= startMs && absolutePlaybackMs < endMs) {
+            long seekMs = absolutePlaybackMs - startMs;
+            playerSeekTo(seekMs);
+            playerPlay();
+            isStopped = false;
+            Log.d("Tunas", "applyMediaSource: continuing playback at " + seekMs + "ms within new selection");
+            return;
+        }
+
+        isStopped = true;
+        Log.d("Tunas", "applyMediaSource: media source updated without continuing playback");
     }
 
     private long calculateSelectionStartMs() {
@@ -1406,12 +1865,275 @@ public class PlayerActivity extends AppCompatActivity {
         return barStartMs + twelfthOffsetMs;
     }
 
+    /**
+     * Position within the selection. Endless loops repeat a source of whole cycles, so the
+     * player position never runs past one repetition and rounding errors cannot accumulate.
+     */
     private long getCurrentPositionInSegment() {
-        long currentPosition = exoPlayer.getCurrentPosition();
+        long currentPosition = Math.round(getPlayerPosition() * (double) sourceStretch);
         return (currentSegmentDurationMs > 0) ?
             (currentPosition % currentSegmentDurationMs) : currentPosition;
     }
 
+    /**
+     * Position in the file. A live loop knows which of its regions is audible, which may still
+     * be the previous selection until the next loop boundary.
+     */
+    private long getCurrentAbsolutePositionMs() {
+        if (!loopEngineActive && activeLiveLoop != null) {
+            return activeLiveLoop.getAbsolutePositionMs(exoPlayer.getCurrentPosition());
+        }
+        return currentMediaSourceStartMs + getCurrentPositionInSegment();
+    }
+
+    private boolean hasPlayerSource() {
+        return !sourcePending && (loopEngineActive || exoPlayer.getMediaItemCount() > 0);
+    }
+
+    private boolean isPlayerPlaying() {
+        return loopEngineActive ? loopEngine.isPlaying() : exoPlayer.isPlaying();
+    }
+
+    private long getPlayerPosition() {
+        return loopEngineActive ? loopEngine.getCurrentPosition() : exoPlayer.getCurrentPosition();
+    }
+
+    private void playerPlay() {
+        if (loopEngineActive) {
+            loopEngine.play();
+            // The engine has no listener, so start position tracking here; it stops itself on pause
+            handler.removeCallbacks(positionUpdateRunnable);
+            handler.post(positionUpdateRunnable);
+        } else {
+            exoPlayRequestTimeMs = System.currentTimeMillis();
+            exoPlayer.play();
+        }
+    }
+
+    private void playerPause() {
+        if (loopEngineActive) {
+            loopEngine.pause();
+            handler.removeCallbacks(positionUpdateRunnable);
+        } else {
+            exoPlayer.pause();
+        }
+    }
+
+    private void playerSeekTo(long positionMs) {
+        if (loopEngineActive) {
+            loopEngine.seekTo(positionMs);
+        } else if (activeLiveLoop != null) {
+            exoSeekTo(activeLiveLoop.getSeekPositionMs(positionMs));
+        } else {
+            exoSeekTo(Math.round(positionMs / (double) sourceStretch));
+        }
+    }
+
+    /**
+     * Seeks ExoPlayer, telling the click overlay where the audio restarts.
+     */
+    private void exoSeekTo(long positionMs) {
+        clickOverlay.setStartPosition(positionMs);
+        exoPlayer.seekTo(positionMs);
+    }
+
+    /**
+     * Maps positions in a new ExoPlayer source to the file, for the click overlay.
+     */
+    private ClickOverlayProcessor.Timeline createClickTimeline(final LiveLoopSource liveLoop, final long startMs,
+                                                               final long endMs, final boolean looped, final float stretch) {
+        if (looped && loopMode == LOOP_MODE_ALTERNATING_METRONOME) {
+            // Alternating loops have their own metronome half
+            return null;
+        }
+        if (liveLoop != null) {
+            return new ClickOverlayProcessor.Timeline() {
+                @Override
+                public long toFileMs(long sourceMs) {
+                    return liveLoop.getAbsolutePositionMs(sourceMs);
+                }
+            };
+        }
+        return new ClickOverlayProcessor.Timeline() {
+            @Override
+            public long toFileMs(long sourceMs) {
+                // The player's repeats continue the stream, so a loop's position wraps here
+                if (looped) {
+                    // Floored, so the file position never runs ahead of the audio; slowed down,
+                    // consecutive source milliseconds can map to the same file millisecond
+                    return startMs + (long) (sourceMs * (double) stretch) % (endMs - startMs);
+                }
+                return sourceMs < endMs - startMs ? startMs + sourceMs : -1;
+            }
+        };
+    }
+
+    private void setPlayerSpeed(float speed) {
+        // Both engines keep the speed so switching between them doesn't reset it
+        playbackSpeed = speed;
+        applyExoPlaybackParameters();
+        if (loopEngine != null) {
+            loopEngine.setSpeed(speed);
+        }
+    }
+
+    private void applyExoPlaybackParameters() {
+        exoPlayer.setPlaybackParameters(new PlaybackParameters(playbackSpeed / sourceStretch,
+            PitchShifter.pitchRatio(transposeSemitones - sourceSemitones)));
+    }
+
+    /**
+     * Below full speed or transposed, renders the current loop at the chosen speed and pitch in
+     * the background and switches to it once ready, so practice needs no real-time stretching or
+     * pitch shifting. Whole tunes stay shifted in real time. At full speed and pitch, goes back
+     * from a rendered loop to the normal one.
+     */
+    private void requestStretchedLoop() {
+        stretchedLoopCache.cancel();
+        if (playbackSpeed >= 1.0f && transposeSemitones == 0) {
+            if (sourceStretch != 1.0f || sourceSemitones != 0) {
+                updateMediaSource();
+            }
+            return;
+        }
+        final long startMs = calculateSelectionStartMs();
+        final long endMs = calculateSelectionEndMs();
+        boolean looped = loopMode != LOOP_MODE_OFF && endMs - startMs > 200;
+        // The loop engine stretches and transposes on its own track, and long loops would not fit in
+        // memory slowed down, nor while they are rendered, next to the input and a transposition's intermediate
+        int outputSlots = loopMode == LOOP_MODE_ALTERNATING_METRONOME ? 2 : 1;
+        long clipBytes = estimateLoopBytes(audioFiles.get(currentAudioIndex), startMs, endMs, false);
+        if (!looped || loopEngine != null || !hasPlayerSource() ||
+                (sourceStretch == playbackSpeed && sourceSemitones == transposeSemitones) ||
+                !MemoryBudget.getInstance().fitsOnHeap(PitchShifter.peakRenderBytes(clipBytes, playbackSpeed,
+                        transposeSemitones, outputSlots)) ||
+                !stretchedLoopCache.canHold((long) (clipBytes / playbackSpeed) * outputSlots)) {
+            return;
+        }
+
+        final File audioFile = audioFiles.get(currentAudioIndex);
+        final float speed = playbackSpeed;
+        final int semitones = transposeSemitones;
+        final int requestLoopMode = loopMode;
+        long[] metronomeBarOffsetsMs = (loopMode == LOOP_MODE_ALTERNATING_METRONOME) ?
+            buildSelectedBarOffsetsMs(startMs, endMs) : null;
+        stretchedLoopCache.request(audioFile, startMs, endMs, metronomeBarOffsetsMs, speed, semitones, new StretchedLoopCache.Listener() {
+            @Override
+            public void onStretched(AudioLoopUtils.LoopCycle cycle) {
+                // Too late if the loop, the speed or the transposition changed while it was rendered
+                if (playbackSpeed != speed || transposeSemitones != semitones || loopMode != requestLoopMode ||
+                        !audioFile.equals(audioFiles.get(currentAudioIndex)) || calculateSelectionStartMs() != startMs || calculateSelectionEndMs() != endMs) {
+                    return;
+                }
+                Log.d("Tunas", "Switching to loop pre-rendered at " + Math.round(speed * 100) + "%, " +
+                    semitones + " semitones");
+                int loopRepeats = (int) Math.max(1, LOOP_PERIOD_MS * speed / (endMs - startMs));
+                applyMediaSource(AudioLoopUtils.createLoopedPcmMediaSource(cycle, loopRepeats),
+                    audioFile, startMs, endMs, true, speed, semitones);
+            }
+        });
+    }
+
+    /**
+     * Switches loops between ExoPlayer and the low-latency AudioTrack engine and rebuilds the
+     * current selection on the chosen one.
+     */
+    private void toggleLoopEngine() {
+        if (!isStopped) {
+            pausePlayback();
+        }
+        if (loopEngine != null) {
+            loopEngine.release();
+            loopEngine = null;
+            loopEngineActive = false;
+            Log.d("Tunas", "Low-latency loop engine disabled");
+        } else {
+            loopEngine = new AudioTrackLoopEngine(new AudioTrackLoopEngine.Listener() {
+                @Override
+                public void onPlaybackFailed() {
+                    Log.w("Tunas", "Low-latency loop engine stopped after a track failure");
+                    if (loopEngineActive) {
+                        handler.removeCallbacks(positionUpdateRunnable);
+                        afterSourceReady = null;
+                        isStopped = true;
+                        updateStopStartButtonLabel();
+                    }
+                }
+            });
+            loopEngine.setSpeed(playbackSpeed);
+            loopEngine.setPitch(PitchShifter.pitchRatio(transposeSemitones));
+            loopEngine.setGain(normalizationGain.getGain());
+            Log.d("Tunas", "Low-latency loop engine enabled");
+        }
+        updateStopStartButtonLabel();
+        updateMediaSource();
+    }
+
+    /**
+     * Heap PCM held by a source, not counting mapped segments, which the OS pages in and out.
+     */
+    private long heapBytesOf(MediaSource mediaSource) {
+        SegmentedPcmSource.Cycle cycle = SegmentedPcmSource.Cycle.fromMediaSource(mediaSource);
+        if (cycle != null) {
+            long bytes = 0;
+            for (ByteBuffer segment : cycle.segments) {
+                if (!segment.isDirect()) {
+                    bytes += segment.capacity();
+                }
+            }
+            return bytes;
+        }
+        StreamingLoopSource streamingLoop = StreamingLoopSource.fromMediaSource(mediaSource);
+        return streamingLoop != null ? streamingLoop.getCycleBytes() : 0;
+    }
+
+    /**
+     * Size of a rendered loop cycle over the range, doubled by the metronome half in
+     * alternating mode. Assumes 48kHz stereo if the file can't be read.
+     */
+    private long estimateLoopBytes(File audioFile, long startMs, long endMs, boolean withMetronome) {
+        int sampleRate = 48000;
+        int bytesPerFrame = 4;
+        try {
+            AudioFileRegistry.AudioFileDescriptor descriptor = AudioFileRegistry.getInstance(this).get(audioFile);
+            sampleRate = descriptor.sampleRate;
+            bytesPerFrame = descriptor.getBytesPerFrame();
+        } catch (IOException e) {
+            Log.e("Tunas", "Failed to read format of " + audioFile.getName(), e);
+        }
+        long clipBytes = (endMs - startMs) * sampleRate / 1000 * bytesPerFrame;
+        return withMetronome ? clipBytes * 2 : clipBytes;
+    }
+
+    /**
+     * Sets both engines' gain to the file's loudness normalization.
+     */
+    private void applyNormalizationGain(File audioFile) {
+        float gain = AudioFileRegistry.getInstance(this).getNormalizationGain(audioFile);
+        normalizationGain.setGain(gain);
+        if (loopEngine != null) {
+            loopEngine.setGain(gain);
+        }
+    }
+
+    /**
+     * Cycles the handover of a changed loop: immediate, at the next bar, at the loop end.
+     */
+    private void cycleSwitchHandover() {
+        switchHandover = (switchHandover + 1) % 3;
+        Log.d("Tunas", "Loop switch handover: " + (switchHandover == SWITCH_AT_NEXT_BAR ? "next bar" :
+              switchHandover == SWITCH_AT_LOOP_END ? "loop end" : "immediate"));
+        updateStopStartButtonLabel();
+    }
+
+    private long[] getBarStartsMs() {
+        long[] barStartsMs = new long[barPositions != null ? barPositions.size() : 0];
+        for (int i = 0; i < barStartsMs.length; i++) {
+            barStartsMs[i] = barPositions.get(i);
+        }
+        return barStartsMs;
+    }
+
     private boolean canEnterAlternatingMetronomeMode() {
         if (barPositions == null || barPositions.isEmpty()) {
             return false;
@@ -1427,15 +2149,19 @@ public class PlayerActivity extends AppCompatActivity {
     }
 
     private long[] buildSelectedBarOffsetsMs(long selectionStartMs, long selectionEndMs) {
-        if (barPositions == null || barPositions.isEmpty() || selectionStartBar < 0 || selectionEndBar < selectionStartBar) {
+        return buildBarOffsetsMs(selectionStartBar, selectionEndBar, selectionStartMs, selectionEndMs);
+    }
+
+    private long[] buildBarOffsetsMs(int startBar, int endBar, long selectionStartMs, long selectionEndMs) {
+        if (barPositions == null || barPositions.isEmpty() || startBar < 0 || endBar < startBar) {
             return new long[]{0L, Math.max(1L, selectionEndMs - selectionStartMs)};
         }
 
-        int selectedBars = (selectionEndBar - selectionStartBar) + 1;
+        int selectedBars = (endBar - startBar) + 1;
         long[] offsetsMs = new long[selectedBars + 1];
         long prevOffsetMs = -1L;
         for (int i = 0; i < selectedBars; i++) {
-            long absoluteBarStartMs = barPositions.get(selectionStartBar + i);
+            long absoluteBarStartMs = barPositions.get(startBar + i);
             long offsetMs = Math.max(0L, absoluteBarStartMs - selectionStartMs);
             if (offsetMs <= prevOffsetMs) {
                 offsetMs = prevOffsetMs + 1L;
@@ -1453,30 +2179,11 @@ public class PlayerActivity extends AppCompatActivity {
     }
 
     private void handlePlaybackAfterSelectionChange(int newStartBar, int newEndBar, int newStartTwelfths, int newEndTwelfths) {
-        boolean wasPlaying = exoPlayer != null && exoPlayer.isPlaying();
-        long absolutePlaybackMs = 0L;
-        if (wasPlaying) {
-            absolutePlaybackMs = currentMediaSourceStartMs + getCurrentPositionInSegment();
-        }
-
         highlightBars(newStartBar, newEndBar, newStartTwelfths, newEndTwelfths);
-        updateMediaSource();
-
-        if (wasPlaying && exoPlayer != null) {
-            long newStartMs = calculateSelectionStartMs();
-            long newEndMs = calculateSelectionEndMs();
-            if (absolutePlaybackMs >= newStartMs && absolutePlaybackMs < newEndMs) {
-                long seekMs = absolutePlaybackMs - newStartMs;
-                exoPlayer.seekTo(seekMs);
-                exoPlayer.play();
-                isStopped = false;
-                Log.d("Tunas", "handleSelectionChange: continuing playback at " + seekMs + "ms within new selection");
-                return;
-            }
-        }
 
-        isStopped = true;
-        Log.d("Tunas", "handleSelectionChange: selection updated without continuing playback");
+        // The new source is prepared by the selection pipeline; rapid edits are coalesced and
+        // playback continues inside the new selection once it is ready (see applyMediaSource).
+        updateMediaSource();
     }
 
     private void onBarClicked(int barIndex) {
@@ -1535,6 +2242,19 @@ public class PlayerActivity extends AppCompatActivity {
             return;
         }
 
+        if (sourcePending) {
+            // Seeking now would move the outdated source; do it once the selection's source is ready
+            final int pendingBarIndex = barIndex;
+            isStopped = false;
+            afterSourceReady = new Runnable() {
+                @Override
+                public void run() {
+                    startPlaybackFromBarBeginning(pendingBarIndex);
+                }
+            };
+            return;
+        }
+
         long seekPositionMs = 0;
 
         if (barIndex == selectionStartBar) {
@@ -1551,11 +2271,11 @@ public class PlayerActivity extends AppCompatActivity {
         }
 
         // Seek to the beginning of the bar within the current selection
-        exoPlayer.seekTo(seekPositionMs);
+        playerSeekTo(seekPositionMs);
 
         // Start playback if not already playing
         if (isStopped) {
-            exoPlayer.play();
+            playerPlay();
             isStopped = false;
         }
 
@@ -1958,14 +2678,10 @@ public class PlayerActivity extends AppCompatActivity {
     private void createFakeBarsForM4A(File audioFile) {
         Log.d("Tunas", "createFakeBarsForM4A: Creating fake bars for " + audioFile.getName());
 
-        // Get audio duration using MediaExtractor
+        // Get audio duration from the metadata registry (probed at most once per file)
         long durationMs = 0;
         try {
-            MediaExtractor extractor = new MediaExtractor();
-            extractor.setDataSource(audioFile.getAbsolutePath());
-            MediaFormat format = extractor.getTrackFormat(0);
-            durationMs = format.getLong(MediaFormat.KEY_DURATION) / 1000; // Convert to milliseconds
-            extractor.release();
+            durationMs = AudioFileRegistry.getInstance(this).get(audioFile).getDurationMs();
             Log.d("Tunas", "createFakeBarsForM4A: Audio duration = " + durationMs + "ms");
         } catch (Exception e) {
             Log.e("Tunas", "createFakeBarsForM4A: Failed to get audio duration", e);
@@ -2036,6 +2752,36 @@ public class PlayerActivity extends AppCompatActivity {
         // Load bar positions for this audio file
         loadBarPositions(index);
 
+        // PCM WAVs are served from a file mapping; anything else is decoded into the PCM cache
+        // in the background so loops can be sliced from it
+        if (WavFile.open(audioFiles.get(index)) == null) {
+            PcmCache.getInstance(this).cacheInBackground(audioFiles.get(index));
+        }
+
+        // Measure the file's loudness if it is new. Its gain is applied once its source
+        // replaces the previous file's (see applyMediaSource).
+        LoudnessAnalyzer.getInstance(this).analyzeInBackground(audioFiles.get(index), new LoudnessAnalyzer.Listener() {
+            @Override
+            public void onAnalyzed(File audioFile) {
+                if (audioFile.equals(playerSourceFile)) {
+                    applyNormalizationGain(audioFile);
+                }
+            }
+        });
+
+        // Bars show the file's waveform, from the cached peaks or once they are built
+        waveformPyramid = WaveformCache.getInstance(this).get(audioFiles.get(index));
+        if (waveformPyramid == null) {
+            WaveformCache.getInstance(this).buildInBackground(audioFiles.get(index), new WaveformCache.Listener() {
+                @Override
+                public void onWaveformReady(File audioFile, WaveformCache.Pyramid pyramid) {
+                    if (audioFile.equals(audioFiles.get(currentAudioIndex))) {
+                        showWaveform(pyramid);
+                    }
+                }
+            });
+        }
+
         // Create buttons based on loaded bar positions
         createButtonGrid();
         setupBarButtons();
@@ -2068,7 +2814,7 @@ public class PlayerActivity extends AppCompatActivity {
                     // Start position tracking when playback begins
                     Log.d("Tunas", "Starting position tracking");
                     handler.post(positionUpdateRunnable);
-                } else {
+                } else if (!loopEngineActive) {
                     // Stop position tracking when playback stops
                     Log.d("Tunas", "Stopping position tracking, resetting currentMediaSourceStartMs to 0");
                     handler.removeCallbacks(positionUpdateRunnable);
@@ -2116,8 +2862,7 @@ public class PlayerActivity extends AppCompatActivity {
             // Stop playback when changing audio file
             if (!isStopped) {
                 Log.d("Tunas", "nextAudio: pausing current playback");
-                exoPlayer.pause();
-                isStopped = true;
+                pausePlayback();
             }
 
             currentAudioIndex = (currentAudioIndex + 1) % audioFiles.size();
@@ -2164,8 +2909,7 @@ public class PlayerActivity extends AppCompatActivity {
                     return;
                 }
                 long selectionStartMs = calculateSelectionStartMs();
-                long positionInSegment = getCurrentPositionInSegment();
-                long absoluteMs = currentMediaSourceStartMs + positionInSegment;
+                long absoluteMs = getCurrentAbsolutePositionMs();
 
                 // Find current bar index (last bar where bar start <= absoluteMs)
                 int currentBarIndex = -1;
@@ -2200,8 +2944,17 @@ public class PlayerActivity extends AppCompatActivity {
                 }
 
                 long seekPositionMs = targetAbsoluteMs - selectionStartMs;
-                exoPlayer.seekTo(seekPositionMs);
-                updatePositionDot(exoPlayer.getCurrentPosition());
+                playerSeekTo(seekPositionMs);
+                updatePositionDot(getCurrentAbsolutePositionMs());
+            }
+        });
+
+        // Long press switches how a changed loop takes over while playing
+        buttonLess4.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                cycleSwitchHandover();
+                return true;
             }
         });
     }
@@ -2221,8 +2974,7 @@ public class PlayerActivity extends AppCompatActivity {
 
                 if (wholeTuneSelected) {
                     // Select 4 bars ending on current bar; in the first 3 bars, use first 4 bars of tune
-                    long positionInSegment = getCurrentPositionInSegment();
-                    long absoluteMs = currentMediaSourceStartMs + positionInSegment;
+                    long absoluteMs = getCurrentAbsolutePositionMs();
                     int currentBarIndex = -1;
                     for (int i = 0; i < barPositions.size(); i++) {
                         if (absoluteMs >= barPositions.get(i)) {
@@ -2252,6 +3004,15 @@ public class PlayerActivity extends AppCompatActivity {
                 }
             }
         });
+
+        // Long press switches loop playback between ExoPlayer and the low-latency AudioTrack engine
+        buttonToggle4.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                toggleLoopEngine();
+                return true;
+            }
+        });
     }
 
     private void createHandWaveDetector() {
@@ -2304,6 +3065,19 @@ public class PlayerActivity extends AppCompatActivity {
         if (handler != null && positionUpdateRunnable != null) {
             handler.removeCallbacks(positionUpdateRunnable);
         }
+        selectionPipeline.release();
+        loopPrefetcher.release();
+        stretchedLoopCache.release();
+        MemoryBudget.getInstance().unregister(playingAccount);
+        if (activeStreamingLoop != null) {
+            activeStreamingLoop.cancel();
+            activeStreamingLoop = null;
+        }
+        if (loopEngine != null) {
+            loopEngine.release();
+            loopEngine = null;
+            loopEngineActive = false;
+        }
         if (exoPlayer != null) {
             exoPlayer.release();
             exoPlayer = null;
@@ -2316,6 +3090,15 @@ public class PlayerActivity extends AppCompatActivity {
         handler.removeCallbacksAndMessages(null);
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        // Idle pooled decoders are cheap to recreate, so hand them back on any memory pressure
+        AsyncAudioDecoder.trimMemory();
+        // So are cached images and loops
+        MemoryBudget.getInstance().trimMemory();
+    }
+
     @Override
     protected void onResume() {
         super.onResume();
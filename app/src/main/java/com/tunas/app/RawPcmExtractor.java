@@ -0,0 +1,147 @@
+package com.tunas.app;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.Format;
+import com.google.android.exoplayer2.MediaItem;
+import com.google.android.exoplayer2.extractor.Extractor;
+import com.google.android.exoplayer2.extractor.ExtractorInput;
+import com.google.android.exoplayer2.extractor.ExtractorOutput;
+import com.google.android.exoplayer2.extractor.ExtractorsFactory;
+import com.google.android.exoplayer2.extractor.PositionHolder;
+import com.google.android.exoplayer2.extractor.SeekMap;
+import com.google.android.exoplayer2.extractor.SeekPoint;
+import com.google.android.exoplayer2.extractor.SeekPoints;
+import com.google.android.exoplayer2.extractor.TrackOutput;
+import com.google.android.exoplayer2.source.ProgressiveMediaSource;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.util.MimeTypes;
+
+import java.io.IOException;
+
+/**
+ * Extractor for headerless 16-bit PCM in a format known up front.
+ *
+ * Loop sources hand the player their PCM directly, so there is no WAV header to synthesize
+ * and no sniffing or header parsing when a selection changes. The stream is cut into samples
+ * of about SAMPLE_DURATION_US on frame boundaries, and the seek map is exact: every time maps
+ * to the byte offset of a frame, and that frame's samples carry the same time back.
+ */
+public class RawPcmExtractor implements Extractor {
+
+    private static final long SAMPLE_DURATION_US = 100000; // same sample size as ExoPlayer's WAV extractor
+
+    private final int sampleRate;
+    private final int channelCount;
+    private final int bytesPerFrame;
+    private final long length;
+    private final int targetSampleBytes;
+    private TrackOutput trackOutput;
+    private long sampleFrame;   // frame index of the first pending byte
+    private int pendingBytes;   // bytes handed to the track but not yet committed as a sample
+
+    /**
+     * Creates a progressive source that reads raw PCM from the data source.
+     *
+     * @param length Byte length of the PCM stream
+     */
+    public static ProgressiveMediaSource createMediaSource(MediaItem mediaItem, DataSource.Factory dataSourceFactory,
+                                                           final int sampleRate, final int channelCount, final long length) {
+        return new ProgressiveMediaSource.Factory(dataSourceFactory, new ExtractorsFactory() {
+            @Override
+            public Extractor[] createExtractors() {
+                return new Extractor[] {new RawPcmExtractor(sampleRate, channelCount, length)};
+            }
+        }).createMediaSource(mediaItem);
+    }
+
+    public RawPcmExtractor(int sampleRate, int channelCount, long length) {
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        this.bytesPerFrame = channelCount * 2;
+        this.length = length / bytesPerFrame * bytesPerFrame;
+        this.targetSampleBytes = (int) Math.max(1, sampleRate * SAMPLE_DURATION_US / 1000000) * bytesPerFrame;
+    }
+
+    @Override
+    public boolean sniff(ExtractorInput input) {
+        // The only extractor for its source, and the format is known
+        return true;
+    }
+
+    @Override
+    public void init(ExtractorOutput output) {
+        trackOutput = output.track(0, C.TRACK_TYPE_AUDIO);
+        trackOutput.format(new Format.Builder()
+                .setSampleMimeType(MimeTypes.AUDIO_RAW)
+                .setSampleRate(sampleRate)
+                .setChannelCount(channelCount)
+                .setPcmEncoding(C.ENCODING_PCM_16BIT)
+                .setAverageBitrate(sampleRate * bytesPerFrame * 8)
+                .setPeakBitrate(sampleRate * bytesPerFrame * 8)
+                .setMaxInputSize(targetSampleBytes)
+                .build());
+        output.endTracks();
+        output.seekMap(new SeekMap() {
+            @Override
+            public boolean isSeekable() {
+                return true;
+            }
+
+            @Override
+            public long getDurationUs() {
+                return timeUsAt(length / bytesPerFrame);
+            }
+
+            @Override
+            public SeekPoints getSeekPoints(long timeUs) {
+                long frame = Math.max(0, Math.min(frameAt(timeUs), length / bytesPerFrame - 1));
+                return new SeekPoints(new SeekPoint(timeUsAt(frame), frame * bytesPerFrame));
+            }
+        });
+    }
+
+    @Override
+    public int read(ExtractorInput input, PositionHolder seekPosition) throws IOException {
+        int result = trackOutput.sampleData(input, targetSampleBytes - pendingBytes, true);
+        if (result == C.RESULT_END_OF_INPUT) {
+            commitSample(pendingBytes / bytesPerFrame * bytesPerFrame);
+            return RESULT_END_OF_INPUT;
+        }
+        pendingBytes += result;
+        if (pendingBytes >= targetSampleBytes) {
+            commitSample(targetSampleBytes);
+        }
+        return RESULT_CONTINUE;
+    }
+
+    private void commitSample(int size) {
+        if (size <= 0) {
+            return;
+        }
+        pendingBytes -= size;
+        trackOutput.sampleMetadata(timeUsAt(sampleFrame), C.BUFFER_FLAG_KEY_FRAME, size, pendingBytes, null);
+        sampleFrame += size / bytesPerFrame;
+    }
+
+    @Override
+    public void seek(long position, long timeUs) {
+        // Reading resumes at position, which the seek map always puts on a frame boundary
+        sampleFrame = position / bytesPerFrame;
+        pendingBytes = 0;
+    }
+
+    @Override
+    public void release() {
+    }
+
+    private long timeUsAt(long frame) {
+        return frame * 1000000 / sampleRate;
+    }
+
+    /**
+     * Inverse of timeUsAt, rounding up so a seek never lands before the requested time.
+     */
+    private long frameAt(long timeUs) {
+        return (timeUs * sampleRate + 999999) / 1000000;
+    }
+}
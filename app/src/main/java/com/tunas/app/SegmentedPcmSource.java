@@ -0,0 +1,181 @@
+package com.tunas.app;
+
+import android.net.Uri;
+import android.util.Log;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.MediaItem;
+import com.google.android.exoplayer2.source.MediaSource;
+import com.google.android.exoplayer2.source.ProgressiveMediaSource;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSourceException;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.TransferListener;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Looped PCM stream assembled from segments without copying them.
+ *
+ * One cycle is the concatenation of the segments (e.g. a faded head, a memory-mapped body, a
+ * faded tail and a metronome half), and the stream is loopCount cycles of raw PCM, read by
+ * RawPcmExtractor. Reads are mapped onto the segments with modular arithmetic, so a segment
+ * backed by a memory-mapped file is copied straight from the page cache into the player's read
+ * buffer. The cycle is attached to the MediaItem as its tag, so AudioTrackLoopEngine can play
+ * the same PCM without going through the player.
+ */
+public class SegmentedPcmSource {
+
+    private SegmentedPcmSource() {
+    }
+
+    /**
+     * One cycle of a segmented source: the segments in order and their PCM format.
+     */
+    public static class Cycle {
+        public final ByteBuffer[] segments;
+        public final int sampleRate;
+        public final int channelCount;
+        public final long length;
+
+        Cycle(ByteBuffer[] segments, int sampleRate, int channelCount, long length) {
+            this.segments = segments;
+            this.sampleRate = sampleRate;
+            this.channelCount = channelCount;
+            this.length = length;
+        }
+
+        /**
+         * Returns the cycle behind the media source, or null if it is not a segmented source.
+         */
+        public static Cycle fromMediaSource(MediaSource mediaSource) {
+            MediaItem.LocalConfiguration localConfiguration = mediaSource.getMediaItem().localConfiguration;
+            if (localConfiguration != null && localConfiguration.tag instanceof Cycle) {
+                return (Cycle) localConfiguration.tag;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Creates a gapless looped MediaSource over the segments.
+     *
+     * @param uri URI reported by the data source, used to tell sources apart in logs
+     * @param segments PCM making up one cycle, in order; each is read from position to limit
+     * @param loopCount Number of cycles in the stream
+     */
+    public static ProgressiveMediaSource createMediaSource(final String uri, ByteBuffer[] segments,
+                                                           final int sampleRate, final int channelCount,
+                                                           final int loopCount) {
+        final ByteBuffer[] cycleSegments = new ByteBuffer[segments.length];
+        long cycleLength = 0;
+        for (int i = 0; i < segments.length; i++) {
+            cycleSegments[i] = segments[i].slice();
+            cycleLength += cycleSegments[i].remaining();
+        }
+        final long cycleBytes = cycleLength;
+        Log.d("Tunas", "SegmentedPcmSource: " + uri + " - " + segments.length + " segments, " + cycleBytes +
+                " bytes per cycle, " + loopCount + " loops");
+
+        MediaItem mediaItem = new MediaItem.Builder()
+                .setUri(uri)
+                .setTag(new Cycle(cycleSegments, sampleRate, channelCount, cycleBytes))
+                .build();
+        return RawPcmExtractor.createMediaSource(mediaItem, new DataSource.Factory() {
+            @Override
+            public DataSource createDataSource() {
+                return new SegmentedDataSource(uri, cycleSegments, cycleBytes, loopCount);
+            }
+        }, sampleRate, channelCount, cycleBytes * loopCount);
+    }
+
+    /**
+     * Serves loopCount cycles of the segments.
+     */
+    private static class SegmentedDataSource implements DataSource {
+        private final String uri;
+        private final ByteBuffer[] segments; // private duplicates, so reads don't disturb other sources
+        private final long[] segmentStarts;
+        private final long cycleLength;
+        private final int loopCount;
+        private long position;
+        private long bytesRemaining;
+        private boolean opened;
+
+        SegmentedDataSource(String uri, ByteBuffer[] cycleSegments, long cycleLength, int loopCount) {
+            this.uri = uri;
+            this.segments = new ByteBuffer[cycleSegments.length];
+            this.segmentStarts = new long[cycleSegments.length];
+            long start = 0;
+            for (int i = 0; i < cycleSegments.length; i++) {
+                segments[i] = cycleSegments[i].duplicate();
+                segmentStarts[i] = start;
+                start += cycleSegments[i].remaining();
+            }
+            this.cycleLength = cycleLength;
+            this.loopCount = loopCount;
+        }
+
+        @Override
+        public long open(DataSpec dataSpec) throws IOException {
+            long totalPcmSize = cycleLength * loopCount;
+            if (totalPcmSize <= 0) {
+                throw new IOException("Invalid data size");
+            }
+            position = dataSpec.position;
+            if (position > totalPcmSize) {
+                throw new DataSourceException(DataSourceException.POSITION_OUT_OF_RANGE);
+            }
+            bytesRemaining = totalPcmSize - position;
+            if (dataSpec.length != C.LENGTH_UNSET) {
+                bytesRemaining = Math.min(bytesRemaining, dataSpec.length);
+            }
+            opened = true;
+            return bytesRemaining;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int readLength) throws IOException {
+            if (!opened) {
+                throw new IOException("DataSource not opened");
+            }
+            if (readLength == 0) {
+                return 0;
+            }
+            if (bytesRemaining == 0) {
+                return C.RESULT_END_OF_INPUT;
+            }
+            readLength = (int) Math.min(readLength, bytesRemaining);
+
+            long positionInCycle = position % cycleLength;
+            int segment = segments.length - 1;
+            while (segmentStarts[segment] > positionInCycle) {
+                segment--;
+            }
+            ByteBuffer source = segments[segment];
+            int positionInSegment = (int) (positionInCycle - segmentStarts[segment]);
+            int length = Math.min(readLength, source.capacity() - positionInSegment);
+            source.position(positionInSegment);
+            source.get(buffer, offset, length);
+            position += length;
+            bytesRemaining -= length;
+            return length;
+        }
+
+        @Override
+        public Uri getUri() {
+            return Uri.parse(uri);
+        }
+
+        @Override
+        public void close() {
+            opened = false;
+        }
+
+        @Override
+        public void addTransferListener(TransferListener transferListener) {
+            // No-op for in-memory data source
+        }
+    }
+}
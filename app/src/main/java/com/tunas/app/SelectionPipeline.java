@@ -0,0 +1,136 @@
+package com.tunas.app;
+
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.OperationCanceledException;
+import android.util.Log;
+
+import com.google.android.exoplayer2.source.MediaSource;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Latest-wins pipeline that turns selection changes into media sources off the main thread.
+ *
+ * Bursts of requests (e.g. repeated taps on the fine-tune buttons) are coalesced so only the
+ * final selection is prepared. Submitting a new request cancels any in-flight build through its
+ * CancellationSignal, and results from stale requests are dropped. The player keeps playing the
+ * current source until the listener receives the new one on the main thread.
+ */
+public class SelectionPipeline {
+
+    private static final long COALESCE_DELAY_MS = 150;
+
+    /**
+     * Builds a media source on the pipeline thread. Long-running work should honour the signal.
+     */
+    public interface SourceBuilder {
+        MediaSource build(CancellationSignal cancellationSignal) throws Exception;
+    }
+
+    /**
+     * Receives the prepared source on the main thread, only if it is still the latest request.
+     */
+    public interface Listener {
+        void onSourceReady(MediaSource mediaSource);
+
+        /**
+         * The latest request failed, so no source will follow it.
+         */
+        void onSourceFailed();
+    }
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    // Main-thread state
+    private int latestGeneration = 0;
+    private CancellationSignal inFlightSignal;
+    private Runnable pendingStart;
+
+    /**
+     * Queues a build for the latest selection. Must be called on the main thread.
+     */
+    public void submit(final SourceBuilder builder, final Listener listener) {
+        final int generation = ++latestGeneration;
+        cancelPending();
+
+        pendingStart = new Runnable() {
+            @Override
+            public void run() {
+                pendingStart = null;
+                start(generation, builder, listener);
+            }
+        };
+        mainHandler.postDelayed(pendingStart, COALESCE_DELAY_MS);
+    }
+
+    private void start(final int generation, final SourceBuilder builder, final Listener listener) {
+        final CancellationSignal signal = new CancellationSignal();
+        inFlightSignal = signal;
+        Log.d("Tunas", "SelectionPipeline: starting build for request " + generation);
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (signal.isCanceled()) {
+                    Log.d("Tunas", "SelectionPipeline: request " + generation + " canceled before start");
+                    return;
+                }
+                final MediaSource mediaSource;
+                try {
+                    mediaSource = builder.build(signal);
+                } catch (OperationCanceledException e) {
+                    Log.d("Tunas", "SelectionPipeline: request " + generation + " canceled while building");
+                    return;
+                } catch (Exception e) {
+                    Log.e("Tunas", "SelectionPipeline: request " + generation + " failed", e);
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (generation == latestGeneration && !signal.isCanceled()) {
+                                inFlightSignal = null;
+                                listener.onSourceFailed();
+                            }
+                        }
+                    });
+                    return;
+                }
+
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != latestGeneration || signal.isCanceled()) {
+                            Log.d("Tunas", "SelectionPipeline: dropping stale result for request " + generation);
+                            return;
+                        }
+                        inFlightSignal = null;
+                        listener.onSourceReady(mediaSource);
+                    }
+                });
+            }
+        });
+    }
+
+    private void cancelPending() {
+        if (pendingStart != null) {
+            mainHandler.removeCallbacks(pendingStart);
+            pendingStart = null;
+        }
+        if (inFlightSignal != null) {
+            inFlightSignal.cancel();
+            inFlightSignal = null;
+        }
+    }
+
+    /**
+     * Cancels all outstanding work and stops the pipeline thread.
+     */
+    public void release() {
+        latestGeneration++;
+        cancelPending();
+        executor.shutdownNow();
+    }
+}
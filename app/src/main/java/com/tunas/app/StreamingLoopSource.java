@@ -0,0 +1,357 @@
+package com.tunas.app;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.MediaItem;
+import com.google.android.exoplayer2.source.MediaSource;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSourceException;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.TransferListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Looped PCM source that starts playing while the clip is still being decoded.
+ *
+ * The clip is decoded on a background thread into a buffer sized for the whole selection, and
+ * the player reads the looped PCM stream through a DataSource that blocks only until the bytes
+ * it needs have been decoded. Once the first pass is complete every later loop is served from
+ * the decoded clip in memory, without copying it per repeat. In alternating mode the metronome
+ * half of each cycle is rendered up front into the same buffer, since its length is known
+ * before decoding.
+ *
+ * Time-to-first-sound (from start() to the first PCM bytes handed to the player) is measured
+ * and exposed through getTimeToFirstSoundMs().
+ */
+public class StreamingLoopSource {
+
+    private static final long READ_WAIT_MS = 100;
+
+    /**
+     * Notified on the decode thread once the whole cycle is decoded, so it can be cached.
+     */
+    public interface CompletionListener {
+        void onCycleDecoded(AudioLoopUtils.LoopCycle cycle);
+    }
+
+    // Only waits for the decode, which runs on the shared decoder's callback thread
+    private static final ExecutorService decodeExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "TunasStreamDecoder");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final int sampleRate;
+    private final int channelCount;
+    private final int fadeBytes;
+    private final byte[] cycle;     // clip followed by the metronome half in alternating mode
+    private final int clipLength;
+    private final boolean withMetronome;
+    private final int loopCount;
+    private final CancellationSignal cancellationSignal = new CancellationSignal();
+    private final long startRealtimeMs = SystemClock.elapsedRealtime();
+    private final MediaSource mediaSource;
+
+    // Guarded by this
+    private int written;   // bytes of the clip received from the decoder
+    private int published; // bytes of the clip readers may consume (fades applied)
+    private boolean complete;
+    private IOException failure;
+
+    private volatile long firstSoundRealtimeMs = -1;
+
+    /**
+     * Starts decoding the clip and returns a source that can be prepared immediately.
+     *
+     * @param metronomeBarOffsetsMs Bar offsets for the metronome half of an alternating cycle,
+     *                              or null for a plain music loop
+     * @param completionListener Receives the fully decoded cycle, may be null
+     */
+    public static StreamingLoopSource start(Context context, File audioFile, long startMs, long endMs,
+                                            long[] metronomeBarOffsetsMs, int loopCount,
+                                            CompletionListener completionListener) throws IOException {
+        AudioFileRegistry.AudioFileDescriptor descriptor = AudioFileRegistry.getInstance(context).get(audioFile);
+        StreamingLoopSource source = new StreamingLoopSource(descriptor.sampleRate, descriptor.channelCount,
+                startMs, endMs, metronomeBarOffsetsMs, loopCount);
+        source.decodeInBackground(audioFile, startMs, endMs, completionListener);
+        return source;
+    }
+
+    /**
+     * Returns the streaming source backing the media source, or null if it is not streamed.
+     */
+    public static StreamingLoopSource fromMediaSource(MediaSource mediaSource) {
+        MediaItem.LocalConfiguration localConfiguration = mediaSource.getMediaItem().localConfiguration;
+        if (localConfiguration != null && localConfiguration.tag instanceof StreamingLoopSource) {
+            return (StreamingLoopSource) localConfiguration.tag;
+        }
+        return null;
+    }
+
+    private StreamingLoopSource(int sampleRate, int channelCount, long startMs, long endMs,
+                                long[] metronomeBarOffsetsMs, int loopCount) {
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        this.loopCount = loopCount;
+
+        int bytesPerFrame = channelCount * 2;
+        // Same frame boundaries as the trimmed decode, so the clip ends where its output does
+        long frames = AudioLoopUtils.frameAtUs(endMs * 1000, sampleRate)
+                - AudioLoopUtils.frameAtUs(startMs * 1000, sampleRate);
+        this.clipLength = (int) (frames * bytesPerFrame);
+        this.withMetronome = metronomeBarOffsetsMs != null;
+        this.cycle = new byte[withMetronome ? clipLength * 2 : clipLength];
+        this.fadeBytes = AudioLoopUtils.loopFadeBytes(clipLength, sampleRate, channelCount);
+        if (withMetronome) {
+            AudioLoopUtils.renderMetronomePcm(cycle, clipLength, clipLength, sampleRate, channelCount, metronomeBarOffsetsMs);
+        }
+
+        MediaItem mediaItem = new MediaItem.Builder()
+                .setUri(withMetronome ? "streaming_loop_alternating" : "streaming_loop")
+                .setTag(this)
+                .build();
+        this.mediaSource = RawPcmExtractor.createMediaSource(mediaItem, new DataSource.Factory() {
+            @Override
+            public DataSource createDataSource() {
+                return new StreamingDataSource();
+            }
+        }, sampleRate, channelCount, (long) cycle.length * loopCount);
+    }
+
+    public MediaSource getMediaSource() {
+        return mediaSource;
+    }
+
+    /**
+     * Milliseconds from start() until the first PCM bytes were handed to the player, or -1 if
+     * the player has not received any audio yet.
+     */
+    public long getTimeToFirstSoundMs() {
+        long firstSound = firstSoundRealtimeMs;
+        return firstSound >= 0 ? firstSound - startRealtimeMs : -1;
+    }
+
+    /**
+     * Size of the heap buffer the cycle is decoded into.
+     */
+    public long getCycleBytes() {
+        return cycle.length;
+    }
+
+    /**
+     * Stops the background decode. Readers waiting for data fail with an IOException.
+     */
+    public void cancel() {
+        cancellationSignal.cancel();
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Ties this source to another signal, e.g. the selection pipeline's, so it stops decoding
+     * when that request is abandoned.
+     */
+    public void cancelWith(CancellationSignal signal) {
+        if (signal != null) {
+            signal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                @Override
+                public void onCancel() {
+                    cancel();
+                }
+            });
+        }
+    }
+
+    private void decodeInBackground(final File audioFile, final long startMs, final long endMs,
+                                    final CompletionListener completionListener) {
+        decodeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    AudioLoopUtils.streamAudioClipPcm(audioFile, startMs, endMs,
+                            new AudioLoopUtils.TrimmedClipSink() {
+                                @Override
+                                public void onClipFormat(int sampleRate, int channelCount, long clipBytes) {
+                                    // The buffer was sized from the file metadata
+                                }
+
+                                @Override
+                                public void onClipPcm(ByteBuffer pcm, long clipOffset, long presentationTimeUs) {
+                                    append(pcm, clipOffset);
+                                }
+                            }, cancellationSignal);
+                    finish();
+                    Log.d("Tunas", "StreamingLoopSource: decoded " + clipLength + " bytes in " +
+                            (SystemClock.elapsedRealtime() - startRealtimeMs) + "ms, time to first sound " +
+                            getTimeToFirstSoundMs() + "ms");
+                    if (completionListener != null) {
+                        completionListener.onCycleDecoded(
+                                new AudioLoopUtils.LoopCycle(cycle, sampleRate, channelCount, withMetronome));
+                    }
+                } catch (OperationCanceledException e) {
+                    Log.d("Tunas", "StreamingLoopSource: decode canceled");
+                    fail(new IOException("Streaming decode canceled"));
+                } catch (IOException e) {
+                    Log.e("Tunas", "StreamingLoopSource: decode failed", e);
+                    fail(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Copies decoded PCM to the clip position its timestamp maps to; a gap left by the codec
+     * stays silent.
+     */
+    private synchronized void append(ByteBuffer pcm, long clipOffset) {
+        if (clipOffset >= clipLength) {
+            return;
+        }
+        int offset = (int) clipOffset;
+        int length = Math.min(pcm.remaining(), clipLength - offset);
+        pcm.get(cycle, offset, length);
+        int end = Math.max(written, offset + length);
+        boolean fadeInReady = written < fadeBytes && end >= fadeBytes;
+        written = end;
+        if (fadeInReady) {
+            AudioLoopUtils.applyFade(cycle, 0, fadeBytes, channelCount, false);
+        }
+        // Hold back the fade-in region until it is faded, and the last fadeBytes received
+        // until the end, as they are faded out if the decoder stops short
+        if (written >= fadeBytes) {
+            published = written - fadeBytes;
+            notifyAll();
+        }
+    }
+
+    private synchronized void finish() {
+        // Decoders may deliver a few frames short of the requested length; the rest stays
+        // silent, so the fade-out ends where the audio does
+        if (written < fadeBytes) {
+            AudioLoopUtils.applyFade(cycle, 0, fadeBytes, channelCount, false);
+        }
+        int fadeOutBytes = Math.min(fadeBytes, written);
+        AudioLoopUtils.applyFade(cycle, written - fadeOutBytes, fadeOutBytes, channelCount, true);
+        written = clipLength;
+        published = clipLength;
+        complete = true;
+        notifyAll();
+    }
+
+    private synchronized void fail(IOException e) {
+        failure = e;
+        notifyAll();
+    }
+
+    /**
+     * Waits until the clip byte at clipPosition has been decoded and returns how many bytes
+     * from there on are readable.
+     */
+    private synchronized int awaitClipBytes(int clipPosition) throws IOException {
+        while (!complete && published <= clipPosition) {
+            if (failure != null) {
+                throw failure;
+            }
+            if (cancellationSignal.isCanceled()) {
+                throw new IOException("Streaming decode canceled");
+            }
+            try {
+                wait(READ_WAIT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for decoded audio", e);
+            }
+        }
+        return published - clipPosition;
+    }
+
+    /**
+     * Serves loopCount cycles, reading the clip as it is decoded.
+     */
+    private class StreamingDataSource implements DataSource {
+        private long position;
+        private long bytesRemaining;
+        private boolean opened;
+
+        @Override
+        public long open(DataSpec dataSpec) throws IOException {
+            long streamLength = (long) cycle.length * loopCount;
+            position = dataSpec.position;
+            if (position > streamLength) {
+                throw new DataSourceException(DataSourceException.POSITION_OUT_OF_RANGE);
+            }
+            bytesRemaining = streamLength - position;
+            if (dataSpec.length != C.LENGTH_UNSET) {
+                bytesRemaining = Math.min(bytesRemaining, dataSpec.length);
+            }
+            opened = true;
+            return bytesRemaining;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int readLength) throws IOException {
+            if (!opened) {
+                throw new IOException("DataSource not opened");
+            }
+            if (readLength == 0) {
+                return 0;
+            }
+
+            if (bytesRemaining == 0) {
+                return C.RESULT_END_OF_INPUT;
+            }
+            readLength = (int) Math.min(readLength, bytesRemaining);
+
+            long cycleLength = cycle.length;
+
+            int positionInCycle = (int) (position % cycleLength);
+            int length;
+            if (positionInCycle < clipLength) {
+                int available = awaitClipBytes(positionInCycle);
+                length = Math.min(readLength, available);
+                if (firstSoundRealtimeMs < 0) {
+                    firstSoundRealtimeMs = SystemClock.elapsedRealtime();
+                    Log.d("Tunas", "StreamingLoopSource: time to first sound " + getTimeToFirstSoundMs() + "ms");
+                }
+            } else {
+                // Metronome half, rendered up front
+                length = (int) Math.min(readLength, cycleLength - positionInCycle);
+            }
+            System.arraycopy(cycle, positionInCycle, buffer, offset, length);
+            position += length;
+            bytesRemaining -= length;
+            return length;
+        }
+
+        @Override
+        public Uri getUri() {
+            return Uri.parse(withMetronome ? "streaming_loop_alternating" : "streaming_loop");
+        }
+
+        @Override
+        public void close() {
+            opened = false;
+        }
+
+        @Override
+        public void addTransferListener(TransferListener transferListener) {
+            // No-op for in-memory data source
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.tunas.app;
+
+import android.content.Context;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.OperationCanceledException;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Background renderer and cache of slowed-down and transposed loops for practice.
+ *
+ * While a loop plays below full speed or transposed, with ExoPlayer stretching and shifting it
+ * in real time, the same loop is rendered at that speed and pitch offline (see
+ * AudioLoopUtils.renderStretchedLoopCycle) on a low-priority thread. Once it is ready the player
+ * switches to it and plays it at normal speed and pitch, with no real-time DSP. Rendered cycles
+ * are kept in an LRU cache per selection, speed and transposition, bounded by a memory ceiling
+ * and by the MemoryBudget (they outrank prefetched loops and images there), so going back to a
+ * loop, a speed or a key is instant. Only the latest request is rendered; a new one cancels it.
+ */
+public class StretchedLoopCache {
+
+    private static final int MEMORY_CEILING_FRACTION = 8; // share of the max heap used for stretched cycles
+
+    /**
+     * Receives a stretched cycle on the main thread.
+     */
+    public interface Listener {
+        void onStretched(AudioLoopUtils.LoopCycle cycle);
+    }
+
+    private final Context context;
+    private final long memoryCeilingBytes;
+    private final MemoryBudget budget = MemoryBudget.getInstance();
+    private final MemoryBudget.Account account;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "TunasStretch");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    // Guarded by this
+    private final Map<String, AudioLoopUtils.LoopCycle> cycles = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes;
+
+    // Main-thread state
+    private CancellationSignal inFlightSignal;
+
+    public StretchedLoopCache(Context context) {
+        this.context = context.getApplicationContext();
+        this.memoryCeilingBytes = Runtime.getRuntime().maxMemory() / MEMORY_CEILING_FRACTION;
+        this.account = budget.register("stretched", MemoryBudget.PRIORITY_RENDERED, new MemoryBudget.Evictable() {
+            @Override
+            public long evict(long bytes) {
+                synchronized (StretchedLoopCache.this) {
+                    return evictLeastRecentlyUsed(bytes, null);
+                }
+            }
+        });
+    }
+
+    /**
+     * Whether a rendered cycle of cycleBytes fits in the cache at all.
+     */
+    public boolean canHold(long cycleBytes) {
+        return cycleBytes <= memoryCeilingBytes;
+    }
+
+    /**
+     * Delivers the loop stretched to speed and transposed by semitones to the listener, from the
+     * cache or once it has been rendered. Cancels the previous request. Must be called on the
+     * main thread.
+     *
+     * @param metronomeBarOffsetsMs Bar offsets for the metronome half of an alternating cycle,
+     *                              or null for a plain music loop
+     */
+    public void request(final File audioFile, final long startMs, final long endMs, final long[] metronomeBarOffsetsMs,
+                        final float speed, final int semitones, final Listener listener) {
+        cancel();
+        final String key = keyFor(audioFile, startMs, endMs, metronomeBarOffsetsMs, speed, semitones);
+        AudioLoopUtils.LoopCycle cached;
+        synchronized (this) {
+            cached = cycles.get(key);
+        }
+        if (cached != null) {
+            Log.d("Tunas", "StretchedLoopCache: hit for " + startMs + "-" + endMs + "ms at " + Math.round(speed * 100) + "%, " + semitones + " semitones");
+            listener.onStretched(cached);
+            return;
+        }
+
+        final CancellationSignal signal = new CancellationSignal();
+        inFlightSignal = signal;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final AudioLoopUtils.LoopCycle cycle = AudioLoopUtils.renderStretchedLoopCycle(
+                            context, audioFile, startMs, endMs, metronomeBarOffsetsMs, speed, semitones, signal);
+                    put(key, cycle);
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!signal.isCanceled()) {
+                                inFlightSignal = null;
+                                listener.onStretched(cycle);
+                            }
+                        }
+                    });
+                } catch (OperationCanceledException e) {
+                    Log.d("Tunas", "StretchedLoopCache: render canceled");
+                } catch (IOException e) {
+                    Log.e("Tunas", "StretchedLoopCache: render failed for " + startMs + "-" + endMs + "ms", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Cancels the pending request, if any. Must be called on the main thread.
+     */
+    public void cancel() {
+        if (inFlightSignal != null) {
+            inFlightSignal.cancel();
+            inFlightSignal = null;
+        }
+    }
+
+    private void put(String key, AudioLoopUtils.LoopCycle cycle) {
+        if (cycle.pcm.length > memoryCeilingBytes) {
+            return;
+        }
+        // Lower-priority caches make room first, outside our lock since they may call back in
+        budget.makeRoom(cycle.pcm.length, MemoryBudget.PRIORITY_RENDERED);
+
+        synchronized (this) {
+            AudioLoopUtils.LoopCycle previous = cycles.put(key, cycle);
+            if (previous != null) {
+                cachedBytes -= previous.pcm.length;
+            }
+            cachedBytes += cycle.pcm.length;
+            account.setBytes(cachedBytes);
+
+            // Evict least recently used cycles until we are back under the ceiling and the budget
+            long excess = Math.max(cachedBytes - memoryCeilingBytes, budget.getUsedBytes() - budget.getBudgetBytes());
+            if (excess > 0) {
+                evictLeastRecentlyUsed(excess, cycle);
+            }
+            if (budget.isOverBudget()) {
+                cycles.remove(key);
+                cachedBytes -= cycle.pcm.length;
+                account.setBytes(cachedBytes);
+            }
+            Log.d("Tunas", "StretchedLoopCache: cached " + cycles.size() + " cycles/" + cachedBytes + " of " +
+                    memoryCeilingBytes + " bytes");
+        }
+    }
+
+    /**
+     * Drops least recently used cycles other than keep until at least bytes are freed.
+     * Must be called holding this.
+     *
+     * @return Bytes freed
+     */
+    private long evictLeastRecentlyUsed(long bytes, AudioLoopUtils.LoopCycle keep) {
+        long freed = 0;
+        Iterator<AudioLoopUtils.LoopCycle> iterator = cycles.values().iterator();
+        while (freed < bytes && iterator.hasNext()) {
+            AudioLoopUtils.LoopCycle eldest = iterator.next();
+            if (eldest == keep) {
+                continue;
+            }
+            freed += eldest.pcm.length;
+            iterator.remove();
+        }
+        cachedBytes -= freed;
+        account.setBytes(cachedBytes);
+        return freed;
+    }
+
+    /**
+     * Cancels outstanding work, drops all cached cycles and stops the render thread.
+     */
+    public void release() {
+        cancel();
+        executor.shutdownNow();
+        budget.unregister(account);
+        synchronized (this) {
+            cycles.clear();
+            cachedBytes = 0;
+        }
+    }
+
+    private static String keyFor(File audioFile, long startMs, long endMs, long[] metronomeBarOffsetsMs, float speed,
+                                 int semitones) {
+        String key = audioFile.getAbsolutePath() + ":" + startMs + "-" + endMs + "@" + Math.round(speed * 100) +
+                (semitones >= 0 ? "+" : "") + semitones;
+        if (metronomeBarOffsetsMs != null) {
+            key += ":metronome" + Arrays.hashCode(metronomeBarOffsetsMs);
+        }
+        return key;
+    }
+}
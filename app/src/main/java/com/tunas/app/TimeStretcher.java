@@ -0,0 +1,184 @@
+package com.tunas.app;
+
+import android.os.CancellationSignal;
+
+/**
+ * Offline time-stretch of a loop's PCM, keeping its pitch (WSOLA).
+ *
+ * The output is built from GRAIN_MS grains under a Hann window at 50% overlap. Each grain is
+ * taken from near its nominal input position, at the offset within SEARCH_MS that best
+ * matches the natural continuation of the previous grain, so periodic waveforms line up
+ * instead of phasing. Offline there is time for long grains and a wide search, which real-time
+ * stretching can't afford, and slow speeds keep their transients. The search runs coarse on
+ * every SEARCH_STRIDE-th frame and is refined around the best coarse match.
+ *
+ * The input is treated as one cycle of a loop and the output wraps around too, so the loop
+ * seam is stretched like any other point and the stretched loop needs no fades.
+ */
+public class TimeStretcher {
+
+    private static final int GRAIN_MS = 40;
+    private static final int SEARCH_MS = 12;
+    private static final int SEARCH_STRIDE = 4;
+
+    private TimeStretcher() {
+    }
+
+    /**
+     * Frames of the stretched loop for an input of inFrames played at speed.
+     */
+    public static int stretchedFrames(int inFrames, float speed) {
+        return Math.max(1, Math.round(inFrames / speed));
+    }
+
+    /**
+     * Stretches one loop cycle of 16-bit PCM so that it lasts 1/speed as long.
+     *
+     * @param pcm Interleaved 16-bit PCM of the cycle, little-endian
+     * @param outputSlots The returned array holds this many stretched-cycle-sized segments with
+     *                    the stretched cycle in the first, so callers can render more after it
+     */
+    public static byte[] stretchLoop(byte[] pcm, int sampleRate, int channelCount, float speed, int outputSlots,
+                                     CancellationSignal cancellationSignal) {
+        int bytesPerFrame = channelCount * 2;
+        int inFrames = pcm.length / bytesPerFrame;
+        int outFrames = stretchedFrames(inFrames, speed);
+        byte[] output = new byte[outFrames * bytesPerFrame * outputSlots];
+        if (inFrames == 0) {
+            return output;
+        }
+
+        int grainFrames = Math.max(4, sampleRate * GRAIN_MS / 1000 / 2 * 2);
+        int hopFrames = grainFrames / 2;
+        int searchFrames = Math.min(sampleRate * SEARCH_MS / 1000, inFrames / 2);
+        float[] window = new float[grainFrames];
+        for (int i = 0; i < grainFrames; i++) {
+            window[i] = (float) (0.5 - 0.5 * Math.cos(2.0 * Math.PI * i / grainFrames));
+        }
+
+        // Grains are matched on the channels' sum
+        float[] mono = new float[inFrames];
+        for (int frame = 0; frame < inFrames; frame++) {
+            int sum = 0;
+            for (int channel = 0; channel < channelCount; channel++) {
+                sum += sampleAt(pcm, (frame * channelCount + channel) * 2);
+            }
+            mono[frame] = sum;
+        }
+
+        // Grains are summed in a ring of one grain, and frames are written out once no later
+        // grain reaches them. The first grain's frames stay apart until the end, because the
+        // last grains wrap around onto them.
+        Accumulator head = new Accumulator(grainFrames, channelCount);
+        Accumulator ring = new Accumulator(grainFrames, channelCount);
+        int grainCount = (outFrames + hopFrames - 1) / hopFrames;
+        int previousStart = 0;
+        for (int grain = 0; grain < grainCount; grain++) {
+            if (grain % 64 == 0 && cancellationSignal != null) {
+                cancellationSignal.throwIfCanceled();
+            }
+            int outStart = grain * hopFrames;
+            ring.writeOut(output, Math.max(grainFrames, outStart - hopFrames), Math.min(outStart, outFrames));
+
+            int nominal = (int) ((long) Math.round(outStart * (double) speed) % inFrames);
+            int start = grain == 0 ? 0 :
+                    bestMatch(mono, previousStart + hopFrames, nominal, searchFrames, hopFrames);
+            for (int i = 0; i < grainFrames; i++) {
+                int outFrame = (outStart + i) % outFrames;
+                int inFrame = (start + i) % inFrames;
+                (outFrame < grainFrames ? head : ring).add(outFrame, window[i], pcm, inFrame);
+            }
+            previousStart = start;
+        }
+        ring.writeOut(output, Math.max(grainFrames, (grainCount - 1) * hopFrames), outFrames);
+        head.writeOut(output, 0, Math.min(grainFrames, outFrames));
+        return output;
+    }
+
+    /**
+     * Windowed sums for a span of output frames, indexed modulo its size.
+     */
+    private static class Accumulator {
+        final int frames;
+        final int channelCount;
+        final float[] sums;
+        final float[] weights;
+
+        Accumulator(int frames, int channelCount) {
+            this.frames = frames;
+            this.channelCount = channelCount;
+            this.sums = new float[frames * channelCount];
+            this.weights = new float[frames];
+        }
+
+        void add(int outFrame, float gain, byte[] pcm, int inFrame) {
+            int slot = outFrame % frames;
+            weights[slot] += gain;
+            for (int channel = 0; channel < channelCount; channel++) {
+                sums[slot * channelCount + channel] += gain * sampleAt(pcm, (inFrame * channelCount + channel) * 2);
+            }
+        }
+
+        /**
+         * Writes frames [from, to) to the output and clears their slots. Windows only sum to
+         * exactly 1 away from the loop seam, so each frame is divided by its total weight.
+         */
+        void writeOut(byte[] output, int from, int to) {
+            for (int frame = from; frame < to; frame++) {
+                int slot = frame % frames;
+                float weight = weights[slot] > 1e-3f ? weights[slot] : 1f;
+                for (int channel = 0; channel < channelCount; channel++) {
+                    int sample = Math.round(sums[slot * channelCount + channel] / weight);
+                    sample = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+                    int index = (frame * channelCount + channel) * 2;
+                    output[index] = (byte) sample;
+                    output[index + 1] = (byte) (sample >> 8);
+                    sums[slot * channelCount + channel] = 0;
+                }
+                weights[slot] = 0;
+            }
+        }
+    }
+
+    /**
+     * Start frame within searchFrames of nominal whose first overlapFrames best correlate with
+     * those at target, searched coarsely and then refined.
+     */
+    private static int bestMatch(float[] mono, int target, int nominal, int searchFrames, int overlapFrames) {
+        int best = nominal;
+        double bestScore = Double.NEGATIVE_INFINITY;
+        for (int offset = -searchFrames; offset <= searchFrames; offset += SEARCH_STRIDE) {
+            double score = correlation(mono, target, nominal + offset, overlapFrames, SEARCH_STRIDE);
+            if (score > bestScore) {
+                bestScore = score;
+                best = nominal + offset;
+            }
+        }
+        // Full-resolution scores are on another scale than the coarse ones
+        int coarse = best;
+        bestScore = Double.NEGATIVE_INFINITY;
+        for (int offset = -SEARCH_STRIDE + 1; offset < SEARCH_STRIDE; offset++) {
+            double score = correlation(mono, target, coarse + offset, overlapFrames, 1);
+            if (score > bestScore) {
+                bestScore = score;
+                best = coarse + offset;
+            }
+        }
+        return Math.floorMod(best, mono.length);
+    }
+
+    private static double correlation(float[] mono, int a, int b, int length, int stride) {
+        int frames = mono.length;
+        a = Math.floorMod(a, frames);
+        b = Math.floorMod(b, frames);
+        double sum = 0;
+        for (int i = 0; i < length; i += stride) {
+            sum += mono[(a + i) % frames] * mono[(b + i) % frames];
+        }
+        return sum;
+    }
+
+    private static int sampleAt(byte[] pcm, int byteIndex) {
+        return (short) (((pcm[byteIndex + 1] & 0xFF) << 8) | (pcm[byteIndex] & 0xFF));
+    }
+}
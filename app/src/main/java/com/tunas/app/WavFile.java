@@ -0,0 +1,175 @@
+package com.tunas.app;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Memory-mapped 16-bit PCM WAV file.
+ *
+ * The RIFF chunks are parsed once when the file is opened and the data chunk is mapped
+ * read-only, so any range can be handed out as a ByteBuffer view of the file without decoding
+ * it or copying it onto the heap. Open files are kept in a small LRU and reopened when the
+ * source size or mtime changes.
+ */
+public class WavFile {
+
+    private static final int MAX_OPEN_FILES = 4;
+    private static final int FORMAT_PCM = 1;
+    private static final int FORMAT_EXTENSIBLE = 0xFFFE;
+
+    private static final Map<String, WavFile> openFiles = new LinkedHashMap<>(MAX_OPEN_FILES, 0.75f, true);
+
+    public final int sampleRate;
+    public final int channelCount;
+    private final MappedByteBuffer data;
+    private final long sourceLength;
+    private final long sourceMtime;
+
+    private WavFile(MappedByteBuffer data, int sampleRate, int channelCount, long sourceLength, long sourceMtime) {
+        this.data = data;
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        this.sourceLength = sourceLength;
+        this.sourceMtime = sourceMtime;
+    }
+
+    /**
+     * Returns the mapped file, or null if it is not a 16-bit PCM WAV file or can't be read,
+     * in which case callers fall back to decoding it.
+     */
+    public static synchronized WavFile open(File audioFile) {
+        if (!audioFile.getName().toLowerCase().endsWith(".wav")) {
+            return null;
+        }
+        String path = audioFile.getAbsolutePath();
+        WavFile wav = openFiles.get(path);
+        if (wav != null && wav.sourceLength == audioFile.length() && wav.sourceMtime == audioFile.lastModified()) {
+            return wav;
+        }
+        openFiles.remove(path);
+
+        try {
+            wav = map(audioFile);
+        } catch (IOException e) {
+            Log.e("Tunas", "WavFile: failed to map " + audioFile.getName(), e);
+            return null;
+        }
+        if (wav == null) {
+            return null;
+        }
+        openFiles.put(path, wav);
+        while (openFiles.size() > MAX_OPEN_FILES) {
+            openFiles.remove(openFiles.keySet().iterator().next());
+        }
+        return wav;
+    }
+
+    private static WavFile map(File audioFile) throws IOException {
+        long sourceLength = audioFile.length();
+        long sourceMtime = audioFile.lastModified();
+        try (RandomAccessFile raf = new RandomAccessFile(audioFile, "r")) {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer chunk = ByteBuffer.allocate(40).order(ByteOrder.LITTLE_ENDIAN);
+
+            if (!readFully(channel, chunk, 0, 12) || chunk.getInt(0) != 0x46464952 /* RIFF */
+                    || chunk.getInt(8) != 0x45564157 /* WAVE */) {
+                Log.d("Tunas", "WavFile: " + audioFile.getName() + " is not a RIFF/WAVE file");
+                return null;
+            }
+
+            int sampleRate = 0;
+            int channelCount = 0;
+            boolean pcm16 = false;
+            long position = 12;
+            while (readFully(channel, chunk, position, 8)) {
+                int chunkId = chunk.getInt(0);
+                long chunkSize = chunk.getInt(4) & 0xFFFFFFFFL;
+                long bodyPosition = position + 8;
+
+                if (chunkId == 0x20746D66 /* "fmt " */) {
+                    if (!readFully(channel, chunk, bodyPosition, (int) Math.min(chunkSize, 40)) || chunkSize < 16) {
+                        return null;
+                    }
+                    int formatTag = chunk.getShort(0) & 0xFFFF;
+                    channelCount = chunk.getShort(2) & 0xFFFF;
+                    sampleRate = chunk.getInt(4);
+                    int bitsPerSample = chunk.getShort(14) & 0xFFFF;
+                    if (formatTag == FORMAT_EXTENSIBLE && chunkSize >= 26) {
+                        formatTag = chunk.getShort(24) & 0xFFFF; // first two bytes of the sub-format GUID
+                    }
+                    pcm16 = formatTag == FORMAT_PCM && bitsPerSample == 16 && channelCount > 0 && sampleRate > 0;
+                } else if (chunkId == 0x61746164 /* "data" */) {
+                    if (!pcm16) {
+                        Log.d("Tunas", "WavFile: " + audioFile.getName() + " is not 16-bit PCM, decoding it instead");
+                        return null;
+                    }
+                    // Streamed WAVs may leave the size unset; the data then runs to the end of the file
+                    long dataSize = Math.min(chunkSize, sourceLength - bodyPosition);
+                    int bytesPerFrame = channelCount * 2;
+                    dataSize = dataSize / bytesPerFrame * bytesPerFrame;
+                    if (dataSize > Integer.MAX_VALUE) {
+                        Log.d("Tunas", "WavFile: " + audioFile.getName() + " is too large to map, decoding it instead");
+                        return null;
+                    }
+                    MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, bodyPosition, dataSize);
+                    data.order(ByteOrder.LITTLE_ENDIAN);
+                    Log.d("Tunas", "WavFile: mapped " + audioFile.getName() + " - " + sampleRate + "Hz, " +
+                            channelCount + " channels, " + dataSize + " bytes of PCM at offset " + bodyPosition);
+                    return new WavFile(data, sampleRate, channelCount, sourceLength, sourceMtime);
+                }
+
+                // Chunks are padded to an even size
+                position = bodyPosition + chunkSize + (chunkSize & 1);
+            }
+            Log.d("Tunas", "WavFile: no data chunk in " + audioFile.getName());
+            return null;
+        }
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position, int length) throws IOException {
+        buffer.clear();
+        buffer.limit(length);
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int getBytesPerFrame() {
+        return channelCount * 2;
+    }
+
+    public long getFrameCount() {
+        return data.capacity() / getBytesPerFrame();
+    }
+
+    public long getDurationMs() {
+        return getFrameCount() * 1000 / sampleRate;
+    }
+
+    /**
+     * Returns a read-only view of the PCM between startMs (inclusive) and endMs (exclusive),
+     * on the same frame boundaries as decoded clips and clamped to the file.
+     */
+    public ByteBuffer slice(long startMs, long endMs) {
+        long frameCount = getFrameCount();
+        long startFrame = Math.max(0, Math.min(AudioLoopUtils.frameAtUs(startMs * 1000, sampleRate), frameCount));
+        long endFrame = Math.max(startFrame, Math.min(AudioLoopUtils.frameAtUs(endMs * 1000, sampleRate), frameCount));
+        ByteBuffer view = data.asReadOnlyBuffer();
+        view.limit((int) (endFrame * getBytesPerFrame()));
+        view.position((int) (startFrame * getBytesPerFrame()));
+        return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
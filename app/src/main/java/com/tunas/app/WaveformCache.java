@@ -0,0 +1,385 @@
+package com.tunas.app;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Persistent per-file waveform overviews, as min/max peak pyramids.
+ *
+ * The finest level holds the minimum and maximum sample of every BASE_BUCKET_FRAMES frames
+ * (all channels together) as signed bytes, and each coarser level merges LEVEL_FACTOR buckets
+ * of the one below, so drawing any span at any width reads at most a few buckets per pixel
+ * and never touches the audio. A pyramid is built once in the background, in one streaming
+ * pass over the file's PCM as mapped from the WAV file or the PCM cache, and stored in the app
+ * cache directory, invalidated when the source size or mtime changes.
+ */
+public class WaveformCache {
+
+    private static final int MAGIC = 0x4D465754; // "TWFM" little-endian
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int BASE_BUCKET_FRAMES = 256;
+    private static final int LEVEL_FACTOR = 4;
+    private static final int LEVEL_COUNT = 5;
+    private static final int STREAM_CHUNK_MS = 1000;
+
+    /**
+     * Receives a newly built pyramid on the main thread.
+     */
+    public interface Listener {
+        void onWaveformReady(File audioFile, Pyramid pyramid);
+    }
+
+    /**
+     * Min/max peaks of one file at LEVEL_COUNT resolutions.
+     */
+    public static class Pyramid {
+        private final int sampleRate;
+        private final byte[][] levels; // per level: min, max pairs
+
+        Pyramid(int sampleRate, byte[][] levels) {
+            this.sampleRate = sampleRate;
+            this.levels = levels;
+        }
+
+        /**
+         * Fills mins and maxes, -1 to 1 of full scale, with the peaks of [startMs, endMs) split
+         * into mins.length equal columns. Columns past the end of the file are 0.
+         */
+        public void getPeaks(long startMs, long endMs, float[] mins, float[] maxes) {
+            int columns = mins.length;
+            double startFrame = startMs * (double) sampleRate / 1000.0;
+            double columnFrames = (endMs - startMs) * (double) sampleRate / 1000.0 / columns;
+
+            // The coarsest level whose buckets still fit in a column
+            int level = 0;
+            long bucketFrames = BASE_BUCKET_FRAMES;
+            while (level + 1 < levels.length && bucketFrames * LEVEL_FACTOR <= columnFrames) {
+                level++;
+                bucketFrames *= LEVEL_FACTOR;
+            }
+            byte[] peaks = levels[level];
+            int bucketCount = peaks.length / 2;
+
+            for (int column = 0; column < columns; column++) {
+                int first = (int) ((startFrame + column * columnFrames) / bucketFrames);
+                int last = Math.max(first, (int) Math.ceil((startFrame + (column + 1) * columnFrames) / bucketFrames) - 1);
+                int min = 0;
+                int max = 0;
+                for (int bucket = Math.max(0, first); bucket <= last && bucket < bucketCount; bucket++) {
+                    min = Math.min(min, peaks[bucket * 2]);
+                    max = Math.max(max, peaks[bucket * 2 + 1]);
+                }
+                mins[column] = min / 128f;
+                maxes[column] = max / 128f;
+            }
+        }
+
+        int getByteSize() {
+            int size = 0;
+            for (byte[] level : levels) {
+                size += level.length;
+            }
+            return size;
+        }
+    }
+
+    /**
+     * Builds a pyramid from PCM streamed in order, merging each finished bucket upwards.
+     */
+    static class Builder {
+        private final int channelCount;
+        private final PeakList[] levels = new PeakList[LEVEL_COUNT];
+        private final int[] pendingMin = new int[LEVEL_COUNT];
+        private final int[] pendingMax = new int[LEVEL_COUNT];
+        private final int[] pendingCount = new int[LEVEL_COUNT]; // frames at level 0, buckets above
+
+        Builder(int channelCount) {
+            this.channelCount = channelCount;
+            for (int level = 0; level < LEVEL_COUNT; level++) {
+                levels[level] = new PeakList();
+            }
+            Arrays.fill(pendingMin, Integer.MAX_VALUE);
+            Arrays.fill(pendingMax, Integer.MIN_VALUE);
+        }
+
+        void add(ByteBuffer pcm) {
+            ByteBuffer samples = pcm.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            int frames = samples.remaining() / (channelCount * 2);
+            for (int frame = 0; frame < frames; frame++) {
+                for (int channel = 0; channel < channelCount; channel++) {
+                    int sample = samples.getShort() >> 8;
+                    pendingMin[0] = Math.min(pendingMin[0], sample);
+                    pendingMax[0] = Math.max(pendingMax[0], sample);
+                }
+                if (++pendingCount[0] == BASE_BUCKET_FRAMES) {
+                    emit(0);
+                }
+            }
+        }
+
+        /**
+         * Appends the pending bucket of the level and merges it into the level above.
+         */
+        private void emit(int level) {
+            int min = pendingMin[level];
+            int max = pendingMax[level];
+            levels[level].add(min, max);
+            pendingMin[level] = Integer.MAX_VALUE;
+            pendingMax[level] = Integer.MIN_VALUE;
+            pendingCount[level] = 0;
+            if (level + 1 < LEVEL_COUNT) {
+                pendingMin[level + 1] = Math.min(pendingMin[level + 1], min);
+                pendingMax[level + 1] = Math.max(pendingMax[level + 1], max);
+                if (++pendingCount[level + 1] == LEVEL_FACTOR) {
+                    emit(level + 1);
+                }
+            }
+        }
+
+        byte[][] finish() {
+            // Partial buckets at the end are emitted finest first, so each reaches the level above
+            for (int level = 0; level < LEVEL_COUNT; level++) {
+                if (pendingCount[level] > 0) {
+                    emit(level);
+                }
+            }
+            byte[][] peaks = new byte[LEVEL_COUNT][];
+            for (int level = 0; level < LEVEL_COUNT; level++) {
+                peaks[level] = levels[level].toArray();
+            }
+            return peaks;
+        }
+    }
+
+    /**
+     * Growable list of min, max byte pairs.
+     */
+    private static class PeakList {
+        private byte[] data = new byte[1024];
+        private int size;
+
+        void add(int min, int max) {
+            if (size + 2 > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            data[size++] = (byte) min;
+            data[size++] = (byte) max;
+        }
+
+        byte[] toArray() {
+            return Arrays.copyOf(data, size);
+        }
+    }
+
+    private static WaveformCache instance;
+
+    private final Context context;
+    private final File cacheDir;
+    private final Map<String, Pyramid> pyramids = new HashMap<>();
+    private final Set<String> pendingBuilds = Collections.synchronizedSet(new HashSet<String>());
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "TunasWaveform");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    public static synchronized WaveformCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new WaveformCache(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private WaveformCache(Context context) {
+        this.context = context;
+        this.cacheDir = new File(context.getCacheDir(), "waveform");
+        if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+            Log.w("Tunas", "WaveformCache: could not create cache dir " + cacheDir);
+        }
+    }
+
+    /**
+     * Returns the pyramid for the file, or null if it has not been built yet or the source
+     * changed since it was built.
+     */
+    public synchronized Pyramid get(File audioFile) {
+        String key = PcmCache.keyFor(audioFile);
+        File entryFile = new File(cacheDir, key + ".wfm");
+        Pyramid pyramid = pyramids.get(key);
+        if (pyramid != null && entryFile.exists()) {
+            return pyramid;
+        }
+        pyramids.remove(key);
+        if (!entryFile.exists()) {
+            return null;
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(entryFile, "r")) {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer data = ByteBuffer.allocate((int) channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(data, 0);
+            data.flip();
+            if (data.remaining() < HEADER_SIZE || data.getInt() != MAGIC || data.getInt() != VERSION) {
+                Log.w("Tunas", "WaveformCache: discarding malformed entry " + entryFile.getName());
+                entryFile.delete();
+                return null;
+            }
+            long sourceLength = data.getLong();
+            long sourceMtime = data.getLong();
+            int sampleRate = data.getInt();
+            int levelCount = data.getInt();
+            if (sourceLength != audioFile.length() || sourceMtime != audioFile.lastModified()
+                    || levelCount != LEVEL_COUNT || data.remaining() < levelCount * 4) {
+                Log.d("Tunas", "WaveformCache: source changed, invalidating entry for " + audioFile.getName());
+                entryFile.delete();
+                return null;
+            }
+            byte[][] levels = new byte[levelCount][];
+            for (int level = 0; level < levelCount; level++) {
+                levels[level] = new byte[data.getInt()];
+            }
+            for (byte[] level : levels) {
+                if (data.remaining() < level.length) {
+                    Log.w("Tunas", "WaveformCache: discarding truncated entry " + entryFile.getName());
+                    entryFile.delete();
+                    return null;
+                }
+                data.get(level);
+            }
+            pyramid = new Pyramid(sampleRate, levels);
+        } catch (IOException e) {
+            Log.e("Tunas", "WaveformCache: failed to read entry for " + audioFile.getName(), e);
+            return null;
+        }
+
+        pyramids.put(key, pyramid);
+        return pyramid;
+    }
+
+    /**
+     * Schedules a background build of the file's pyramid if it does not exist yet. The
+     * listener is called once it is built, and not at all if it already was.
+     */
+    public void buildInBackground(final File audioFile, final Listener listener) {
+        final String key = PcmCache.keyFor(audioFile);
+        if (!pendingBuilds.add(key)) {
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (get(audioFile) == null) {
+                        final Pyramid pyramid = build(audioFile, key);
+                        mainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                listener.onWaveformReady(audioFile, pyramid);
+                            }
+                        });
+                    }
+                } catch (IOException e) {
+                    Log.e("Tunas", "WaveformCache: failed to build waveform for " + audioFile.getName(), e);
+                } finally {
+                    pendingBuilds.remove(key);
+                }
+            }
+        });
+    }
+
+    private Pyramid build(File audioFile, String key) throws IOException {
+        long startRealtimeMs = SystemClock.elapsedRealtime();
+        long sourceLength = audioFile.length();
+        long sourceMtime = audioFile.lastModified();
+
+        // WAVs are mapped as they are; anything else is streamed from the PCM cache, which the
+        // player fills for every compressed file it opens
+        ByteBuffer pcm;
+        int sampleRate;
+        int channelCount;
+        WavFile wav = WavFile.open(audioFile);
+        if (wav != null) {
+            pcm = wav.slice(0, wav.getDurationMs() + 1);
+            sampleRate = wav.sampleRate;
+            channelCount = wav.channelCount;
+        } else {
+            PcmCache.CachedPcm cached = PcmCache.getInstance(context).getBlocking(audioFile, null);
+            pcm = cached.sliceView(0, cached.getFrameCount() * 1000 / cached.sampleRate);
+            sampleRate = cached.sampleRate;
+            channelCount = cached.channelCount;
+        }
+
+        Builder builder = new Builder(channelCount);
+        int chunkBytes = sampleRate * STREAM_CHUNK_MS / 1000 * channelCount * 2;
+        for (int position = 0; position < pcm.limit(); position += chunkBytes) {
+            ByteBuffer chunk = pcm.duplicate();
+            chunk.position(position);
+            chunk.limit(Math.min(pcm.limit(), position + chunkBytes));
+            builder.add(chunk);
+        }
+        Pyramid pyramid = new Pyramid(sampleRate, builder.finish());
+
+        File tmpFile = new File(cacheDir, key + ".tmp");
+        File entryFile = new File(cacheDir, key + ".wfm");
+        ByteBuffer data = ByteBuffer.allocate(HEADER_SIZE + LEVEL_COUNT * 4 + pyramid.getByteSize())
+                .order(ByteOrder.LITTLE_ENDIAN);
+        data.putInt(MAGIC).putInt(VERSION).putLong(sourceLength).putLong(sourceMtime)
+                .putInt(sampleRate).putInt(LEVEL_COUNT);
+        for (byte[] level : pyramid.levels) {
+            data.putInt(level.length);
+        }
+        for (byte[] level : pyramid.levels) {
+            data.put(level);
+        }
+        data.flip();
+        try (RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw")) {
+            raf.setLength(0);
+            raf.getChannel().write(data, 0);
+        } catch (IOException e) {
+            tmpFile.delete();
+            throw e;
+        }
+
+        synchronized (this) {
+            if (!tmpFile.renameTo(entryFile)) {
+                tmpFile.delete();
+                throw new IOException("Could not publish waveform " + entryFile);
+            }
+            pyramids.put(key, pyramid);
+        }
+        Log.d("Tunas", "WaveformCache: built " + audioFile.getName() + ": " + pyramid.getByteSize() + " bytes in " +
+                (SystemClock.elapsedRealtime() - startRealtimeMs) + "ms");
+        return pyramid;
+    }
+}
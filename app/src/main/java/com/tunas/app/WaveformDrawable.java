@@ -0,0 +1,107 @@
+package com.tunas.app;
+
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+
+/**
+ * Button background showing the waveform of a span of the file over a solid color.
+ *
+ * Peaks come from the file's WaveformCache pyramid at whatever resolution fits the button's
+ * width, one vertical line per COLUMN_WIDTH_PX pixels. Without a pyramid it is just the color,
+ * so it can replace setBackgroundColor before the pyramid has been built.
+ */
+public class WaveformDrawable extends Drawable {
+
+    private static final int COLUMN_WIDTH_PX = 2;
+    private static final float HEIGHT_FRACTION = 0.8f; // of the bounds used by a full-scale peak
+
+    private final Paint backgroundPaint = new Paint();
+    private final Paint wavePaint = new Paint();
+    private final long startMs;
+    private final long endMs;
+    private WaveformCache.Pyramid pyramid;
+    private float[] lines = new float[0];
+
+    public WaveformDrawable(int color, WaveformCache.Pyramid pyramid, long startMs, long endMs) {
+        this.startMs = startMs;
+        this.endMs = endMs;
+        this.pyramid = pyramid;
+        backgroundPaint.setColor(color);
+        wavePaint.setColor(0x40000000);
+        wavePaint.setStrokeWidth(1f);
+    }
+
+    public void setColor(int color) {
+        if (backgroundPaint.getColor() != color) {
+            backgroundPaint.setColor(color);
+            invalidateSelf();
+        }
+    }
+
+    public void setPyramid(WaveformCache.Pyramid pyramid) {
+        this.pyramid = pyramid;
+        updateLines(getBounds());
+        invalidateSelf();
+    }
+
+    @Override
+    protected void onBoundsChange(Rect bounds) {
+        updateLines(bounds);
+    }
+
+    /**
+     * Looks the peaks up once per size, so drawing only replays the lines.
+     */
+    private void updateLines(Rect bounds) {
+        int columns = bounds.width() / COLUMN_WIDTH_PX;
+        if (pyramid == null || columns <= 0 || endMs <= startMs) {
+            lines = new float[0];
+            return;
+        }
+        float[] mins = new float[columns];
+        float[] maxes = new float[columns];
+        pyramid.getPeaks(startMs, endMs, mins, maxes);
+
+        float centerY = bounds.exactCenterY();
+        float halfHeight = bounds.height() * HEIGHT_FRACTION / 2;
+        lines = new float[columns * 4];
+        for (int column = 0; column < columns; column++) {
+            float x = bounds.left + column * COLUMN_WIDTH_PX + COLUMN_WIDTH_PX / 2f;
+            lines[column * 4] = x;
+            lines[column * 4 + 1] = centerY - maxes[column] * halfHeight;
+            lines[column * 4 + 2] = x;
+            // Silent columns still get a pixel, so the line doesn't break up
+            lines[column * 4 + 3] = Math.max(centerY - mins[column] * halfHeight, lines[column * 4 + 1] + 1);
+        }
+    }
+
+    @Override
+    public void draw(Canvas canvas) {
+        canvas.drawRect(getBounds(), backgroundPaint);
+        if (lines.length > 0) {
+            canvas.drawLines(lines, wavePaint);
+        }
+    }
+
+    @Override
+    public void setAlpha(int alpha) {
+        backgroundPaint.setAlpha(alpha);
+        invalidateSelf();
+    }
+
+    @Override
+    public void setColorFilter(ColorFilter colorFilter) {
+        backgroundPaint.setColorFilter(colorFilter);
+        wavePaint.setColorFilter(colorFilter);
+        invalidateSelf();
+    }
+
+    @Override
+    public int getOpacity() {
+        return PixelFormat.OPAQUE;
+    }
+}
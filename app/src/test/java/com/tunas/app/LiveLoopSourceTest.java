@@ -0,0 +1,240 @@
+package com.tunas.app;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Epoch math of LiveLoopSource: where update() and queue() hand over to the new loop, and what
+ * the stream plays from there on.
+ *
+ * The fixtures are mono at 1kHz, so a frame is a millisecond, and every sample holds the file
+ * frame it comes from, so reading the stream shows which part of the file plays where.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class LiveLoopSourceTest {
+
+    private static final int SAMPLE_RATE = 1000;
+    private static final File AUDIO_FILE = new File("tune.mp3");
+    private static final short METRONOME = -1;
+
+    @Test
+    public void updateSwitchesSeamlesslyWhenLoadedAudioIsInsideNewRegion() {
+        LiveLoopSource loop = create(1000, 3000);
+        load(loop, 600);
+
+        long seek = loop.update(cycle(1200, 2500), 1200, 2500, 500, true);
+
+        assertEquals(-1, seek);
+        assertEquals(1599, frameAt(loop, 599));
+        assertEquals(1600, frameAt(loop, 600));
+        assertEquals(0, loop.getLastSwitchGapFrames());
+        assertEquals(2499, frameAt(loop, 1499));
+        assertEquals(1200, frameAt(loop, 1500));
+    }
+
+    @Test
+    public void updateSwitchesAtLoopBoundaryWhenOldCycleEndsInsideNewRegion() {
+        LiveLoopSource loop = create(1000, 3000);
+        load(loop, 1990);
+
+        long seek = loop.update(cycle(2000, 3000), 2000, 3000, 1500, true);
+
+        assertEquals(-1, seek);
+        assertEquals(2999, frameAt(loop, 1999));
+        assertEquals(2000, frameAt(loop, 2000));
+        assertEquals(0, loop.getLastSwitchGapFrames());
+        assertEquals(2000, frameAt(loop, 3000));
+    }
+
+    @Test
+    public void updateRestartsAtPlayheadWhenItIsOutsideNewRegion() {
+        LiveLoopSource loop = create(1000, 3000);
+        load(loop, 600);
+
+        long seek = loop.update(cycle(2000, 2500), 2000, 2500, 500, true);
+
+        assertEquals(500, seek);
+        loop.onOpen(500 * 2);
+        assertEquals(2000, frameAt(loop, 500));
+        assertEquals(100, loop.getLastSwitchGapFrames());
+        assertEquals(2000, frameAt(loop, 1000));
+    }
+
+    @Test
+    public void updateRestartsWhilePaused() {
+        LiveLoopSource loop = create(1000, 3000);
+        load(loop, 600);
+
+        long seek = loop.update(cycle(1200, 2500), 1200, 2500, 500, false);
+
+        assertEquals(500, seek);
+        loop.onOpen(500 * 2);
+        assertEquals(1200, frameAt(loop, 500));
+    }
+
+    @Test
+    public void updateRestartsAtPlayheadPhaseWhenBufferedAudioRunsPastNewEnd() {
+        LiveLoopSource loop = create(1000, 3000);
+        load(loop, 1990);
+
+        long seek = loop.update(cycle(2000, 2800), 2000, 2800, 1500, true);
+
+        assertEquals(1500, seek);
+        loop.onOpen(1500 * 2);
+        assertEquals(2500, frameAt(loop, 1500));
+        assertEquals(2799, frameAt(loop, 1799));
+        assertEquals(2000, frameAt(loop, 1800));
+    }
+
+    @Test
+    public void updateLetsMetronomeHalfPlayOutBeforeNewLoop() {
+        LiveLoopSource loop = LiveLoopSource.create(AUDIO_FILE, alternatingCycle(1000, 2000), 1000, 2000);
+        load(loop, 1600);
+        assertEquals(METRONOME, frameAt(loop, 1500));
+        assertEquals(1500, loop.getAbsolutePositionMs(1500));
+
+        long seek = loop.update(cycle(1200, 1800), 1200, 1800, 1500, true);
+
+        assertEquals(-1, seek);
+        assertEquals(METRONOME, frameAt(loop, 1999));
+        assertEquals(1200, frameAt(loop, 2000));
+        assertEquals(0, loop.getLastSwitchGapFrames());
+    }
+
+    @Test
+    public void positionsFollowModularPhaseOfLatestEpoch() {
+        LiveLoopSource loop = create(1000, 3000);
+        load(loop, 600);
+        loop.update(cycle(1200, 2500), 1200, 2500, 500, true);
+
+        // The new epoch starts at stream frame 600 at file frame 1600, and its cycle is 1300 frames
+        assertEquals(1500, loop.getSeekPositionMs(0));
+        assertEquals(600, loop.getSeekPositionMs(400));
+        assertEquals(1200, loop.getSeekPositionMs(1000));
+        assertEquals(1499, loop.getSeekPositionMs(2000)); // past the end, clamped to the last frame
+        assertEquals(1200, loop.getAbsolutePositionMs(1500));
+        assertEquals(1400, loop.getAbsolutePositionMs(1700));
+        assertEquals(1500, loop.getAbsolutePositionMs(500));
+    }
+
+    @Test
+    public void queueHandsOverAtLoopEnd() {
+        LiveLoopSource loop = create(1000, 3000);
+        load(loop, 600);
+
+        long handover = loop.queue(cycle(2000, 2500), 2000, 2500, 500, null);
+
+        assertEquals(2000, handover);
+        assertEquals(2999, frameAt(loop, 1999));
+        assertEquals(2000, frameAt(loop, 2000));
+        assertEquals(0, loop.getLastSwitchGapFrames());
+    }
+
+    @Test
+    public void queueHandsOverAtNextBarNotYetLoaded() {
+        LiveLoopSource loop = create(1000, 3000);
+        load(loop, 600);
+
+        long handover = loop.queue(cycle(2000, 2500), 2000, 2500, 500, new long[] {1000, 1500, 2000, 2500});
+
+        assertEquals(1000, handover);
+        assertEquals(1999, frameAt(loop, 999));
+        assertEquals(2000, frameAt(loop, 1000));
+        assertEquals(0, loop.getLastSwitchGapFrames());
+    }
+
+    @Test
+    public void laterQueueReplacesPendingHandover() {
+        LiveLoopSource loop = create(1000, 3000);
+        load(loop, 600);
+        long[] bars = {1000, 1500, 2000, 2500};
+        loop.queue(cycle(2000, 2500), 2000, 2500, 500, bars);
+
+        long handover = loop.queue(cycle(1500, 1700), 1500, 1700, 550, bars);
+
+        assertEquals(1000, handover);
+        assertEquals(1500, frameAt(loop, 1000));
+        assertEquals(1500, frameAt(loop, 1200));
+    }
+
+    @Test
+    public void repeatedStreamKeepsOnlyLatestRegion() {
+        LiveLoopSource loop = create(1000, 3000);
+        load(loop, 600);
+        loop.update(cycle(1200, 2500), 1200, 2500, 500, true);
+
+        loop.onOpen(0);
+
+        assertEquals(1200, frameAt(loop, 0));
+        assertEquals(1200, frameAt(loop, 1300));
+    }
+
+    private static LiveLoopSource create(long startMs, long endMs) {
+        return LiveLoopSource.create(AUDIO_FILE, cycle(startMs, endMs), startMs, endMs);
+    }
+
+    /**
+     * Cycle of [startMs, endMs) of the file, split into two segments.
+     */
+    private static SegmentedPcmSource.Cycle cycle(long startMs, long endMs) {
+        int frames = (int) (endMs - startMs);
+        short[] samples = new short[frames];
+        for (int i = 0; i < frames; i++) {
+            samples[i] = (short) (startMs + i);
+        }
+        return toCycle(samples, frames / 3);
+    }
+
+    /**
+     * Alternating cycle: [startMs, endMs) of the file, then as long a metronome half.
+     */
+    private static SegmentedPcmSource.Cycle alternatingCycle(long startMs, long endMs) {
+        int frames = (int) (endMs - startMs);
+        short[] samples = new short[frames * 2];
+        for (int i = 0; i < frames * 2; i++) {
+            samples[i] = i < frames ? (short) (startMs + i) : METRONOME;
+        }
+        return toCycle(samples, frames);
+    }
+
+    private static SegmentedPcmSource.Cycle toCycle(short[] samples, int splitFrame) {
+        ByteBuffer pcm = ByteBuffer.allocate(samples.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+        pcm.asShortBuffer().put(samples);
+        ByteBuffer first = pcm.duplicate();
+        first.limit(splitFrame * 2);
+        ByteBuffer second = pcm.duplicate();
+        second.position(splitFrame * 2);
+        return new SegmentedPcmSource.Cycle(new ByteBuffer[] {first.slice(), second.slice()},
+                SAMPLE_RATE, 1, samples.length * 2);
+    }
+
+    /**
+     * Opens the stream and reads its first frames, as the player does when it buffers.
+     */
+    private static void load(LiveLoopSource loop, int frames) {
+        loop.onOpen(0);
+        readFrames(loop, 0, frames);
+    }
+
+    private static short frameAt(LiveLoopSource loop, long streamFrame) {
+        return readFrames(loop, streamFrame, 1)[0];
+    }
+
+    private static short[] readFrames(LiveLoopSource loop, long streamFrame, int frames) {
+        byte[] buffer = new byte[frames * 2];
+        int offset = 0;
+        while (offset < buffer.length) {
+            offset += loop.read(streamFrame * 2 + offset, buffer, offset, buffer.length - offset);
+        }
+        short[] samples = new short[frames];
+        ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(samples);
+        return samples;
+    }
+}
@@ -0,0 +1,91 @@
+package com.tunas.app;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * LoudnessAnalyzer.Meter against the BS.1770 reference: a 997Hz sine at 0dBFS in one channel
+ * reads -3.01 LUFS, so the same sine at -20dBFS in both stereo channels reads -20 LUFS.
+ */
+public class LoudnessMeterTest {
+
+    private static final int SAMPLE_RATE = 48000;
+
+    @Test
+    public void fullScaleSineInOneChannelReadsReferenceLevel() {
+        LoudnessAnalyzer.Meter meter = new LoudnessAnalyzer.Meter(SAMPLE_RATE, 1);
+        meter.add(sine(1.0, 1, 5000));
+
+        assertEquals(-3.01f, meter.getIntegratedLoudness(), 0.05f);
+        assertEquals(1f, meter.getPeak(), 0.001f);
+    }
+
+    @Test
+    public void stereoSineAtMinus20DbfsReadsMinus20Lufs() {
+        LoudnessAnalyzer.Meter meter = new LoudnessAnalyzer.Meter(SAMPLE_RATE, 2);
+        meter.add(sine(0.1, 2, 5000));
+
+        assertEquals(-20f, meter.getIntegratedLoudness(), 0.05f);
+        assertEquals(0.1f, meter.getPeak(), 0.001f);
+    }
+
+    @Test
+    public void silenceIsGatedOut() {
+        LoudnessAnalyzer.Meter meter = new LoudnessAnalyzer.Meter(SAMPLE_RATE, 2);
+        meter.add(sine(0.1, 2, 5000));
+        meter.add(ByteBuffer.allocate(SAMPLE_RATE * 5 * 4));
+
+        // Ungated, the silence would halve the power (-23 LUFS); only the blocks overlapping the
+        // end of the tone pass the gates and pull it down a little
+        assertEquals(-20f, meter.getIntegratedLoudness(), 0.2f);
+    }
+
+    @Test
+    public void silenceAloneReadsAbsoluteGate() {
+        LoudnessAnalyzer.Meter meter = new LoudnessAnalyzer.Meter(SAMPLE_RATE, 2);
+        meter.add(ByteBuffer.allocate(SAMPLE_RATE * 2 * 4));
+
+        assertEquals(-70f, meter.getIntegratedLoudness(), 0);
+        assertEquals(0f, meter.getPeak(), 0);
+    }
+
+    @Test
+    public void chunkedInputReadsLikeWholeInput() {
+        ByteBuffer pcm = sine(0.3, 2, 3000);
+        LoudnessAnalyzer.Meter whole = new LoudnessAnalyzer.Meter(SAMPLE_RATE, 2);
+        whole.add(pcm);
+
+        LoudnessAnalyzer.Meter chunked = new LoudnessAnalyzer.Meter(SAMPLE_RATE, 2);
+        int chunkBytes = 1764 * 4; // not a multiple of the 100ms sub-block
+        for (int position = 0; position < pcm.limit(); position += chunkBytes) {
+            ByteBuffer chunk = pcm.duplicate();
+            chunk.position(position);
+            chunk.limit(Math.min(pcm.limit(), position + chunkBytes));
+            chunked.add(chunk);
+        }
+
+        assertEquals(whole.getIntegratedLoudness(), chunked.getIntegratedLoudness(), 0.0001f);
+        assertEquals(whole.getPeak(), chunked.getPeak(), 0);
+    }
+
+    /**
+     * 997Hz sine of the given peak, relative to full scale, on every channel.
+     */
+    private static ByteBuffer sine(double peak, int channelCount, int durationMs) {
+        int frames = SAMPLE_RATE / 1000 * durationMs;
+        ByteBuffer pcm = ByteBuffer.allocate(frames * channelCount * 2).order(ByteOrder.LITTLE_ENDIAN);
+        for (int frame = 0; frame < frames; frame++) {
+            double value = peak * Math.sin(2 * Math.PI * 997 * frame / SAMPLE_RATE);
+            short sample = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(value * 32768)));
+            for (int channel = 0; channel < channelCount; channel++) {
+                pcm.putShort(sample);
+            }
+        }
+        pcm.flip();
+        return pcm;
+    }
+}
@@ -0,0 +1,101 @@
+package com.tunas.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TimeStretcherTest {
+
+    private static final int SAMPLE_RATE = 8000;
+    private static final int PERIOD_FRAMES = 20; // 400Hz
+    private static final double AMPLITUDE = 10000;
+
+    @Test
+    public void outputLastsOneOverSpeedTimesSlots() {
+        byte[] output = TimeStretcher.stretchLoop(sine(8000, 2), SAMPLE_RATE, 2, 0.5f, 3, null);
+
+        assertEquals(16000, TimeStretcher.stretchedFrames(8000, 0.5f));
+        assertEquals(16000 * 4 * 3, output.length);
+    }
+
+    @Test
+    public void slowedLoopKeepsPitchAndLevel() {
+        byte[] output = TimeStretcher.stretchLoop(sine(8000, 1), SAMPLE_RATE, 1, 0.5f, 1, null);
+
+        // Twice as long at the same frequency: twice the cycles
+        int crossings = risingZeroCrossings(output, 1, 0);
+        assertTrue("crossings " + crossings, Math.abs(crossings - 800) <= 8);
+        double rms = rms(output, 1, 0);
+        assertEquals(AMPLITUDE / Math.sqrt(2), rms, AMPLITUDE * 0.05);
+    }
+
+    @Test
+    public void loopSeamStaysContinuous() {
+        byte[] output = TimeStretcher.stretchLoop(sine(8000, 1), SAMPLE_RATE, 1, 0.75f, 1, null);
+
+        // A 400Hz sine moves at most 2 pi 400 / 8000 of its amplitude per frame
+        double maxStep = 2 * Math.PI * AMPLITUDE / PERIOD_FRAMES;
+        int frames = output.length / 2;
+        for (int frame = 0; frame < frames; frame++) {
+            int step = Math.abs(sampleAt(output, 1, (frame + 1) % frames, 0) - sampleAt(output, 1, frame, 0));
+            assertTrue("step " + step + " at frame " + frame, step <= maxStep * 1.5);
+        }
+    }
+
+    @Test
+    public void channelsStaySeparate() {
+        byte[] pcm = sine(8000, 2);
+        for (int frame = 0; frame < 8000; frame++) {
+            pcm[frame * 4 + 2] = 0;
+            pcm[frame * 4 + 3] = 0;
+        }
+
+        byte[] output = TimeStretcher.stretchLoop(pcm, SAMPLE_RATE, 2, 0.6f, 1, null);
+
+        assertEquals(0, rms(output, 2, 1), 0);
+        assertEquals(AMPLITUDE / Math.sqrt(2), rms(output, 2, 0), AMPLITUDE * 0.05);
+    }
+
+    /**
+     * 400Hz sine on every channel; a whole number of periods, so it loops seamlessly.
+     */
+    private static byte[] sine(int frames, int channelCount) {
+        byte[] pcm = new byte[frames * channelCount * 2];
+        for (int frame = 0; frame < frames; frame++) {
+            int sample = (int) Math.round(AMPLITUDE * Math.sin(2 * Math.PI * frame / PERIOD_FRAMES));
+            for (int channel = 0; channel < channelCount; channel++) {
+                int index = (frame * channelCount + channel) * 2;
+                pcm[index] = (byte) sample;
+                pcm[index + 1] = (byte) (sample >> 8);
+            }
+        }
+        return pcm;
+    }
+
+    private static int risingZeroCrossings(byte[] pcm, int channelCount, int channel) {
+        int frames = pcm.length / (channelCount * 2);
+        int crossings = 0;
+        for (int frame = 1; frame < frames; frame++) {
+            if (sampleAt(pcm, channelCount, frame - 1, channel) < 0 && sampleAt(pcm, channelCount, frame, channel) >= 0) {
+                crossings++;
+            }
+        }
+        return crossings;
+    }
+
+    private static double rms(byte[] pcm, int channelCount, int channel) {
+        int frames = pcm.length / (channelCount * 2);
+        double sum = 0;
+        for (int frame = 0; frame < frames; frame++) {
+            double sample = sampleAt(pcm, channelCount, frame, channel);
+            sum += sample * sample;
+        }
+        return Math.sqrt(sum / frames);
+    }
+
+    private static int sampleAt(byte[] pcm, int channelCount, int frame, int channel) {
+        int index = (frame * channelCount + channel) * 2;
+        return (short) (((pcm[index + 1] & 0xFF) << 8) | (pcm[index] & 0xFF));
+    }
+}
@@ -0,0 +1,96 @@
+package com.tunas.app;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * WaveformCache.Builder: 256-frame buckets at the finest level, each coarser level merging four.
+ */
+public class WaveformBuilderTest {
+
+    private static final int BUCKET_FRAMES = 256;
+
+    @Test
+    public void bucketsHoldMinAndMaxAndMergeUpwards() {
+        short[] samples = new short[BUCKET_FRAMES * 4];
+        for (int frame = 0; frame < samples.length; frame++) {
+            samples[frame] = (short) ((frame / BUCKET_FRAMES * 10) << 8);
+        }
+        samples[BUCKET_FRAMES * 2 + 7] = 127 << 8;
+        samples[BUCKET_FRAMES * 3 + 9] = (short) (-128 << 8);
+        WaveformCache.Builder builder = new WaveformCache.Builder(1);
+        builder.add(pcm(samples));
+
+        byte[][] levels = builder.finish();
+
+        assertEquals(5, levels.length);
+        assertArrayEquals(new byte[] {0, 0, 10, 10, 20, 127, -128, 30}, levels[0]);
+        for (int level = 1; level < levels.length; level++) {
+            assertArrayEquals(new byte[] {-128, 127}, levels[level]);
+        }
+    }
+
+    @Test
+    public void partialTrailingBucketsReachCoarserLevels() {
+        short[] samples = new short[BUCKET_FRAMES + 44];
+        samples[BUCKET_FRAMES + 43] = (short) (-50 << 8);
+        WaveformCache.Builder builder = new WaveformCache.Builder(1);
+        builder.add(pcm(samples));
+
+        byte[][] levels = builder.finish();
+
+        assertArrayEquals(new byte[] {0, 0, -50, 0}, levels[0]);
+        assertArrayEquals(new byte[] {-50, 0}, levels[1]);
+        assertArrayEquals(new byte[] {-50, 0}, levels[4]);
+    }
+
+    @Test
+    public void channelsShareBuckets() {
+        short[] samples = new short[BUCKET_FRAMES * 2];
+        for (int frame = 0; frame < BUCKET_FRAMES; frame++) {
+            samples[frame * 2] = 40 << 8;
+            samples[frame * 2 + 1] = (short) (-60 << 8);
+        }
+        WaveformCache.Builder builder = new WaveformCache.Builder(2);
+        builder.add(pcm(samples));
+
+        assertArrayEquals(new byte[] {-60, 40}, builder.finish()[0]);
+    }
+
+    @Test
+    public void chunkedInputBuildsLikeWholeInput() {
+        short[] samples = new short[BUCKET_FRAMES * 37 + 11];
+        for (int frame = 0; frame < samples.length; frame++) {
+            samples[frame] = (short) Math.round(30000 * Math.sin(frame * 0.013) * Math.cos(frame * 0.0007));
+        }
+        WaveformCache.Builder whole = new WaveformCache.Builder(1);
+        whole.add(pcm(samples));
+
+        WaveformCache.Builder chunked = new WaveformCache.Builder(1);
+        ByteBuffer pcm = pcm(samples);
+        int chunkBytes = 1000 * 2; // not a multiple of the bucket
+        for (int position = 0; position < pcm.limit(); position += chunkBytes) {
+            ByteBuffer chunk = pcm.duplicate();
+            chunk.position(position);
+            chunk.limit(Math.min(pcm.limit(), position + chunkBytes));
+            chunked.add(chunk);
+        }
+
+        byte[][] expected = whole.finish();
+        byte[][] actual = chunked.finish();
+        for (int level = 0; level < expected.length; level++) {
+            assertArrayEquals(expected[level], actual[level]);
+        }
+    }
+
+    private static ByteBuffer pcm(short[] samples) {
+        ByteBuffer pcm = ByteBuffer.allocate(samples.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+        pcm.asShortBuffer().put(samples);
+        return pcm;
+    }
+}